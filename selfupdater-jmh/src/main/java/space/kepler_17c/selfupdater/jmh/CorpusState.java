@@ -0,0 +1,116 @@
+package space.kepler_17c.selfupdater.jmh;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import space.kepler_17c.selfupdater.SelfUpdater;
+
+/**
+ * Pair of jars and the diff between them, shared by all benchmarks.
+ * <p>
+ *     The old jar consists of {@link #entryCount} text files of {@link #entrySize} bytes,
+ *     spread over directories of {@link #FILES_PER_DIRECTORY} files each.
+ *     In the updated jar, every file is edited in place with the probability of {@link #changeRatio},
+ *     and the first file is always edited, so the diff is never empty.
+ *     Content is generated from a fixed seed, so all runs use the same data.
+ * </p>
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+    private static final String TMP_DIR_PREFIX = "SelfUpdater-jmh-";
+    private static final int FILES_PER_DIRECTORY = 100;
+    private static final long SEED = 17;
+    private static final int EDIT_LENGTH = 16;
+
+    @Param({"100", "1000"})
+    public int entryCount;
+
+    @Param({"1024", "65536"})
+    public int entrySize;
+
+    @Param({"0.01", "0.1"})
+    public double changeRatio;
+
+    Path tmpDir;
+    Path oldJar;
+    Path newJar;
+    Path diff;
+
+    @Setup(Level.Trial)
+    public void createCorpus() throws IOException {
+        tmpDir = createTmpDir();
+        oldJar = tmpDir.resolve("old.jar");
+        newJar = tmpDir.resolve("new.jar");
+        Random random = new Random(SEED);
+        try (ZipOutputStream oldOut = new ZipOutputStream(Files.newOutputStream(oldJar));
+                ZipOutputStream newOut = new ZipOutputStream(Files.newOutputStream(newJar))) {
+            for (int i = 0; i < entryCount; i++) {
+                String directory = String.format("dir%04d/", i / FILES_PER_DIRECTORY);
+                String file = directory + String.format("file%06d.txt", i);
+                if (i % FILES_PER_DIRECTORY == 0) {
+                    putEntry(oldOut, directory, null);
+                    putEntry(newOut, directory, null);
+                }
+                byte[] content = randomText(random, entrySize);
+                putEntry(oldOut, file, content);
+                if (random.nextDouble() < changeRatio || i == 0) {
+                    int position = random.nextInt(Math.max(1, entrySize - EDIT_LENGTH));
+                    for (int j = position; j < Math.min(entrySize, position + EDIT_LENGTH); j++) {
+                        content[j] = (byte) ('a' + random.nextInt(26));
+                    }
+                }
+                putEntry(newOut, file, content);
+            }
+        }
+        Path diffDir = Files.createDirectories(tmpDir.resolve("diff"));
+        diff = SelfUpdater.createDiff(oldJar, newJar, diffDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCorpus() throws IOException {
+        deleteRecursively(tmpDir);
+    }
+
+    static Path createTmpDir() throws IOException {
+        return Files.createTempDirectory(TMP_DIR_PREFIX);
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * @param content The file's content, {@code null} for directories.
+     */
+    private static void putEntry(ZipOutputStream out, String path, byte[] content) throws IOException {
+        out.putNextEntry(new ZipEntry(path));
+        if (content != null) {
+            out.write(content);
+        }
+        out.closeEntry();
+    }
+
+    private static byte[] randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length + 16);
+        while (text.length() < length) {
+            text.append("line ").append(random.nextInt(100_000)).append('\n');
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+}
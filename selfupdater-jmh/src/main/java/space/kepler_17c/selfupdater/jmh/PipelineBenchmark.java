@@ -0,0 +1,65 @@
+package space.kepler_17c.selfupdater.jmh;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import space.kepler_17c.selfupdater.SelfUpdater;
+
+/**
+ * Creating and applying diffs of the latest format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+    private final List<Path> results = new ArrayList<>();
+    private Path outputDir;
+
+    @Setup(Level.Iteration)
+    public void createOutputDir() throws IOException {
+        outputDir = CorpusState.createTmpDir();
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteResults() throws IOException {
+        CorpusState.deleteRecursively(outputDir);
+        for (Path result : results) {
+            // the updated jar is written to a working directory of its own
+            CorpusState.deleteRecursively(result.getParent());
+        }
+        results.clear();
+    }
+
+    @Benchmark
+    public Path createDiff(CorpusState corpus) throws IOException {
+        Path diff = SelfUpdater.createDiff(corpus.oldJar, corpus.newJar, outputDir);
+        if (diff == null) {
+            throw new IOException("Failed to create diff.");
+        }
+        return diff;
+    }
+
+    @Benchmark
+    public Path applyDiff(CorpusState corpus) throws IOException {
+        Path updated = SelfUpdater.applyDiff(corpus.diff, corpus.oldJar);
+        results.add(updated);
+        return updated;
+    }
+}
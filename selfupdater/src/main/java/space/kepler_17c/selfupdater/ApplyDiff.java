@@ -2,118 +2,104 @@ package space.kepler_17c.selfupdater;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.NavigableMap;
 import java.util.Set;
-import space.kepler_17c.selfupdater.FileUtils.WorkingDirectory;
+import java.util.TreeMap;
+import space.kepler_17c.selfupdater.JarWriter.Source;
 import space.kepler_17c.selfupdater.MiscUtils.Tuple2;
 
 interface ApplyDiff {
-    Path applyDiff(WorkingDirectory workingDirectory) throws SelfUpdaterException;
+    /**
+     * Resolves the updated file tree without writing any file content.
+     * <p>
+     *     No {@link UpdaterEvent} is triggered, because nested diffs are resolved this way as well.
+     *     The update itself reports {@link UpdaterEvent#APPLIED_DIFF}.
+     * </p>
+     *
+     * @param diff The diff to be applied.
+     * @param jar  The jar to be updated.
+     *
+     * @return Sorted mapping of the updated tree's paths to their sources, ready for
+     * {@link JarWriter#putTree(NavigableMap)}.
+     */
+    NavigableMap<String, Source> applyDiff(JarIndex diff, JarIndex jar) throws SelfUpdaterException;
 
-    static Path v1(WorkingDirectory workingDirectory) throws SelfUpdaterException {
-        // copy source except for deleted files
-        Path deletedFilesPath = workingDirectory.diffDataFiles.resolve(DiffFormatConstantsV1.META_DELETED);
+    /**
+     * Resolves the tree of a diff in the layout of version 1, extended by one delta directory per codec.
+     * <p>Patched files are only reconstructed when the returned tree is written.</p>
+     */
+    static NavigableMap<String, Source> resolve(JarIndex diff, JarIndex jar, List<DeltaCodec> codecs)
+            throws SelfUpdaterException {
+        NavigableMap<String, Source> updatedTree = new TreeMap<>();
+        // keep source except for deleted files
         Set<String> deletedFiles = new HashSet<>();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(Files.newInputStream(deletedFilesPath)))) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                diff.open(FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.META_DELETED), StandardCharsets.UTF_8))) {
             String line;
             while ((line = br.readLine()) != null) {
                 deletedFiles.add(line);
             }
         } catch (IOException e) {
-            UpdaterEvent.triggerEvent(UpdaterEvent.APPLIED_DIFF, false);
             throw new SelfUpdaterException("Failed to read `deletedFiles`.", e);
         }
-        FileVisitor<Path> filteredCopyVisitor = new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                Path relDir = workingDirectory.oldFiles.relativize(dir);
-                if (!deletedFiles.contains(FileUtils.normalisedPathString(relDir, true))) {
-                    Files.createDirectories(workingDirectory.newFiles.resolve(relDir));
-                }
-                return super.preVisitDirectory(dir, attrs);
-            }
-
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                Path relFile = workingDirectory.oldFiles.relativize(file);
-                if (!deletedFiles.contains(FileUtils.normalisedPathString(relFile, false))) {
-                    Files.copy(file, workingDirectory.newFiles.resolve(relFile));
-                }
-                return super.visitFile(file, attrs);
+        for (String path : jar.paths()) {
+            if (!deletedFiles.contains(path)) {
+                updatedTree.put(path, jar.isDirectory(path) ? null : new Source(jar, path));
             }
-        };
-        try {
-            Files.walkFileTree(workingDirectory.oldFiles, filteredCopyVisitor);
-        } catch (IOException e) {
-            UpdaterEvent.triggerEvent(UpdaterEvent.APPLIED_DIFF, false);
-            throw new SelfUpdaterException("Failed to copy files from source.", e);
         }
-        // copy new/changed files
-        Path diffChangedFilesDir = workingDirectory.diffDataFiles.resolve(DiffFormatConstantsV1.DATA_DIR);
-        FileVisitor<Path> diffCopyVisitor = new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                Path copyTo = workingDirectory.newFiles.resolve(diffChangedFilesDir.relativize(dir));
-                Files.createDirectories(copyTo);
-                return super.preVisitDirectory(dir, attrs);
-            }
-
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                Path copyTo = workingDirectory.newFiles.resolve(diffChangedFilesDir.relativize(file));
-                Files.copy(file, copyTo, StandardCopyOption.REPLACE_EXISTING);
-                return super.visitFile(file, attrs);
+        // add new/changed files
+        String diffTreeRoot = FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.DATA_DIR + "/";
+        for (String path : diff.subPaths(diffTreeRoot)) {
+            Source source = diff.isDirectory(path) ? null : new Source(diff, path);
+            updatedTree.put(path.substring(diffTreeRoot.length()), source);
+        }
+        // add patched files
+        for (DeltaCodec codec : codecs) {
+            String deltaRoot = FileUtils.DIFF_DATA_DIR + codec.directory() + "/";
+            for (String deltaPath : diff.subPaths(deltaRoot)) {
+                if (diff.isDirectory(deltaPath)) {
+                    continue;
+                }
+                String path = deltaPath.substring(deltaRoot.length());
+                if (!jar.isFile(path)) {
+                    throw new SelfUpdaterException("Patched file is missing in source: " + path);
+                }
+                updatedTree.put(path, new Source(out -> {
+                    try (InputStream delta = diff.open(deltaPath)) {
+                        codec.applyDelta(jar, path, delta, out);
+                    }
+                }));
             }
-        };
-        try {
-            Files.walkFileTree(diffChangedFilesDir, diffCopyVisitor);
-        } catch (IOException e) {
-            UpdaterEvent.triggerEvent(UpdaterEvent.APPLIED_DIFF, false);
-            throw new SelfUpdaterException("Failed to copy added/changed files.", e);
         }
-        // copy moved files
-        Path movedFilesPath = workingDirectory.diffDataFiles.resolve(DiffFormatConstantsV1.META_MOVED);
+        // add moved files
         List<Tuple2<String, String>> movedFiles = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(Files.newInputStream(movedFilesPath)))) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                diff.open(FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.META_MOVED), StandardCharsets.UTF_8))) {
             String lineFrom, lineTo;
             while ((lineFrom = br.readLine()) != null && (lineTo = br.readLine()) != null) {
                 movedFiles.add(new Tuple2<>(lineFrom, lineTo));
             }
         } catch (IOException e) {
-            UpdaterEvent.triggerEvent(UpdaterEvent.APPLIED_DIFF, false);
             throw new SelfUpdaterException("Failed to read `movedFiles`.", e);
         }
-        Path movedFrom, movedTo;
         for (Tuple2<String, String> move : movedFiles) {
-            movedFrom = workingDirectory.oldFiles.resolve(move.a());
-            movedTo = workingDirectory.newFiles.resolve(move.b());
-            try {
-                Files.createDirectories(movedTo.getParent());
-                Files.copy(movedFrom, movedTo);
-            } catch (IOException e) {
-                UpdaterEvent.triggerEvent(UpdaterEvent.APPLIED_DIFF, false);
-                throw new SelfUpdaterException("Failed to copy moved files from source.", e);
+            if (!jar.isFile(move.a())) {
+                throw new SelfUpdaterException("Moved file is missing in source: " + move.a());
             }
+            updatedTree.put(move.b(), new Source(jar, move.a()));
         }
-        UpdaterEvent.triggerEvent(UpdaterEvent.APPLIED_DIFF, true);
-        Path resultPath = workingDirectory.rootDir.resolve(FileUtils.UPDATED_FILE_NAME);
-        try {
-            FileUtils.zipDir(workingDirectory.newFiles, resultPath);
-            UpdaterEvent.triggerEvent(UpdaterEvent.PACKED_EXECUTABLE, true);
-        } catch (IOException e) {
-            UpdaterEvent.triggerEvent(UpdaterEvent.PACKED_EXECUTABLE, false);
-            throw new SelfUpdaterException("Failed to re-zip updated files.", e);
+        // ensure all parent directories are present, e.g. for files moved to deleted directories
+        for (String path : new ArrayList<>(updatedTree.keySet())) {
+            for (String parent : FileUtils.parentPaths(path)) {
+                updatedTree.putIfAbsent(parent, null);
+            }
         }
-        return resultPath;
+        return updatedTree;
     }
 }
@@ -0,0 +1,395 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+/**
+ * Block matching delta in the style of rsync, meant for files too large for {@link BsDiffCodec}.
+ * <p>
+ *     The old file is split into blocks, which are indexed by a rolling checksum and a truncated SHA-256.
+ *     The new file is scanned for these blocks with a window moving one byte at a time,
+ *     and encoded as references to old blocks and literal runs in between.
+ *     Both sides only hold the block index and a few blocks in memory, regardless of file sizes.
+ * </p>
+ * <p>
+ *     Deltas start with block size ({@code int}), old size and new size ({@code long}s), all big-endian.
+ *     They are followed by instructions, each starting with an operation byte:
+ *     {@link #OP_COPY} with first block and block count ({@code int}s),
+ *     or {@link #OP_LITERAL} with length ({@code int}) and the literal bytes.
+ * </p>
+ */
+final class BlockMatchCodec implements DeltaCodec {
+    static final int OP_COPY = 0;
+    static final int OP_LITERAL = 1;
+
+    private static final int MIN_BLOCK_SIZE = 1 << 11; // 2^11 = 2 KiB
+    private static final int MAX_BLOCK_COUNT = 1 << 20;
+    private static final int MIN_WINDOW_BUFFER_SIZE = 1 << 16; // 2^16 = 64 KiB
+
+    private final long minFileSize;
+
+    /**
+     * @param minFileSize Files are only handled if the old or new version is larger than this.
+     */
+    BlockMatchCodec(long minFileSize) {
+        this.minFileSize = minFileSize;
+    }
+
+    @Override
+    public String directory() {
+        return DiffFormatConstantsV3.BLOCKS_DIR;
+    }
+
+    @Override
+    public boolean createDelta(JarIndex oldJar, JarIndex newJar, String path, OutputStream delta) throws IOException {
+        long oldSize = oldJar.size(path);
+        long newSize = newJar.size(path);
+        if (oldSize <= minFileSize && newSize <= minFileSize) {
+            return false;
+        }
+        BlockIndex blockIndex;
+        try (InputStream oldIn = oldJar.open(path)) {
+            blockIndex = new BlockIndex(oldIn, oldSize);
+        }
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(delta));
+        dataOut.writeInt(blockIndex.blockSize);
+        dataOut.writeLong(oldSize);
+        dataOut.writeLong(newSize);
+        try (InputStream newIn = newJar.open(path)) {
+            encode(blockIndex, newIn, dataOut);
+        }
+        dataOut.flush();
+        return true;
+    }
+
+    @Override
+    public void applyDelta(JarIndex jar, String path, InputStream delta, OutputStream out) throws IOException {
+        DataInputStream dataIn = new DataInputStream(delta);
+        int blockSize = dataIn.readInt();
+        long oldSize = dataIn.readLong();
+        long newSize = dataIn.readLong();
+        if (blockSize <= 0 || oldSize != jar.size(path) || newSize < 0) {
+            throw new SelfUpdaterException("Block delta has an invalid header: " + path);
+        }
+        long blockCount = oldSize / blockSize;
+        byte[] buffer = new byte[Math.max(blockSize, MIN_WINDOW_BUFFER_SIZE)];
+        long written = 0;
+        try (OldBlocks oldBlocks = new OldBlocks(jar, path)) {
+            while (written < newSize) {
+                int operation = dataIn.read();
+                if (operation == OP_COPY) {
+                    long firstBlock = Integer.toUnsignedLong(dataIn.readInt());
+                    long count = Integer.toUnsignedLong(dataIn.readInt());
+                    if (firstBlock + count > blockCount || written + count * blockSize > newSize) {
+                        throw new SelfUpdaterException("Block delta references invalid blocks: " + path);
+                    }
+                    for (long block = firstBlock; block < firstBlock + count; block++) {
+                        oldBlocks.read(block * blockSize, buffer, blockSize);
+                        out.write(buffer, 0, blockSize);
+                    }
+                    written += count * blockSize;
+                } else if (operation == OP_LITERAL) {
+                    int length = dataIn.readInt();
+                    if (length < 0 || written + length > newSize) {
+                        throw new SelfUpdaterException("Block delta has an invalid literal: " + path);
+                    }
+                    for (int done = 0; done < length; ) {
+                        int chunkLength = Math.min(buffer.length, length - done);
+                        dataIn.readFully(buffer, 0, chunkLength);
+                        out.write(buffer, 0, chunkLength);
+                        done += chunkLength;
+                    }
+                    written += length;
+                } else {
+                    throw new SelfUpdaterException("Block delta has an invalid operation: " + path);
+                }
+            }
+        }
+        if (dataIn.read() >= 0) {
+            throw new SelfUpdaterException("Block delta has trailing data: " + path);
+        }
+    }
+
+    /**
+     * Scans the new content for blocks of the old content.
+     */
+    private static void encode(BlockIndex blockIndex, InputStream newIn, DataOutputStream out) throws IOException {
+        int blockSize = blockIndex.blockSize;
+        byte[] buffer = new byte[Math.max(4 * blockSize, MIN_WINDOW_BUFFER_SIZE)];
+        int end = newIn.readNBytes(buffer, 0, buffer.length);
+        boolean endOfStream = end < buffer.length;
+        int position = 0;
+        int literalStart = 0;
+        long pendingFirstBlock = -1;
+        long pendingBlockCount = 0;
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        boolean checksumValid = false;
+        while (true) {
+            if (end - position <= blockSize && !endOfStream) {
+                // move the window to the buffer's front, emitting the literal run before it
+                if (position > literalStart) {
+                    pendingBlockCount = writeCopy(out, pendingFirstBlock, pendingBlockCount);
+                    writeLiteral(out, buffer, literalStart, position - literalStart);
+                }
+                System.arraycopy(buffer, position, buffer, 0, end - position);
+                end -= position;
+                position = 0;
+                literalStart = 0;
+                int bytesRead = newIn.readNBytes(buffer, end, buffer.length - end);
+                end += bytesRead;
+                endOfStream = end < buffer.length;
+            }
+            if (end - position < blockSize) {
+                break;
+            }
+            if (!checksumValid) {
+                checksum.reset(buffer, position);
+                checksumValid = true;
+            }
+            long block = blockIndex.find(checksum.value(), buffer, position, pendingFirstBlock + pendingBlockCount);
+            if (block >= 0) {
+                if (position > literalStart) {
+                    pendingBlockCount = writeCopy(out, pendingFirstBlock, pendingBlockCount);
+                    writeLiteral(out, buffer, literalStart, position - literalStart);
+                }
+                if (pendingBlockCount == 0 || block != pendingFirstBlock + pendingBlockCount) {
+                    writeCopy(out, pendingFirstBlock, pendingBlockCount);
+                    pendingFirstBlock = block;
+                    pendingBlockCount = 0;
+                }
+                pendingBlockCount++;
+                position += blockSize;
+                literalStart = position;
+                checksumValid = false;
+            } else {
+                if (position + blockSize < end) {
+                    checksum.roll(buffer[position], buffer[position + blockSize]);
+                } else {
+                    checksumValid = false;
+                }
+                position++;
+            }
+        }
+        if (end > literalStart) {
+            writeCopy(out, pendingFirstBlock, pendingBlockCount);
+            writeLiteral(out, buffer, literalStart, end - literalStart);
+        } else {
+            writeCopy(out, pendingFirstBlock, pendingBlockCount);
+        }
+    }
+
+    /**
+     * Writes a pending run of blocks, if there is one.
+     *
+     * @return The number of pending blocks left, i.e. zero.
+     */
+    private static long writeCopy(DataOutputStream out, long firstBlock, long blockCount) throws IOException {
+        if (blockCount > 0) {
+            out.writeByte(OP_COPY);
+            out.writeInt((int) firstBlock);
+            out.writeInt((int) blockCount);
+        }
+        return 0;
+    }
+
+    private static void writeLiteral(DataOutputStream out, byte[] data, int offset, int length) throws IOException {
+        out.writeByte(OP_LITERAL);
+        out.writeInt(length);
+        out.write(data, offset, length);
+    }
+
+    private static long strongHash(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.reset();
+        digest.update(data, offset, length);
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+
+    /**
+     * Weak checksum of rsync, which can be moved along the data in constant time.
+     */
+    private static final class RollingChecksum {
+        private final int length;
+        private int a;
+        private int b;
+
+        private RollingChecksum(int length) {
+            this.length = length;
+        }
+
+        private void reset(byte[] data, int offset) {
+            a = 0;
+            b = 0;
+            for (int i = 0; i < length; i++) {
+                a += 0xFF & data[offset + i];
+                b += (length - i) * (0xFF & data[offset + i]);
+            }
+        }
+
+        private void roll(byte out, byte in) {
+            a += (0xFF & in) - (0xFF & out);
+            b += a - length * (0xFF & out);
+        }
+
+        private int value() {
+            return (0xFFFF & a) | (b << 16);
+        }
+    }
+
+    /**
+     * Hash table of the old content's full blocks, keeping only the first of identical blocks.
+     */
+    private static final class BlockIndex {
+        private final int blockSize;
+        private final int[] weakHashes;
+        private final long[] strongHashes;
+        private final int[] table;
+        private final MessageDigest digest = FileUtils.sha256Digest();
+
+        private BlockIndex(InputStream oldIn, long oldSize) throws IOException {
+            blockSize = (int) Math.max(MIN_BLOCK_SIZE, (oldSize + MAX_BLOCK_COUNT - 1) / MAX_BLOCK_COUNT);
+            int blockCount = (int) (oldSize / blockSize);
+            weakHashes = new int[blockCount];
+            strongHashes = new long[blockCount];
+            table = new int[Integer.highestOneBit(Math.max(blockCount, 1)) << 2];
+            RollingChecksum checksum = new RollingChecksum(blockSize);
+            byte[] block = new byte[blockSize];
+            for (int i = 0; i < blockCount; i++) {
+                if (oldIn.readNBytes(block, 0, blockSize) != blockSize) {
+                    throw new EOFException("Old file is shorter than its size.");
+                }
+                checksum.reset(block, 0);
+                weakHashes[i] = checksum.value();
+                strongHashes[i] = strongHash(digest, block, 0, blockSize);
+                insert(i);
+            }
+        }
+
+        private void insert(int block) {
+            int mask = table.length - 1;
+            for (int slot = mix(weakHashes[block]) & mask; ; slot = (slot + 1) & mask) {
+                int entry = table[slot] - 1;
+                if (entry < 0) {
+                    table[slot] = block + 1;
+                    return;
+                }
+                if (weakHashes[entry] == weakHashes[block] && strongHashes[entry] == strongHashes[block]) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Looks up the block at the given position, preferring the block that continues the current run.
+         *
+         * @return Index of the matching block, or {@code -1}.
+         */
+        private long find(int weakHash, byte[] data, int offset, long preferredBlock) {
+            boolean strongHashed = false;
+            long strongHash = 0;
+            if (preferredBlock >= 0 && preferredBlock < weakHashes.length) {
+                if (weakHashes[(int) preferredBlock] == weakHash) {
+                    strongHash = strongHash(digest, data, offset, blockSize);
+                    strongHashed = true;
+                    if (strongHashes[(int) preferredBlock] == strongHash) {
+                        return preferredBlock;
+                    }
+                }
+            }
+            int mask = table.length - 1;
+            for (int slot = mix(weakHash) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int entry = table[slot] - 1;
+                if (weakHashes[entry] == weakHash) {
+                    if (!strongHashed) {
+                        strongHash = strongHash(digest, data, offset, blockSize);
+                        strongHashed = true;
+                    }
+                    if (strongHashes[entry] == strongHash) {
+                        return entry;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private static int mix(int hash) {
+            return hash * 0x9E3779B9 >>> 7;
+        }
+    }
+
+    /**
+     * Random access to the old file's blocks.
+     * <p>
+     *     Blocks are read from the inflating stream as long as they are requested in ascending order,
+     *     which is the common case. The first request going backwards spills the file to a temporary location.
+     * </p>
+     */
+    private static final class OldBlocks implements Closeable {
+        private final JarIndex jar;
+        private final String path;
+        private InputStream sequentialIn;
+        private long sequentialPosition;
+        private Path spillDir;
+        private FileChannel spillChannel;
+
+        private OldBlocks(JarIndex jar, String path) throws IOException {
+            this.jar = jar;
+            this.path = path;
+            sequentialIn = jar.open(path);
+        }
+
+        private void read(long position, byte[] buffer, int length) throws IOException {
+            if (spillChannel == null && position < sequentialPosition) {
+                sequentialIn.close();
+                sequentialIn = null;
+                spillDir = FileUtils.createTmpDir();
+                Path spillFile = spillDir.resolve(path.substring(path.lastIndexOf('/') + 1));
+                try (InputStream inputStream = jar.open(path)) {
+                    Files.copy(inputStream, spillFile);
+                }
+                spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ);
+            }
+            if (spillChannel == null) {
+                sequentialIn.skipNBytes(position - sequentialPosition);
+                if (sequentialIn.readNBytes(buffer, 0, length) != length) {
+                    throw new EOFException("Old file is shorter than its size.");
+                }
+                sequentialPosition = position + length;
+            } else {
+                ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+                while (target.hasRemaining()) {
+                    if (spillChannel.read(target, position + target.position()) < 0) {
+                        throw new EOFException("Old file is shorter than its size.");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (sequentialIn != null) {
+                    sequentialIn.close();
+                }
+                if (spillChannel != null) {
+                    spillChannel.close();
+                }
+            } finally {
+                if (spillDir != null) {
+                    FileUtils.clearWorkingDirectory(spillDir);
+                }
+            }
+        }
+    }
+}
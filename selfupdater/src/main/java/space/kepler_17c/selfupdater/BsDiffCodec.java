@@ -0,0 +1,466 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary delta following Colin Percival's bsdiff.
+ * <p>
+ *     A suffix array of the old file is searched for approximate matches of the new file's content.
+ *     Matched regions are stored as bytewise differences, which are mostly zero and compress well
+ *     even when embedded offsets or indices shifted. Unmatched regions are stored as they are.
+ * </p>
+ * <p>
+ *     Deltas start with four big-endian {@code int}s: new size, control count, difference length and extra length.
+ *     They are followed by the control triples (difference length, extra length, old position adjustment),
+ *     the difference bytes and the extra bytes.
+ *     Keeping the three blocks apart gives the diff's deflater long runs of similar data.
+ * </p>
+ */
+final class BsDiffCodec implements DeltaCodec {
+    /**
+     * Files larger than this are left to other codecs, because the suffix array takes eight bytes per old byte.
+     */
+    static final int MAX_FILE_SIZE = 1 << 24; // 2^24 = 16 MiB
+
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    private static final int CONTROL_SIZE = 3 * Integer.BYTES;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16; // 2^16 = 64 KiB
+    private static final int INSERTION_SORT_LIMIT = 16;
+    private static final int TASK_SPLIT = 0;
+    private static final int TASK_ASSIGN = 1;
+
+    @Override
+    public String directory() {
+        return DiffFormatConstantsV2.DELTA_DIR;
+    }
+
+    @Override
+    public boolean createDelta(JarIndex oldJar, JarIndex newJar, String path, OutputStream delta) throws IOException {
+        if (oldJar.size(path) > MAX_FILE_SIZE || newJar.size(path) > MAX_FILE_SIZE) {
+            return false;
+        }
+        byte[] oldData;
+        byte[] newData;
+        try (InputStream oldIn = oldJar.open(path);
+                InputStream newIn = newJar.open(path)) {
+            oldData = oldIn.readAllBytes();
+            newData = newIn.readAllBytes();
+        }
+        delta.write(diff(oldData, newData));
+        return true;
+    }
+
+    @Override
+    public void applyDelta(JarIndex jar, String path, InputStream delta, OutputStream out) throws IOException {
+        byte[] oldData;
+        try (InputStream oldIn = jar.open(path)) {
+            oldData = oldIn.readAllBytes();
+        }
+        patch(oldData, delta.readAllBytes(), out);
+    }
+
+    static byte[] diff(byte[] oldData, byte[] newData) throws IOException {
+        int oldSize = oldData.length;
+        int newSize = newData.length;
+        int[] suffixes = suffixArray(oldData);
+        byte[] diffBytes = new byte[newSize];
+        byte[] extraBytes = new byte[newSize];
+        int diffLength = 0;
+        int extraLength = 0;
+        int[] controls = new int[CONTROL_SIZE];
+        int controlsLength = 0;
+        int[] matchPosition = new int[1];
+        int scan = 0;
+        int matchLength = 0;
+        int position = 0;
+        int lastScan = 0;
+        int lastPosition = 0;
+        int lastOffset = 0;
+        while (scan < newSize) {
+            // find the next match that is considerably better than extending the last one
+            int oldScore = 0;
+            scan += matchLength;
+            for (int scoredScan = scan; scan < newSize; scan++) {
+                matchLength = search(suffixes, oldData, newData, scan, matchPosition);
+                position = matchPosition[0];
+                for (; scoredScan < scan + matchLength; scoredScan++) {
+                    if (scoredScan + lastOffset < oldSize && oldData[scoredScan + lastOffset] == newData[scoredScan]) {
+                        oldScore++;
+                    }
+                }
+                if ((matchLength == oldScore && matchLength != 0) || matchLength > oldScore + 8) {
+                    break;
+                }
+                if (scan + lastOffset < oldSize && oldData[scan + lastOffset] == newData[scan]) {
+                    oldScore--;
+                }
+            }
+            if (matchLength == oldScore && scan != newSize) {
+                continue;
+            }
+            // extend the last match forwards and the new match backwards, as long as at least half the bytes match
+            int score = 0;
+            int bestScore = 0;
+            int forwardLength = 0;
+            for (int i = 0; lastScan + i < scan && lastPosition + i < oldSize; ) {
+                if (oldData[lastPosition + i] == newData[lastScan + i]) {
+                    score++;
+                }
+                i++;
+                if (score * 2 - i > bestScore * 2 - forwardLength) {
+                    bestScore = score;
+                    forwardLength = i;
+                }
+            }
+            int backwardLength = 0;
+            if (scan < newSize) {
+                score = 0;
+                bestScore = 0;
+                for (int i = 1; scan >= lastScan + i && position >= i; i++) {
+                    if (oldData[position - i] == newData[scan - i]) {
+                        score++;
+                    }
+                    if (score * 2 - i > bestScore * 2 - backwardLength) {
+                        bestScore = score;
+                        backwardLength = i;
+                    }
+                }
+            }
+            // resolve overlapping extensions
+            if (lastScan + forwardLength > scan - backwardLength) {
+                int overlap = lastScan + forwardLength - (scan - backwardLength);
+                score = 0;
+                bestScore = 0;
+                int splitLength = 0;
+                for (int i = 0; i < overlap; i++) {
+                    if (newData[lastScan + forwardLength - overlap + i]
+                            == oldData[lastPosition + forwardLength - overlap + i]) {
+                        score++;
+                    }
+                    if (newData[scan - backwardLength + i] == oldData[position - backwardLength + i]) {
+                        score--;
+                    }
+                    if (score > bestScore) {
+                        bestScore = score;
+                        splitLength = i + 1;
+                    }
+                }
+                forwardLength += splitLength - overlap;
+                backwardLength -= splitLength;
+            }
+            for (int i = 0; i < forwardLength; i++) {
+                diffBytes[diffLength + i] = (byte) (newData[lastScan + i] - oldData[lastPosition + i]);
+            }
+            int extra = scan - backwardLength - (lastScan + forwardLength);
+            System.arraycopy(newData, lastScan + forwardLength, extraBytes, extraLength, extra);
+            diffLength += forwardLength;
+            extraLength += extra;
+            if (controlsLength == controls.length) {
+                controls = Arrays.copyOf(controls, 2 * controls.length);
+            }
+            controls[controlsLength++] = forwardLength;
+            controls[controlsLength++] = extra;
+            controls[controlsLength++] = (position - backwardLength) - (lastPosition + forwardLength);
+            lastScan = scan - backwardLength;
+            lastPosition = position - backwardLength;
+            lastOffset = position - scan;
+        }
+        ByteArrayOutputStream delta = new ByteArrayOutputStream(
+                HEADER_SIZE + controlsLength * Integer.BYTES + diffLength + extraLength);
+        DataOutputStream dataOut = new DataOutputStream(delta);
+        dataOut.writeInt(newSize);
+        dataOut.writeInt(controlsLength / 3);
+        dataOut.writeInt(diffLength);
+        dataOut.writeInt(extraLength);
+        for (int i = 0; i < controlsLength; i++) {
+            dataOut.writeInt(controls[i]);
+        }
+        dataOut.write(diffBytes, 0, diffLength);
+        dataOut.write(extraBytes, 0, extraLength);
+        return delta.toByteArray();
+    }
+
+    static void patch(byte[] oldData, byte[] delta, OutputStream out) throws IOException {
+        if (delta.length < HEADER_SIZE) {
+            throw new SelfUpdaterException("Binary delta is truncated.");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(delta);
+        int newSize = buffer.getInt(0);
+        int controlCount = buffer.getInt(Integer.BYTES);
+        int diffLength = buffer.getInt(2 * Integer.BYTES);
+        int extraLength = buffer.getInt(3 * Integer.BYTES);
+        if (newSize < 0
+                || controlCount < 0
+                || diffLength < 0
+                || extraLength < 0
+                || HEADER_SIZE + (long) CONTROL_SIZE * controlCount + diffLength + extraLength != delta.length) {
+            throw new SelfUpdaterException("Binary delta has an invalid header.");
+        }
+        int controlPosition = HEADER_SIZE;
+        int diffPosition = controlPosition + CONTROL_SIZE * controlCount;
+        int diffEnd = diffPosition + diffLength;
+        int extraPosition = diffEnd;
+        long oldPosition = 0;
+        long newPosition = 0;
+        byte[] outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+        for (int control = 0; control < controlCount; control++) {
+            int copyLength = buffer.getInt(controlPosition);
+            int extra = buffer.getInt(controlPosition + Integer.BYTES);
+            int seek = buffer.getInt(controlPosition + 2 * Integer.BYTES);
+            controlPosition += CONTROL_SIZE;
+            if (copyLength < 0
+                    || extra < 0
+                    || (long) diffPosition + copyLength > diffEnd
+                    || (long) extraPosition + extra > delta.length
+                    || newPosition + copyLength + extra > newSize) {
+                throw new SelfUpdaterException("Binary delta has an invalid control block.");
+            }
+            // add differences to the old content, which is treated as zero outside its bounds
+            for (int done = 0; done < copyLength; ) {
+                int chunkLength = Math.min(outputBuffer.length, copyLength - done);
+                for (int i = 0; i < chunkLength; i++) {
+                    long sourcePosition = oldPosition + done + i;
+                    byte base = sourcePosition >= 0 && sourcePosition < oldData.length
+                            ? oldData[(int) sourcePosition]
+                            : 0;
+                    outputBuffer[i] = (byte) (delta[diffPosition + done + i] + base);
+                }
+                out.write(outputBuffer, 0, chunkLength);
+                done += chunkLength;
+            }
+            diffPosition += copyLength;
+            oldPosition += copyLength;
+            out.write(delta, extraPosition, extra);
+            extraPosition += extra;
+            newPosition += copyLength + extra;
+            oldPosition += seek;
+        }
+        if (newPosition != newSize) {
+            throw new SelfUpdaterException("Binary delta doesn't produce the expected size.");
+        }
+    }
+
+    /**
+     * Finds the longest prefix of {@code newData[newStart..]} in the old data.
+     *
+     * @param matchPosition Receives the match's position in the old data.
+     *
+     * @return Length of the match.
+     */
+    private static int search(int[] suffixes, byte[] oldData, byte[] newData, int newStart, int[] matchPosition) {
+        int start = 0;
+        int end = oldData.length;
+        while (end - start >= 2) {
+            int middle = start + (end - start) / 2;
+            if (compare(oldData, suffixes[middle], newData, newStart) < 0) {
+                start = middle;
+            } else {
+                end = middle;
+            }
+        }
+        int startLength = matchLength(oldData, suffixes[start], newData, newStart);
+        int endLength = matchLength(oldData, suffixes[end], newData, newStart);
+        if (startLength > endLength) {
+            matchPosition[0] = suffixes[start];
+            return startLength;
+        } else {
+            matchPosition[0] = suffixes[end];
+            return endLength;
+        }
+    }
+
+    private static int matchLength(byte[] oldData, int oldStart, byte[] newData, int newStart) {
+        int length = Math.min(oldData.length - oldStart, newData.length - newStart);
+        int mismatch = Arrays.mismatch(oldData, oldStart, oldStart + length, newData, newStart, newStart + length);
+        return mismatch < 0 ? length : mismatch;
+    }
+
+    /**
+     * Compares the common length of both suffixes, so a prefix compares equal.
+     */
+    private static int compare(byte[] oldData, int oldStart, byte[] newData, int newStart) {
+        int length = Math.min(oldData.length - oldStart, newData.length - newStart);
+        int mismatch = Arrays.mismatch(oldData, oldStart, oldStart + length, newData, newStart, newStart + length);
+        return mismatch < 0 ? 0 : Byte.compareUnsigned(oldData[oldStart + mismatch], newData[newStart + mismatch]);
+    }
+
+    /**
+     * Sorts all suffixes, including the empty one, with the Larsson-Sadakane algorithm.
+     *
+     * @return Start positions of the suffixes in lexicographical order.
+     */
+    private static int[] suffixArray(byte[] data) {
+        int size = data.length;
+        int[] suffixes = new int[size + 1];
+        int[] groups = new int[size + 1];
+        int[] buckets = new int[1 << Byte.SIZE];
+        for (byte b : data) {
+            buckets[0xFF & b]++;
+        }
+        for (int i = 1; i < buckets.length; i++) {
+            buckets[i] += buckets[i - 1];
+        }
+        for (int i = buckets.length - 1; i > 0; i--) {
+            buckets[i] = buckets[i - 1];
+        }
+        buckets[0] = 0;
+        for (int i = 0; i < size; i++) {
+            suffixes[++buckets[0xFF & data[i]]] = i;
+        }
+        suffixes[0] = size;
+        for (int i = 0; i < size; i++) {
+            groups[i] = buckets[0xFF & data[i]];
+        }
+        groups[size] = 0;
+        for (int i = 1; i < buckets.length; i++) {
+            if (buckets[i] == buckets[i - 1] + 1) {
+                suffixes[buckets[i]] = -1;
+            }
+        }
+        suffixes[0] = -1;
+        // negative values mark runs of already sorted suffixes
+        for (int h = 1; suffixes[0] != -(size + 1); h += h) {
+            int sortedLength = 0;
+            int i = 0;
+            while (i < size + 1) {
+                if (suffixes[i] < 0) {
+                    sortedLength -= suffixes[i];
+                    i -= suffixes[i];
+                } else {
+                    if (sortedLength != 0) {
+                        suffixes[i - sortedLength] = -sortedLength;
+                    }
+                    int groupLength = groups[suffixes[i]] + 1 - i;
+                    split(suffixes, groups, i, groupLength, h);
+                    i += groupLength;
+                    sortedLength = 0;
+                }
+            }
+            if (sortedLength != 0) {
+                suffixes[i - sortedLength] = -sortedLength;
+            }
+        }
+        for (int i = 0; i < size + 1; i++) {
+            suffixes[groups[i]] = i;
+        }
+        return suffixes;
+    }
+
+    /**
+     * Refines a group of suffixes by their rank {@code h} positions ahead.
+     * <p>An explicit task stack keeps the recursive algorithm's order without risking deep recursion.</p>
+     */
+    private static void split(int[] suffixes, int[] groups, int groupStart, int groupLength, int h) {
+        int[] tasks = new int[3 * 32];
+        int taskCount = 0;
+        tasks[taskCount++] = TASK_SPLIT;
+        tasks[taskCount++] = groupStart;
+        tasks[taskCount++] = groupLength;
+        while (taskCount > 0) {
+            int length = tasks[--taskCount];
+            int start = tasks[--taskCount];
+            int task = tasks[--taskCount];
+            if (task == TASK_ASSIGN) {
+                // here length is the exclusive end of the group
+                for (int i = start; i < length; i++) {
+                    groups[suffixes[i]] = length - 1;
+                }
+                if (start == length - 1) {
+                    suffixes[start] = -1;
+                }
+                continue;
+            }
+            if (length < INSERTION_SORT_LIMIT) {
+                int j;
+                for (int k = start; k < start + length; k += j) {
+                    j = 1;
+                    int x = groups[suffixes[k] + h];
+                    for (int i = 1; k + i < start + length; i++) {
+                        int value = groups[suffixes[k + i] + h];
+                        if (value < x) {
+                            x = value;
+                            j = 0;
+                        }
+                        if (value == x) {
+                            swap(suffixes, k + j, k + i);
+                            j++;
+                        }
+                    }
+                    for (int i = 0; i < j; i++) {
+                        groups[suffixes[k + i]] = k + j - 1;
+                    }
+                    if (j == 1) {
+                        suffixes[k] = -1;
+                    }
+                }
+                continue;
+            }
+            // three-way partition around the middle element's rank
+            int x = groups[suffixes[start + length / 2] + h];
+            int lessEnd = start;
+            int equalEnd;
+            int equalCount = 0;
+            for (int i = start; i < start + length; i++) {
+                int value = groups[suffixes[i] + h];
+                if (value < x) {
+                    lessEnd++;
+                } else if (value == x) {
+                    equalCount++;
+                }
+            }
+            equalEnd = lessEnd + equalCount;
+            int i = start;
+            int j = 0;
+            int k = 0;
+            while (i < lessEnd) {
+                int value = groups[suffixes[i] + h];
+                if (value < x) {
+                    i++;
+                } else if (value == x) {
+                    swap(suffixes, i, lessEnd + j);
+                    j++;
+                } else {
+                    swap(suffixes, i, equalEnd + k);
+                    k++;
+                }
+            }
+            while (lessEnd + j < equalEnd) {
+                if (groups[suffixes[lessEnd + j] + h] == x) {
+                    j++;
+                } else {
+                    swap(suffixes, lessEnd + j, equalEnd + k);
+                    k++;
+                }
+            }
+            // tasks run in reverse order of pushing: lower part, equal part, upper part
+            if (tasks.length < taskCount + 9) {
+                tasks = Arrays.copyOf(tasks, 2 * tasks.length);
+            }
+            if (start + length > equalEnd) {
+                tasks[taskCount++] = TASK_SPLIT;
+                tasks[taskCount++] = equalEnd;
+                tasks[taskCount++] = start + length - equalEnd;
+            }
+            tasks[taskCount++] = TASK_ASSIGN;
+            tasks[taskCount++] = lessEnd;
+            tasks[taskCount++] = equalEnd;
+            if (lessEnd > start) {
+                tasks[taskCount++] = TASK_SPLIT;
+                tasks[taskCount++] = start;
+                tasks[taskCount++] = lessEnd - start;
+            }
+        }
+    }
+
+    private static void swap(int[] array, int a, int b) {
+        int tmp = array[a];
+        array[a] = array[b];
+        array[b] = tmp;
+    }
+}
@@ -0,0 +1,77 @@
+package space.kepler_17c.selfupdater;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Cooperative cancellation of an asynchronous update, checked between jar entries.
+ * <p>
+ *     An asynchronous update makes its cancellation current for its thread via {@link #begin(BooleanSupplier)}.
+ *     {@link JarIndex} and {@link JarWriter} pick up the current cancellation when they are created
+ *     and check it before each entry they read or write, from any thread.
+ *     Tasks on other threads which may create either of them {@link #attach()} the cancellation first.
+ *     Outside an asynchronous update, {@link #current()} returns an instance which is never cancelled.
+ * </p>
+ */
+final class Cancellation {
+    private static final ThreadLocal<Cancellation> CURRENT = new ThreadLocal<>();
+    private static final Cancellation NONE = new Cancellation(() -> false);
+
+    private final BooleanSupplier cancelled;
+
+    private Cancellation(BooleanSupplier cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Makes the cancellation current for the current thread, until {@link #end()} is called.
+     *
+     * @param cancelled Whether the update was cancelled, e.g. {@link java.util.concurrent.Future#isCancelled()}.
+     */
+    static Cancellation begin(BooleanSupplier cancelled) {
+        Cancellation cancellation = new Cancellation(cancelled);
+        CURRENT.set(cancellation);
+        return cancellation;
+    }
+
+    static Cancellation current() {
+        Cancellation cancellation = CURRENT.get();
+        return cancellation == null ? NONE : cancellation;
+    }
+
+    void end() {
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Makes the cancellation current for the current thread as well, e.g. for a task on a pool thread.
+     *
+     * @return The cancellation current before, to be passed to {@link #restore(Cancellation)} afterwards.
+     */
+    Cancellation attach() {
+        Cancellation previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    /**
+     * @param previous The result of {@link #attach()}.
+     */
+    static void restore(Cancellation previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * @throws SelfUpdaterException If the update was cancelled.
+     */
+    void check() throws SelfUpdaterException {
+        if (cancelled.getAsBoolean()) {
+            throw new SelfUpdaterException("The update was cancelled.");
+        }
+    }
+}
@@ -0,0 +1,574 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delta for class files, which compensates for shifted constant pool indices.
+ * <p>
+ *     A small change to a class, like a new string constant, often renumbers most of its constant pool.
+ *     Every instruction, field, method and attribute referring to a moved entry changes with it,
+ *     which scatters differences all over the file.
+ * </p>
+ * <p>
+ *     This codec first encodes the constant pool with {@link BsDiffCodec}.
+ *     Entries of both pools are then matched by their resolved content,
+ *     and all known constant pool references in the rest of the old class are rewritten to the new numbering.
+ *     Only the difference between this prediction and the actual new class remains for {@link BsDiffCodec}.
+ *     As the matching only depends on both pools, applying the delta repeats it exactly.
+ * </p>
+ * <p>
+ *     Deltas consist of the constant pool delta's length as big-endian {@code int},
+ *     the constant pool delta and the delta of the remaining class file.
+ * </p>
+ */
+final class ClassFileCodec implements DeltaCodec {
+    private static final String CLASS_FILE_SUFFIX = ".class";
+    private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+    private static final int POOL_START = 10;
+
+    @Override
+    public String directory() {
+        return DiffFormatConstantsV4.CLASSES_DIR;
+    }
+
+    @Override
+    public boolean createDelta(JarIndex oldJar, JarIndex newJar, String path, OutputStream delta) throws IOException {
+        if (!path.endsWith(CLASS_FILE_SUFFIX)
+                || oldJar.size(path) > BsDiffCodec.MAX_FILE_SIZE
+                || newJar.size(path) > BsDiffCodec.MAX_FILE_SIZE) {
+            return false;
+        }
+        byte[] oldData;
+        byte[] newData;
+        try (InputStream oldIn = oldJar.open(path);
+                InputStream newIn = newJar.open(path)) {
+            oldData = oldIn.readAllBytes();
+            newData = newIn.readAllBytes();
+        }
+        ConstantPool oldPool;
+        ConstantPool newPool;
+        byte[] prediction;
+        try {
+            oldPool = new ConstantPool(oldData);
+            newPool = new ConstantPool(newData);
+            prediction = predictBody(oldData, oldPool, newPool);
+        } catch (SelfUpdaterException e) {
+            // not a class file after all
+            return false;
+        }
+        byte[] poolDelta = BsDiffCodec.diff(
+                Arrays.copyOf(oldData, oldPool.end), Arrays.copyOf(newData, newPool.end));
+        byte[] bodyDelta =
+                BsDiffCodec.diff(prediction, Arrays.copyOfRange(newData, newPool.end, newData.length));
+        DataOutputStream dataOut = new DataOutputStream(delta);
+        dataOut.writeInt(poolDelta.length);
+        dataOut.write(poolDelta);
+        dataOut.write(bodyDelta);
+        dataOut.flush();
+        return true;
+    }
+
+    @Override
+    public void applyDelta(JarIndex jar, String path, InputStream delta, OutputStream out) throws IOException {
+        byte[] oldData;
+        try (InputStream oldIn = jar.open(path)) {
+            oldData = oldIn.readAllBytes();
+        }
+        DataInputStream dataIn = new DataInputStream(delta);
+        int poolDeltaLength = dataIn.readInt();
+        if (poolDeltaLength < 0) {
+            throw new SelfUpdaterException("Class file delta has an invalid header: " + path);
+        }
+        byte[] poolDelta = dataIn.readNBytes(poolDeltaLength);
+        byte[] bodyDelta = dataIn.readAllBytes();
+        try {
+            ConstantPool oldPool = new ConstantPool(oldData);
+            ByteArrayOutputStream newPoolData = new ByteArrayOutputStream();
+            BsDiffCodec.patch(Arrays.copyOf(oldData, oldPool.end), poolDelta, newPoolData);
+            ConstantPool newPool = new ConstantPool(newPoolData.toByteArray());
+            byte[] prediction = predictBody(oldData, oldPool, newPool);
+            newPoolData.writeTo(out);
+            BsDiffCodec.patch(prediction, bodyDelta, out);
+        } catch (SelfUpdaterException e) {
+            throw new SelfUpdaterException("Invalid class file: " + path, e);
+        }
+    }
+
+    /**
+     * Rewrites the constant pool references after the old constant pool to the new numbering.
+     *
+     * @return The old class file without its constant pool, with all known references remapped.
+     */
+    private static byte[] predictBody(byte[] oldData, ConstantPool oldPool, ConstantPool newPool)
+            throws SelfUpdaterException {
+        int[] indexMapping = oldPool.indexMapping(newPool);
+        ByteBuffer body = ByteBuffer.wrap(Arrays.copyOfRange(oldData, oldPool.end, oldData.length));
+        try {
+            new BodyRemapper(body, oldPool, indexMapping).remapClass();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new SelfUpdaterException("Malformed class file body.", e);
+        }
+        return body.array();
+    }
+
+    /**
+     * Constant pool of a class file, including the header in front of it.
+     */
+    private static final class ConstantPool {
+        private static final int UTF8 = 1;
+        private static final int INTEGER = 3;
+        private static final int FLOAT = 4;
+        private static final int LONG = 5;
+        private static final int DOUBLE = 6;
+        private static final int CLASS = 7;
+        private static final int STRING = 8;
+        private static final int FIELD_REF = 9;
+        private static final int METHOD_REF = 10;
+        private static final int INTERFACE_METHOD_REF = 11;
+        private static final int NAME_AND_TYPE = 12;
+        private static final int METHOD_HANDLE = 15;
+        private static final int METHOD_TYPE = 16;
+        private static final int DYNAMIC = 17;
+        private static final int INVOKE_DYNAMIC = 18;
+        private static final int MODULE = 19;
+        private static final int PACKAGE = 20;
+
+        private final ByteBuffer data;
+        private final int[] tags;
+        private final int[] offsets;
+        private final String[] keys;
+        private final int end;
+
+        private ConstantPool(byte[] classData) throws SelfUpdaterException {
+            data = ByteBuffer.wrap(classData);
+            try {
+                if (data.getInt(0) != CLASS_FILE_MAGIC) {
+                    throw new SelfUpdaterException("Missing class file magic.");
+                }
+                int count = Short.toUnsignedInt(data.getShort(POOL_START - Short.BYTES));
+                tags = new int[count];
+                offsets = new int[count];
+                keys = new String[count];
+                int position = POOL_START;
+                for (int i = 1; i < count; i++) {
+                    tags[i] = Byte.toUnsignedInt(data.get(position));
+                    offsets[i] = position + 1;
+                    position += 1
+                            + switch (tags[i]) {
+                                case UTF8 -> Short.BYTES + Short.toUnsignedInt(data.getShort(position + 1));
+                                case CLASS, STRING, METHOD_TYPE, MODULE, PACKAGE -> Short.BYTES;
+                                case METHOD_HANDLE -> Byte.BYTES + Short.BYTES;
+                                case INTEGER, FLOAT, FIELD_REF, METHOD_REF, INTERFACE_METHOD_REF -> 2 * Short.BYTES;
+                                case NAME_AND_TYPE, DYNAMIC, INVOKE_DYNAMIC -> 2 * Short.BYTES;
+                                case LONG, DOUBLE -> Long.BYTES;
+                                default -> throw new SelfUpdaterException("Unknown constant pool tag: " + tags[i]);
+                            };
+                    if (tags[i] == LONG || tags[i] == DOUBLE) {
+                        // these take two slots
+                        i++;
+                    }
+                }
+                if (position > classData.length) {
+                    throw new SelfUpdaterException("Truncated constant pool.");
+                }
+                end = position;
+            } catch (IndexOutOfBoundsException e) {
+                throw new SelfUpdaterException("Truncated constant pool.", e);
+            }
+        }
+
+        /**
+         * Finds each old entry's index in the new pool, by comparing the entries' resolved content.
+         *
+         * @return Mapping of old to new indices, {@code -1} for entries missing in the new pool.
+         */
+        private int[] indexMapping(ConstantPool newPool) throws SelfUpdaterException {
+            Map<String, Integer> newIndices = new HashMap<>();
+            for (int i = 1; i < newPool.tags.length; i++) {
+                if (newPool.tags[i] != 0) {
+                    newIndices.putIfAbsent(newPool.key(i, 0), i);
+                }
+            }
+            int[] mapping = new int[tags.length];
+            Arrays.fill(mapping, -1);
+            for (int i = 1; i < tags.length; i++) {
+                if (tags[i] != 0) {
+                    mapping[i] = newIndices.getOrDefault(key(i, 0), -1);
+                }
+            }
+            return mapping;
+        }
+
+        /**
+         * Describes an entry independently of its index and the indices of entries it refers to.
+         */
+        private String key(int index, int depth) throws SelfUpdaterException {
+            if (index <= 0 || index >= tags.length || tags[index] == 0 || depth > 4) {
+                throw new SelfUpdaterException("Invalid constant pool reference: " + index);
+            }
+            if (keys[index] != null) {
+                return keys[index];
+            }
+            int offset = offsets[index];
+            String key =
+                    switch (tags[index]) {
+                        case UTF8 -> utf8(index);
+                        case INTEGER, FLOAT -> Integer.toHexString(data.getInt(offset));
+                        case LONG, DOUBLE -> Long.toHexString(data.getLong(offset));
+                        case CLASS, STRING, METHOD_TYPE, MODULE, PACKAGE -> reference(offset, depth);
+                        case FIELD_REF, METHOD_REF, INTERFACE_METHOD_REF, NAME_AND_TYPE ->
+                            reference(offset, depth) + reference(offset + Short.BYTES, depth);
+                        case METHOD_HANDLE -> data.get(offset) + reference(offset + 1, depth);
+                        // the bootstrap method index refers to an attribute, not to the constant pool
+                        case DYNAMIC, INVOKE_DYNAMIC ->
+                            Short.toUnsignedInt(data.getShort(offset)) + reference(offset + Short.BYTES, depth);
+                        default -> throw new SelfUpdaterException("Unknown constant pool tag: " + tags[index]);
+                    };
+            keys[index] = tags[index] + ":" + key;
+            return keys[index];
+        }
+
+        private String reference(int offset, int depth) throws SelfUpdaterException {
+            String key = key(Short.toUnsignedInt(data.getShort(offset)), depth + 1);
+            return "(" + key.length() + ")" + key;
+        }
+
+        private String utf8(int index) {
+            int offset = offsets[index];
+            int length = Short.toUnsignedInt(data.getShort(offset));
+            // every byte becomes one char, so the key is exact even for malformed strings
+            return new String(data.array(), offset + Short.BYTES, length, StandardCharsets.ISO_8859_1);
+        }
+
+        private String utf8OrNull(int index) {
+            return index > 0 && index < tags.length && tags[index] == UTF8 ? utf8(index) : null;
+        }
+    }
+
+    /**
+     * Walks a class file's structure after the constant pool and remaps every constant pool reference it knows.
+     * <p>Unknown attributes are skipped, leaving their content to the byte level delta.</p>
+     */
+    private static final class BodyRemapper {
+        private final ByteBuffer body;
+        private final ConstantPool oldPool;
+        private final int[] indexMapping;
+
+        private BodyRemapper(ByteBuffer body, ConstantPool oldPool, int[] indexMapping) {
+            this.body = body;
+            this.oldPool = oldPool;
+            this.indexMapping = indexMapping;
+        }
+
+        private void remapClass() {
+            skip(Short.BYTES); // access flags
+            remap(); // this class
+            remap(); // super class
+            remapList();
+            for (int member = 0; member < 2; member++) {
+                // fields, then methods
+                int count = u2();
+                for (int i = 0; i < count; i++) {
+                    skip(Short.BYTES); // access flags
+                    remap(); // name
+                    remap(); // descriptor
+                    remapAttributes();
+                }
+            }
+            remapAttributes();
+        }
+
+        private void remapAttributes() {
+            int count = u2();
+            for (int i = 0; i < count; i++) {
+                String name = oldPool.utf8OrNull(Short.toUnsignedInt(body.getShort(body.position())));
+                remap();
+                int length = body.getInt();
+                int end = body.position() + length;
+                if (length < 0 || end > body.limit()) {
+                    throw new IllegalArgumentException("Invalid attribute length: " + length);
+                }
+                remapAttribute(name == null ? "" : name, end);
+                body.position(end);
+            }
+        }
+
+        private void remapAttribute(String name, int end) {
+            switch (name) {
+                case "ConstantValue", "Signature", "SourceFile", "NestHost", "ModuleMainClass" -> remap();
+                case "Exceptions", "NestMembers", "PermittedSubclasses" -> remapList();
+                case "Code" -> remapCode();
+                case "StackMapTable" -> remapStackMapTable();
+                case "InnerClasses" -> {
+                    int count = u2();
+                    for (int i = 0; i < count; i++) {
+                        remap(); // inner class
+                        remap(); // outer class
+                        remap(); // inner name
+                        skip(Short.BYTES); // access flags
+                    }
+                }
+                case "EnclosingMethod" -> {
+                    remap(); // class
+                    remap(); // method
+                }
+                case "LocalVariableTable", "LocalVariableTypeTable" -> {
+                    int count = u2();
+                    for (int i = 0; i < count; i++) {
+                        skip(2 * Short.BYTES); // start and length
+                        remap(); // name
+                        remap(); // descriptor or signature
+                        skip(Short.BYTES); // slot
+                    }
+                }
+                case "BootstrapMethods" -> {
+                    int count = u2();
+                    for (int i = 0; i < count; i++) {
+                        remap(); // method handle
+                        remapList(); // arguments
+                    }
+                }
+                case "MethodParameters" -> {
+                    int count = Byte.toUnsignedInt(body.get());
+                    for (int i = 0; i < count; i++) {
+                        remap(); // name
+                        skip(Short.BYTES); // access flags
+                    }
+                }
+                case "RuntimeVisibleAnnotations", "RuntimeInvisibleAnnotations" -> remapAnnotations();
+                case "RuntimeVisibleParameterAnnotations", "RuntimeInvisibleParameterAnnotations" -> {
+                    int count = Byte.toUnsignedInt(body.get());
+                    for (int i = 0; i < count; i++) {
+                        remapAnnotations();
+                    }
+                }
+                case "AnnotationDefault" -> remapElementValue();
+                case "Record" -> {
+                    int count = u2();
+                    for (int i = 0; i < count; i++) {
+                        remap(); // name
+                        remap(); // descriptor
+                        remapAttributes();
+                    }
+                }
+                default -> body.position(end);
+            }
+        }
+
+        private void remapCode() {
+            skip(2 * Short.BYTES); // max stack and locals
+            int codeLength = body.getInt();
+            int codeStart = body.position();
+            int codeEnd = codeStart + codeLength;
+            if (codeLength < 0 || codeEnd > body.limit()) {
+                throw new IllegalArgumentException("Invalid code length: " + codeLength);
+            }
+            while (body.position() < codeEnd) {
+                int opcode = Byte.toUnsignedInt(body.get());
+                switch (opcode) {
+                    case 0x12 -> remapByte(); // ldc
+                    case 0x13, 0x14 -> remap(); // ldc_w, ldc2_w
+                    case 0xb2, 0xb3, 0xb4, 0xb5 -> remap(); // field access
+                    case 0xb6, 0xb7, 0xb8 -> remap(); // invokevirtual, invokespecial, invokestatic
+                    case 0xb9, 0xba -> {
+                        // invokeinterface, invokedynamic
+                        remap();
+                        skip(2);
+                    }
+                    case 0xbb, 0xbd, 0xc0, 0xc1 -> remap(); // new, anewarray, checkcast, instanceof
+                    case 0xc5 -> {
+                        // multianewarray
+                        remap();
+                        skip(1);
+                    }
+                    case 0xaa -> {
+                        // tableswitch
+                        skipSwitchPadding(codeStart);
+                        skip(4);
+                        int low = body.getInt();
+                        int high = body.getInt();
+                        skip(4 * (high - low + 1));
+                    }
+                    case 0xab -> {
+                        // lookupswitch
+                        skipSwitchPadding(codeStart);
+                        skip(4);
+                        skip(8 * body.getInt());
+                    }
+                    case 0xc4 -> skip(Byte.toUnsignedInt(body.get()) == 0x84 ? 4 : 2); // wide
+                    default -> skip(operandLength(opcode));
+                }
+            }
+            body.position(codeEnd);
+            int exceptionCount = u2();
+            for (int i = 0; i < exceptionCount; i++) {
+                skip(3 * Short.BYTES); // start, end and handler
+                remap(); // catch type
+            }
+            remapAttributes();
+        }
+
+        private void remapStackMapTable() {
+            int count = u2();
+            for (int i = 0; i < count; i++) {
+                int frameType = Byte.toUnsignedInt(body.get());
+                if (frameType < 64) {
+                    continue;
+                } else if (frameType < 128) {
+                    remapVerificationType();
+                } else if (frameType == 247) {
+                    skip(Short.BYTES);
+                    remapVerificationType();
+                } else if (frameType >= 248 && frameType <= 251) {
+                    skip(Short.BYTES);
+                } else if (frameType >= 252 && frameType <= 254) {
+                    skip(Short.BYTES);
+                    for (int j = 0; j < frameType - 251; j++) {
+                        remapVerificationType();
+                    }
+                } else if (frameType == 255) {
+                    skip(Short.BYTES);
+                    for (int part = 0; part < 2; part++) {
+                        // locals, then stack
+                        int typeCount = u2();
+                        for (int j = 0; j < typeCount; j++) {
+                            remapVerificationType();
+                        }
+                    }
+                } else {
+                    throw new IllegalArgumentException("Invalid stack map frame type: " + frameType);
+                }
+            }
+        }
+
+        private void remapVerificationType() {
+            int tag = Byte.toUnsignedInt(body.get());
+            if (tag == 7) {
+                remap(); // object type
+            } else if (tag == 8) {
+                skip(Short.BYTES); // offset of uninitialised object
+            }
+        }
+
+        private void remapAnnotations() {
+            int count = u2();
+            for (int i = 0; i < count; i++) {
+                remapAnnotation();
+            }
+        }
+
+        private void remapAnnotation() {
+            remap(); // type
+            int pairCount = u2();
+            for (int i = 0; i < pairCount; i++) {
+                remap(); // name
+                remapElementValue();
+            }
+        }
+
+        private void remapElementValue() {
+            int tag = Byte.toUnsignedInt(body.get());
+            switch (tag) {
+                case 'B', 'C', 'D', 'F', 'I', 'J', 'S', 'Z', 's', 'c' -> remap();
+                case 'e' -> {
+                    remap(); // type
+                    remap(); // constant name
+                }
+                case '@' -> remapAnnotation();
+                case '[' -> {
+                    int count = u2();
+                    for (int i = 0; i < count; i++) {
+                        remapElementValue();
+                    }
+                }
+                default -> throw new IllegalArgumentException("Invalid element value tag: " + tag);
+            }
+        }
+
+        private void remapList() {
+            int count = u2();
+            for (int i = 0; i < count; i++) {
+                remap();
+            }
+        }
+
+        /**
+         * Rewrites the reference at the current position, if the entry is present in the new pool.
+         */
+        private void remap() {
+            int index = Short.toUnsignedInt(body.getShort(body.position()));
+            if (index < indexMapping.length && indexMapping[index] >= 0) {
+                body.putShort((short) indexMapping[index]);
+            } else {
+                skip(Short.BYTES);
+            }
+        }
+
+        /**
+         * Rewrites a single byte reference, as long as the new index still fits into it.
+         */
+        private void remapByte() {
+            int index = Byte.toUnsignedInt(body.get(body.position()));
+            if (index < indexMapping.length && indexMapping[index] >= 0 && indexMapping[index] <= 0xFF) {
+                body.put((byte) indexMapping[index]);
+            } else {
+                skip(Byte.BYTES);
+            }
+        }
+
+        private int u2() {
+            return Short.toUnsignedInt(body.getShort());
+        }
+
+        private void skip(int length) {
+            if (length < 0) {
+                throw new IllegalArgumentException("Negative length: " + length);
+            }
+            body.position(body.position() + length);
+        }
+
+        private void skipSwitchPadding(int codeStart) {
+            skip((4 - (body.position() - codeStart) % 4) % 4);
+        }
+
+        private static int operandLength(int opcode) {
+            if (opcode <= 0x0f
+                    || (opcode >= 0x1a && opcode <= 0x35)
+                    || (opcode >= 0x3b && opcode <= 0x83)
+                    || (opcode >= 0x85 && opcode <= 0x98)
+                    || (opcode >= 0xac && opcode <= 0xb1)
+                    || opcode == 0xbe
+                    || opcode == 0xbf
+                    || opcode == 0xc2
+                    || opcode == 0xc3) {
+                return 0;
+            } else if (opcode == 0x10
+                    || (opcode >= 0x15 && opcode <= 0x19)
+                    || (opcode >= 0x36 && opcode <= 0x3a)
+                    || opcode == 0xa9
+                    || opcode == 0xbc) {
+                return 1;
+            } else if (opcode == 0x11
+                    || opcode == 0x84
+                    || (opcode >= 0x99 && opcode <= 0xa8)
+                    || opcode == 0xc6
+                    || opcode == 0xc7) {
+                return 2;
+            } else if (opcode == 0xc8 || opcode == 0xc9) {
+                return 4;
+            }
+            throw new IllegalArgumentException("Invalid opcode: " + opcode);
+        }
+    }
+}
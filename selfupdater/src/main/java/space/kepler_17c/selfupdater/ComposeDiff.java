@@ -0,0 +1,500 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import space.kepler_17c.selfupdater.FileUtils.DiffMetaData;
+import space.kepler_17c.selfupdater.JarWriter.Source;
+import space.kepler_17c.selfupdater.MiscUtils.Tuple2;
+
+/**
+ * Merges a chain of diffs into a single diff from the first diff's old version to the last diff's new version.
+ * <p>
+ *     The diffs are resolved symbolically, without writing any intermediate version:
+ *     each path of the composed tree is traced back to its origin,
+ *     which is either a file of the old version, a file stored in one of the diffs or a delta applied to an origin.
+ *     Chained moves collapse to a single move, files added and deleted again vanish
+ *     and files overwritten by later diffs only keep their last version.
+ *     Deletions are only kept for paths of the old version, which are known from the old version itself
+ *     or from the first diff's manifest. Without either, all deletions are kept, which is harmless,
+ *     because deleting a missing path has no effect.
+ *     Like an empty diff, a composition without any changes is rejected.
+ * </p>
+ * <p>
+ *     Deltas are kept as they are if they apply to an unmoved file of the old version
+ *     and their diff uses the composed diff's format.
+ *     All other deltas, e.g. deltas of files stored in an earlier diff, are reconstructed and stored as whole files.
+ *     Reconstruction only needs the old version if a delta ultimately applies to one of its files.
+ * </p>
+ * <p>
+ *     Given the old version, the resolved tree can also be written as the newest version directly,
+ *     which applies the whole chain at once.
+ * </p>
+ */
+final class ComposeDiff {
+    private static final String COMPOSED_SUFFIX = "-composed";
+    private static final String CONTENT_FILE_NAME = "content.jar";
+
+    private final JarIndex baseJar;
+    private final List<JarIndex> diffs;
+    private final List<DiffMetaData> metaData = new ArrayList<>();
+    // explicitly known state of the composed tree, all other paths are unchanged files of the old version
+    private final NavigableMap<String, Origin> tree = new TreeMap<>();
+    private MetaVersion metaVersion;
+    private HashAlgorithm hashAlgorithm;
+    // newest format of all diffs
+    private int version;
+    private DiffManifest firstManifest;
+
+    /**
+     * @param baseJar The oldest version, {@code null} if it isn't available.
+     * @param diffs   The diffs, from oldest to newest.
+     */
+    ComposeDiff(JarIndex baseJar, List<JarIndex> diffs) {
+        this.baseJar = baseJar;
+        this.diffs = diffs;
+    }
+
+    /**
+     * Writes the composed diff, using the newest format of the given diffs.
+     *
+     * @param diffPaths Locations of the diffs, from oldest to newest.
+     * @param baseJar   Location of the oldest version, {@code null} if it isn't available.
+     * @param outputDir Directory where the diff shall be written to.
+     *
+     * @return The location of the composed diff.
+     *
+     * @throws SelfUpdaterException If the diffs don't form a chain or use different hashes,
+     * or if a delta has to be reconstructed from the oldest version, but it isn't given.
+     */
+    static Path compose(List<Path> diffPaths, Path baseJar, Path outputDir) throws IOException {
+        if (diffPaths == null || diffPaths.isEmpty() || outputDir == null || !Files.isDirectory(outputDir)) {
+            throw new SelfUpdaterException("At least one diff and an existing output directory are required.");
+        }
+        Path result = outputDir.resolve(
+                FileUtils.getStrippedFileName(diffPaths.get(0)) + COMPOSED_SUFFIX + "." + FileUtils.DIFF_FILE_TYPE);
+        List<JarIndex> diffs = new ArrayList<>();
+        JarIndex base = null;
+        try {
+            for (Path diffPath : diffPaths) {
+                diffs.add(JarIndex.open(diffPath));
+            }
+            base = baseJar == null ? null : JarIndex.open(baseJar);
+            new ComposeDiff(base, diffs).write(result);
+        } catch (IOException e) {
+            Files.deleteIfExists(result);
+            throw e;
+        } finally {
+            for (JarIndex diff : diffs) {
+                diff.close();
+            }
+            if (base != null) {
+                base.close();
+            }
+        }
+        return result;
+    }
+
+    private void write(Path result) throws IOException {
+        checkVersions();
+        verifyHashes();
+        resolve();
+        DiffMetaData first = metaData.get(0);
+        DiffMetaData last = metaData.get(metaData.size() - 1);
+        DiffManifest manifest = firstManifest == null ? null : firstManifest.withSameOld();
+        List<DeltaCodec> codecs = DiffFormat.getFormatByVersion(version).codecs();
+        NavigableMap<String, Source> diffData = diffData(codecs, manifest);
+        try (JarWriter writer = new JarWriter(result, FileUtils.DIFF_DATA_DIR, metaVersion, hashAlgorithm)) {
+            writer.putTree(diffData);
+            FileUtils.writeMandatoryMetaFiles(
+                    writer,
+                    writer.finishHash(),
+                    last.newHash(),
+                    first.oldHash(),
+                    Integer.toString(version),
+                    metaVersion,
+                    hashAlgorithm);
+            if (manifest != null) {
+                writer.putFile(FileUtils.DIFF_META_DIR + FileUtils.META_MANIFEST, manifest.toBytes());
+            }
+        }
+    }
+
+    /**
+     * Reads the meta data of all diffs and checks that they use known formats and the same hashes.
+     */
+    void checkVersions() throws SelfUpdaterException {
+        for (JarIndex diff : diffs) {
+            metaData.add(FileUtils.getDiffMetaData(diff));
+        }
+        DiffMetaData first = metaData.get(0);
+        metaVersion = MetaVersion.getByValue(first.metaVersion());
+        hashAlgorithm = HashAlgorithm.getByValue(first.hashAlgorithm());
+        for (DiffMetaData diffMetaData : metaData) {
+            if (!diffMetaData.metaVersion().equals(first.metaVersion())
+                    || !diffMetaData.hashAlgorithm().equals(first.hashAlgorithm())) {
+                throw new SelfUpdaterException("Diffs with different hashes can't be composed.");
+            }
+            version = Math.max(version, parseVersion(diffMetaData.version()));
+        }
+    }
+
+    /**
+     * Checks that the diffs form a chain, that they are intact and that they apply to the oldest version, if given.
+     */
+    void verifyHashes() throws IOException {
+        for (int i = 0; i < diffs.size(); i++) {
+            DiffMetaData diffMetaData = metaData.get(i);
+            if (i > 0 && !diffMetaData.oldHash().equals(metaData.get(i - 1).newHash())) {
+                throw new SelfUpdaterException("Diff " + i + " doesn't apply to the result of its predecessor.");
+            }
+            if (!diffMetaData.diffHash().equals(
+                    metaVersion.hashTree(diffs.get(i), FileUtils.DIFF_DATA_DIR, hashAlgorithm))) {
+                throw new SelfUpdaterException("Hash of diff " + i + " doesn't match.");
+            }
+        }
+        firstManifest = DiffManifest.read(diffs.get(0), hashAlgorithm);
+        if (baseJar != null
+                && !(firstManifest != null
+                        ? firstManifest.matchesOld(baseJar)
+                        : metaData.get(0).oldHash().equals(metaVersion.hashTree(baseJar, "", hashAlgorithm)))) {
+            throw new SelfUpdaterException("The given jar isn't the version the first diff applies to.");
+        }
+    }
+
+    /**
+     * Resolves the origins of all paths changed by any of the diffs.
+     */
+    void resolve() throws IOException {
+        for (int i = 0; i < diffs.size(); i++) {
+            resolve(diffs.get(i), parseVersion(metaData.get(i).version()));
+        }
+    }
+
+    /**
+     * Resolves the tree of the newest version, in the layout {@link ApplyDiff#applyDiff(JarIndex, JarIndex)} returns.
+     * <p>
+     *     Reconstructed files are verified against their diff's manifest while writing, if it has one.
+     *     Requires the oldest version.
+     * </p>
+     */
+    NavigableMap<String, Source> updatedTree() {
+        NavigableMap<String, Source> updatedTree = new TreeMap<>();
+        for (String path : baseJar.paths()) {
+            if (!tree.containsKey(path)) {
+                updatedTree.put(path, baseJar.isDirectory(path) ? null : new Source(baseJar, path));
+            }
+        }
+        for (Map.Entry<String, Origin> entry : tree.entrySet()) {
+            Origin origin = entry.getValue();
+            if (origin instanceof Base base) {
+                updatedTree.put(entry.getKey(), new Source(baseJar, base.path()));
+            } else if (origin instanceof Data data) {
+                updatedTree.put(entry.getKey(), new Source(data.diff(), data.path()));
+            } else if (origin instanceof Delta delta) {
+                updatedTree.put(entry.getKey(), new Source(out -> writeContent(delta, out)));
+            } else if (origin == Directory.INSTANCE) {
+                updatedTree.put(entry.getKey(), null);
+            }
+        }
+        for (String path : new ArrayList<>(updatedTree.keySet())) {
+            for (String parent : FileUtils.parentPaths(path)) {
+                updatedTree.putIfAbsent(parent, null);
+            }
+        }
+        return updatedTree;
+    }
+
+    /**
+     * @return Hash of the newest version.
+     */
+    String newHash() {
+        return metaData.get(metaData.size() - 1).newHash();
+    }
+
+    MetaVersion metaVersion() {
+        return metaVersion;
+    }
+
+    HashAlgorithm hashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /**
+     * Applies a diff to the composed tree, in the same order as {@link ApplyDiff}.
+     */
+    private void resolve(JarIndex diff, int version) throws IOException {
+        DiffManifest manifest = DiffManifest.read(diff, hashAlgorithm);
+        // deltas and moves refer to the previous tree, so they are resolved first
+        NavigableMap<String, Origin> patched = new TreeMap<>();
+        for (DeltaCodec codec : DiffFormat.getFormatByVersion(version).codecs()) {
+            String deltaRoot = FileUtils.DIFF_DATA_DIR + codec.directory() + "/";
+            for (String deltaPath : diff.subPaths(deltaRoot)) {
+                if (diff.isDirectory(deltaPath)) {
+                    continue;
+                }
+                String path = deltaPath.substring(deltaRoot.length());
+                String digest = manifest == null ? null : manifest.getReconstructed(path);
+                patched.put(path, new Delta(diff, version, deltaPath, codec, path, existingFile(path), digest));
+            }
+        }
+        NavigableMap<String, Origin> moved = new TreeMap<>();
+        List<String> movedLines = readLines(diff, DiffFormatConstantsV1.META_MOVED);
+        for (int i = 0; i + 1 < movedLines.size(); i += 2) {
+            moved.put(movedLines.get(i + 1), existingFile(movedLines.get(i)));
+        }
+        for (String path : readLines(diff, DiffFormatConstantsV1.META_DELETED)) {
+            tree.put(path, Absent.INSTANCE);
+        }
+        String diffTreeRoot = FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.DATA_DIR + "/";
+        List<String> changedPaths = new ArrayList<>();
+        for (String path : diff.subPaths(diffTreeRoot)) {
+            String treePath = path.substring(diffTreeRoot.length());
+            tree.put(treePath, diff.isDirectory(path) ? Directory.INSTANCE : new Data(diff, path));
+            changedPaths.add(treePath);
+        }
+        tree.putAll(patched);
+        tree.putAll(moved);
+        changedPaths.addAll(moved.keySet());
+        // e.g. files moved to deleted directories
+        for (String path : changedPaths) {
+            for (String parent : FileUtils.parentPaths(path)) {
+                if (lookup(parent) == Absent.INSTANCE) {
+                    tree.put(parent, Directory.INSTANCE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the composed diff's data directory from the resolved tree.
+     *
+     * @param manifest Receives the digests of reconstructed files, {@code null} if the diff has no manifest.
+     */
+    private NavigableMap<String, Source> diffData(List<DeltaCodec> codecs, DiffManifest manifest)
+            throws SelfUpdaterException {
+        List<String> changedPaths = new ArrayList<>();
+        List<String> deletedFiles = new ArrayList<>();
+        List<Tuple2<String, String>> movedFiles = new ArrayList<>();
+        NavigableMap<String, Source> diffData = new TreeMap<>();
+        String diffTreeRoot = FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.DATA_DIR + "/";
+        diffData.put(FileUtils.DIFF_DATA_DIR, null);
+        diffData.put(diffTreeRoot, null);
+        for (DeltaCodec codec : codecs) {
+            diffData.put(FileUtils.DIFF_DATA_DIR + codec.directory() + "/", null);
+        }
+        for (Map.Entry<String, Origin> entry : tree.entrySet()) {
+            String path = entry.getKey();
+            Origin origin = entry.getValue();
+            String root = diffTreeRoot;
+            Source source = null;
+            if (origin == Absent.INSTANCE) {
+                if (existsInOldest(path)) {
+                    deletedFiles.add(path);
+                }
+                continue;
+            } else if (origin instanceof Base base) {
+                if (!base.path().equals(path)) {
+                    movedFiles.add(new Tuple2<>(base.path(), path));
+                }
+                continue;
+            } else if (origin instanceof Data data) {
+                source = new Source(data.diff(), data.path());
+            } else if (origin instanceof Delta delta) {
+                if (delta.version() == version && delta.previous().equals(new Base(path))) {
+                    root = FileUtils.DIFF_DATA_DIR + delta.codec().directory() + "/";
+                    source = new Source(delta.diff(), delta.deltaPath());
+                    if (manifest != null) {
+                        manifest.putReconstructed(path, delta.digest());
+                    }
+                } else if (baseJar == null && delta.needsBase()) {
+                    throw new SelfUpdaterException("Reconstructing a delta requires the oldest version: " + path);
+                } else {
+                    source = new Source(out -> writeContent(delta, out));
+                }
+            }
+            diffData.put(root + path, source);
+            changedPaths.add(path);
+            for (String parent : FileUtils.parentPaths(path)) {
+                diffData.putIfAbsent(root + parent, null);
+            }
+        }
+        // check for empty diff
+        if (changedPaths.isEmpty() && deletedFiles.isEmpty() && movedFiles.isEmpty()) {
+            throw new SelfUpdaterException("Composed diff is empty, because the diffs revert each other.");
+        }
+        movedFiles.sort(null);
+        ByteArrayOutputStream deletedFilesMeta = new ByteArrayOutputStream();
+        for (String line : deletedFiles) {
+            deletedFilesMeta.writeBytes((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        ByteArrayOutputStream movedFilesMeta = new ByteArrayOutputStream();
+        for (Tuple2<String, String> filePair : movedFiles) {
+            movedFilesMeta.writeBytes((filePair.a() + "\n" + filePair.b() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        diffData.put(FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.META_DELETED, bytesSource(deletedFilesMeta));
+        diffData.put(FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.META_MOVED, bytesSource(movedFilesMeta));
+        return diffData;
+    }
+
+    /**
+     * @return Whether the path is part of the oldest version,
+     * {@code true} if that is unknown, because neither the oldest version nor a manifest describing it are given.
+     */
+    private boolean existsInOldest(String path) {
+        if (baseJar != null) {
+            return baseJar.contains(path);
+        }
+        return firstManifest == null || firstManifest.containsOld(path);
+    }
+
+    private Origin lookup(String path) {
+        return tree.getOrDefault(path, new Base(path));
+    }
+
+    private Origin existingFile(String path) throws SelfUpdaterException {
+        Origin origin = lookup(path);
+        if (origin == Absent.INSTANCE || origin == Directory.INSTANCE || path.endsWith("/")) {
+            throw new SelfUpdaterException("Referenced file is missing in the previous version: " + path);
+        }
+        return origin;
+    }
+
+    /**
+     * Produces the content of a file of one of the resolved versions.
+     */
+    private void writeContent(Origin origin, OutputStream out) throws IOException {
+        if (origin instanceof Base base) {
+            try (InputStream inputStream = baseJar.open(base.path())) {
+                inputStream.transferTo(out);
+            }
+        } else if (origin instanceof Data data) {
+            try (InputStream inputStream = data.diff().open(data.path())) {
+                inputStream.transferTo(out);
+            }
+        } else if (origin instanceof Delta delta) {
+            writeContent(delta, out);
+        }
+    }
+
+    /**
+     * Reconstructs a file and verifies it against the manifest of the delta's diff, if it has one.
+     */
+    private void writeContent(Delta delta, OutputStream out) throws IOException {
+        if (delta.digest() == null) {
+            reconstruct(delta, out);
+            return;
+        }
+        MessageDigest digest = hashAlgorithm.newDigest();
+        reconstruct(delta, new DigestOutputStream(out, digest));
+        if (!MessageDigest.isEqual(FileUtils.hexBytes(delta.digest()), digest.digest())) {
+            throw new SelfUpdaterException("Reconstructed file doesn't match the manifest: " + delta.path());
+        }
+    }
+
+    /**
+     * Applies a delta to its previous version, which is written to a temporary jar unless it is stored in one.
+     */
+    private void reconstruct(Delta delta, OutputStream out) throws IOException {
+        if (delta.previous() instanceof Base base) {
+            applyDelta(delta, baseJar, base.path(), out);
+        } else if (delta.previous() instanceof Data data) {
+            applyDelta(delta, data.diff(), data.path(), out);
+        } else {
+            Path tmpDir = FileUtils.createTmpDir();
+            try {
+                Path contentJar = tmpDir.resolve(CONTENT_FILE_NAME);
+                try (JarWriter writer = new JarWriter(contentJar, null)) {
+                    writer.putFile(delta.path(), previousOut -> writeContent(delta.previous(), previousOut));
+                }
+                try (JarIndex contentIndex = JarIndex.open(contentJar)) {
+                    applyDelta(delta, contentIndex, delta.path(), out);
+                }
+            } finally {
+                FileUtils.clearWorkingDirectory(tmpDir);
+            }
+        }
+    }
+
+    private static void applyDelta(Delta delta, JarIndex jar, String path, OutputStream out) throws IOException {
+        try (InputStream deltaStream = delta.diff().open(delta.deltaPath())) {
+            delta.codec().applyDelta(jar, path, deltaStream, out);
+        }
+    }
+
+    private static List<String> readLines(JarIndex diff, String metaFile) throws SelfUpdaterException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(diff.open(FileUtils.DIFF_DATA_DIR + metaFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            throw new SelfUpdaterException("Failed to read `" + metaFile + "`.", e);
+        }
+        return lines;
+    }
+
+    private static int parseVersion(String version) throws SelfUpdaterException {
+        if (version == null || !version.matches("[0-9]+") || !DiffFormat.hasVersion(Integer.parseInt(version))) {
+            throw new SelfUpdaterException("Version string doesn't represent a known version: " + version);
+        }
+        return Integer.parseInt(version);
+    }
+
+    private static Source bytesSource(ByteArrayOutputStream data) {
+        byte[] bytes = data.toByteArray();
+        return new Source(out -> out.write(bytes));
+    }
+
+    /**
+     * Where the content of a path in the composed tree comes from.
+     */
+    private sealed interface Origin permits Absent, Directory, Base, Data, Delta {}
+
+    private enum Absent implements Origin {
+        INSTANCE
+    }
+
+    private enum Directory implements Origin {
+        INSTANCE
+    }
+
+    /**
+     * A file or directory of the oldest version.
+     */
+    private record Base(String path) implements Origin {}
+
+    /**
+     * A file stored in a diff.
+     */
+    private record Data(JarIndex diff, String path) implements Origin {}
+
+    /**
+     * A delta applied to the file at {@code path} of the previous version.
+     *
+     * @param version Format of the diff containing the delta.
+     * @param digest  Digest of the reconstructed file from the diff's manifest, {@code null} if it has none.
+     */
+    private record Delta(
+            JarIndex diff, int version, String deltaPath, DeltaCodec codec, String path, Origin previous, String digest)
+            implements Origin {
+        boolean needsBase() {
+            return previous instanceof Base || previous instanceof Delta delta && delta.needsBase();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package space.kepler_17c.selfupdater;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Decides how the entries of written jars are compressed, based on their file extension.
+ * <p>
+ *     Each extension is either deflated at a chosen level or {@link ZipEntry#STORED}.
+ *     Files starting with known archive magic bytes are always stored, whatever their extension.
+ *     Files copied from another jar keep their compression, only content written anew follows the policy.
+ *     Instances are immutable, all {@code with} methods return a modified copy.
+ * </p>
+ *
+ * @see SelfUpdater#setCompressionPolicy(CompressionPolicy)
+ */
+public final class CompressionPolicy {
+    /**
+     * Deflates all files at {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public static final CompressionPolicy DEFAULT =
+            new CompressionPolicy(Deflater.DEFAULT_COMPRESSION, Map.of(), Set.of());
+
+    private final int defaultLevel;
+    private final Map<String, Integer> levels;
+    private final Set<String> storedExtensions;
+
+    private CompressionPolicy(int defaultLevel, Map<String, Integer> levels, Set<String> storedExtensions) {
+        this.defaultLevel = defaultLevel;
+        this.levels = levels;
+        this.storedExtensions = storedExtensions;
+    }
+
+    /**
+     * @param level Deflate level for all extensions without a level of their own,
+     *              from {@code 0} to {@code 9} or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public CompressionPolicy withDefaultLevel(int level) {
+        return new CompressionPolicy(checkLevel(level), levels, storedExtensions);
+    }
+
+    /**
+     * @param extension File extension without leading dot, e.g. {@code "class"}. Case is ignored.
+     * @param level     Deflate level for files with this extension,
+     *                  from {@code 0} to {@code 9} or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public CompressionPolicy withLevel(String extension, int level) {
+        String key = normalisedExtension(extension);
+        Map<String, Integer> newLevels = new HashMap<>(levels);
+        newLevels.put(key, checkLevel(level));
+        Set<String> newStoredExtensions = new HashSet<>(storedExtensions);
+        newStoredExtensions.remove(key);
+        return new CompressionPolicy(defaultLevel, Map.copyOf(newLevels), Set.copyOf(newStoredExtensions));
+    }
+
+    /**
+     * @param extension File extension without leading dot, e.g. {@code "png"}. Case is ignored.
+     *                  Files with this extension are stored without compression.
+     */
+    public CompressionPolicy withStored(String extension) {
+        String key = normalisedExtension(extension);
+        Map<String, Integer> newLevels = new HashMap<>(levels);
+        newLevels.remove(key);
+        Set<String> newStoredExtensions = new HashSet<>(storedExtensions);
+        newStoredExtensions.add(key);
+        return new CompressionPolicy(defaultLevel, Map.copyOf(newLevels), Set.copyOf(newStoredExtensions));
+    }
+
+    /**
+     * @param path Normalised path of a jar entry.
+     */
+    boolean isStored(String path) {
+        return storedExtensions.contains(extension(path));
+    }
+
+    /**
+     * @param path Normalised path of a jar entry.
+     *
+     * @return The deflate level, if the entry isn't stored.
+     */
+    int level(String path) {
+        return levels.getOrDefault(extension(path), defaultLevel);
+    }
+
+    private static String extension(String path) {
+        int nameStart = path.lastIndexOf('/') + 1;
+        int dot = path.lastIndexOf('.');
+        return dot < nameStart ? "" : path.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static String normalisedExtension(String extension) {
+        if (extension.startsWith(".") || extension.contains("/")) {
+            throw new IllegalArgumentException("Extension must not contain a dot prefix or slash: " + extension);
+        }
+        return extension.toLowerCase(Locale.ROOT);
+    }
+
+    private static int checkLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION
+                && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        }
+        return level;
+    }
+}
@@ -0,0 +1,101 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of a jar's files by content, to find files which are identical to a given one.
+ * <p>
+ *     Files are grouped by size and CRC-32, which are known from the central directory without reading any data.
+ *     A single file sharing both with a looked up file is compared directly.
+ *     If there are several, they are hashed with {@link XxHash64}, each file at most once,
+ *     and only those with the same digest are compared.
+ *     This keeps lookups near constant, even if thousands of files have the same size.
+ * </p>
+ */
+final class ContentIndex {
+    static final int READ_BUFFER_SIZE = 1 << 16; // 2^16 = 64 KiB
+
+    private final JarIndex jar;
+    private final Map<Key, List<String>> filesByKey = new HashMap<>();
+    private final Map<String, Long> digests = new HashMap<>();
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+    ContentIndex(JarIndex jar) {
+        this.jar = jar;
+        for (String path : jar.paths()) {
+            if (jar.isFile(path)) {
+                filesByKey
+                        .computeIfAbsent(new Key(jar.size(path), jar.crc(path)), key -> new ArrayList<>())
+                        .add(path);
+            }
+        }
+    }
+
+    /**
+     * Searches all indexed files with the same content as the given file.
+     *
+     * @param otherJar Jar containing the file.
+     * @param path     Normalised path of the file.
+     *
+     * @return Paths of all matching files in path order. Empty if there are none.
+     */
+    List<String> findAll(JarIndex otherJar, String path) throws IOException {
+        return findAll(otherJar, path, () -> digest(otherJar, path, readBuffer));
+    }
+
+    /**
+     * Searches all indexed files with the same content as a file of the new jar, sharing its digest across lookups.
+     *
+     * @see #findAll(JarIndex, String)
+     */
+    List<String> findAll(DiffTarget target, String path) throws IOException {
+        return findAll(target.index(), path, () -> target.contentDigest(path));
+    }
+
+    private List<String> findAll(JarIndex otherJar, String path, DigestSupplier otherDigest) throws IOException {
+        List<String> candidates = filesByKey.get(new Key(otherJar.size(path), otherJar.crc(path)));
+        if (candidates == null) {
+            return List.of();
+        }
+        if (candidates.size() == 1) {
+            String candidate = candidates.get(0);
+            return FileUtils.equalFiles(jar, candidate, otherJar, path) ? List.of(candidate) : List.of();
+        }
+        long digest = otherDigest.get();
+        List<String> matches = new ArrayList<>();
+        for (String candidate : candidates) {
+            Long candidateDigest = digests.get(candidate);
+            if (candidateDigest == null) {
+                candidateDigest = digest(jar, candidate, readBuffer);
+                digests.put(candidate, candidateDigest);
+            }
+            if (candidateDigest == digest && FileUtils.equalFiles(jar, candidate, otherJar, path)) {
+                matches.add(candidate);
+            }
+        }
+        return matches;
+    }
+
+    static long digest(JarIndex source, String path, byte[] readBuffer) throws IOException {
+        XxHash64 xxHash = new XxHash64();
+        try (InputStream inputStream = source.open(path)) {
+            int bytesCount;
+            while ((bytesCount = inputStream.read(readBuffer)) > 0) {
+                xxHash.update(readBuffer, 0, bytesCount);
+            }
+        }
+        return xxHash.digest();
+    }
+
+    private record Key(long size, long crc) {}
+
+    @FunctionalInterface
+    private interface DigestSupplier {
+        long get() throws IOException;
+    }
+}
@@ -1,30 +1,81 @@
 package space.kepler_17c.selfupdater;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
-import java.util.Stack;
 import java.util.TreeMap;
-import java.util.stream.Stream;
-import space.kepler_17c.selfupdater.FileUtils.WorkingDirectory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import space.kepler_17c.selfupdater.JarWriter.Source;
 import space.kepler_17c.selfupdater.MiscUtils.Tuple2;
+import space.kepler_17c.selfupdater.ZipCentralDirectory.RawEntry;
 
 interface CreateDiff {
-    Path createDiff(Path oldJar, Path newJar, Path outputDir) throws IOException;
+    Path createDiff(Path oldJar, Path newJar, Path outputDir, HashAlgorithm hashAlgorithm) throws IOException;
 
-    static Path v1(Path oldJar, Path newJar, Path outputDir) throws IOException {
+    /**
+     * Creates diffs from several old versions to the same new version.
+     * <p>
+     *     The new jar is indexed once and its hashes are shared by all diffs, which are created concurrently.
+     *     Diffs are named after their old jar, so the old jars' file names have to be distinct.
+     * </p>
+     *
+     * @param executor Runs the creation of each diff.
+     *
+     * @return The completed creation of each diff, in the order of the old jars.
+     * Failed creations hold their {@link IOException} as cause of the {@link CompletionException}.
+     */
+    static List<CompletableFuture<Path>> createAll(
+            List<Path> oldJars,
+            Path newJar,
+            Path outputDir,
+            DiffFormat diffFormat,
+            HashAlgorithm hashAlgorithm,
+            Executor executor)
+            throws IOException {
+        if (oldJars == null || newJar == null || outputDir == null || !Files.isRegularFile(newJar)) {
+            throw new IOException("Arguments are required to be non-null and the new jar has to be a file.");
+        }
+        Set<String> names = new HashSet<>();
+        for (Path oldJar : oldJars) {
+            if (oldJar != null && !names.add(FileUtils.getStrippedFileName(oldJar))) {
+                throw new SelfUpdaterException("Old jars with the same file name would yield the same diff: " + oldJar);
+            }
+        }
+        try (DiffTarget target = DiffTarget.open(newJar)) {
+            // hashed once up front, all diffs of the batch store the same hash
+            target.treeHash(diffFormat.metaVersion, hashAlgorithm);
+            List<CompletableFuture<Path>> futures = new ArrayList<>();
+            for (Path oldJar : oldJars) {
+                futures.add(CompletableFuture.supplyAsync(
+                        () -> {
+                            try {
+                                return create(oldJar, target, outputDir, diffFormat, hashAlgorithm);
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                        },
+                        executor));
+            }
+            // the target is closed afterwards, so all diffs have to be done, including the failed ones
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                    .exceptionally(e -> null)
+                    .join();
+            return futures;
+        }
+    }
+
+    static Path create(Path oldJar, Path newJar, Path outputDir, DiffFormat diffFormat, HashAlgorithm hashAlgorithm)
+            throws IOException {
         if (oldJar == null
                 || newJar == null
                 || outputDir == null
@@ -34,170 +85,229 @@ interface CreateDiff {
             throw new IOException(
                     "Arguments are required to be non-null and denote (in that order) a file, file, directory.");
         }
-        WorkingDirectory workingDirectory = FileUtils.prepareWorkingDirectory(oldJar, newJar, null);
-        // check for moved files
-        Map<Long, List<Path>> hashedFilesMap = new TreeMap<>();
-        FileVisitor<Path> hashingFileVisitor = new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                long size = attrs.size();
-                if (!hashedFilesMap.containsKey(size)) {
-                    hashedFilesMap.put(size, new ArrayList<>());
-                }
-                hashedFilesMap.get(size).add(file);
-                return super.visitFile(file, attrs);
-            }
-        };
-        Files.walkFileTree(workingDirectory.oldFiles, hashingFileVisitor);
+        try (DiffTarget target = DiffTarget.open(newJar)) {
+            return create(oldJar, target, outputDir, diffFormat, hashAlgorithm);
+        }
+    }
+
+    private static Path create(
+            Path oldJar, DiffTarget target, Path outputDir, DiffFormat diffFormat, HashAlgorithm hashAlgorithm)
+            throws IOException {
+        if (oldJar == null || outputDir == null || !Files.isRegularFile(oldJar) || !Files.isDirectory(outputDir)) {
+            throw new IOException(
+                    "Arguments are required to be non-null and denote (in that order) a file, directory.");
+        }
+        String version = diffFormat.version;
+        MetaVersion metaVersion = diffFormat.metaVersion;
+        // the first meta version predates the choice of algorithm
+        if (metaVersion == MetaVersion.V1 && hashAlgorithm != HashAlgorithm.DEFAULT) {
+            throw new SelfUpdaterException("Diff version " + version + " only supports " + HashAlgorithm.DEFAULT);
+        }
+        Path result = outputDir.resolve(FileUtils.getStrippedFileName(oldJar) + "." + FileUtils.DIFF_FILE_TYPE);
+        try (JarIndex oldIndex = JarIndex.open(oldJar)) {
+            create(oldIndex, target, result, version, metaVersion, hashAlgorithm, diffFormat.codecs(hashAlgorithm));
+        } catch (IOException e) {
+            Files.deleteIfExists(result);
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Writes a diff in the layout of version 1, extended by one delta directory per codec.
+     * <p>Changed files are stored as delta when one of the codecs yields a smaller entry than the whole file.</p>
+     */
+    private static void create(
+            JarIndex oldIndex,
+            DiffTarget target,
+            Path result,
+            String version,
+            MetaVersion metaVersion,
+            HashAlgorithm hashAlgorithm,
+            List<DeltaCodec> codecs)
+            throws IOException {
+        JarIndex newIndex = target.index();
+        FlightEvents.DiffComparisonEvent comparisonEvent = new FlightEvents.DiffComparisonEvent();
+        comparisonEvent.begin();
+        // check for moved files, preferring sources which don't remain in place
+        FlightEvents.MoveDetectionEvent moveEvent = new FlightEvents.MoveDetectionEvent();
+        moveEvent.begin();
+        ContentIndex oldContents = new ContentIndex(oldIndex);
+        int checkedFiles = 0;
         List<Tuple2<String, String>> movedFiles = new ArrayList<>();
-        FileVisitor<Path> comparingFileVisitor = new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                List<Path> matchingFiles = hashedFilesMap.get(attrs.size());
-                if (matchingFiles != null) {
-                    for (Path p : matchingFiles) {
-                        String relSrc = workingDirectory.oldFiles.relativize(p).toString();
-                        String relDest =
-                                workingDirectory.newFiles.relativize(file).toString();
-                        if (!relSrc.equals(relDest) && FileUtils.equalFiles(file, p)) {
-                            movedFiles.add(new Tuple2<>(relSrc, relDest));
-                            break;
-                        }
-                    }
-                }
-                return super.visitFile(file, attrs);
-            }
-        };
-        Files.walkFileTree(workingDirectory.newFiles, comparingFileVisitor);
         Set<String> movedDestFiles = new HashSet<>();
-        for (Tuple2<String, String> filePair : movedFiles) {
-            movedDestFiles.add(filePair.b());
-        }
-        // check for deleted/changed/new files
-        Stack<Path> oldFilesStack = new Stack<>();
-        Stack<Path> newFilesStack = new Stack<>();
-        FileUtils.pushFilesReversed(oldFilesStack, workingDirectory.oldFiles);
-        FileUtils.pushFilesReversed(newFilesStack, workingDirectory.newFiles);
-        Path oldFile;
-        Path newFile;
-        Path oldFileRel;
-        Path newFileRel;
-        Path diffFile;
-        List<String> deletedFiles = new ArrayList<>();
-        Set<String> encounteredOldDirs = new HashSet<>();
-        Set<String> encounteredNewDirs = new HashSet<>();
-        Path diffTreeRoot = workingDirectory.diffDataFiles.resolve(DiffFormatConstantsV1.DATA_DIR);
-        Files.createDirectories(diffTreeRoot);
-        while (true) {
-            // ensure top path denotes a file
-            while (!oldFilesStack.isEmpty() && Files.isDirectory(oldFilesStack.peek())) {
-                encounteredOldDirs.add(FileUtils.normalisedPathString(
-                        workingDirectory.oldFiles.relativize(oldFilesStack.peek()), true));
-                FileUtils.pushFilesReversed(oldFilesStack, oldFilesStack.pop());
-            }
-            while (!newFilesStack.isEmpty() && Files.isDirectory(newFilesStack.peek())) {
-                encounteredNewDirs.add(FileUtils.normalisedPathString(
-                        workingDirectory.newFiles.relativize(newFilesStack.peek()), true));
-                FileUtils.pushFilesReversed(newFilesStack, newFilesStack.pop());
-            }
-            // get references for comparison
-            oldFile = oldFilesStack.isEmpty() ? null : oldFilesStack.peek();
-            newFile = newFilesStack.isEmpty() ? null : newFilesStack.peek();
-            // both stacks empty => done
-            if (oldFile == null && newFile == null) {
-                break;
+        Set<String> unchangedFiles = new HashSet<>();
+        for (String path : newIndex.paths()) {
+            if (!newIndex.isFile(path)) {
+                continue;
             }
-            if (oldFile == null || newFile == null) {
-                // one stack is empty => handle remaining elements
-                if (oldFile == null) {
-                    // only [old] is empty => add all new files
-                    diffFile = workingDirectory.newFiles.relativize(newFile);
-                    if (!movedDestFiles.contains(diffFile.toString())) {
-                        diffFile = diffTreeRoot.resolve(diffFile);
-                        Files.createDirectories(diffFile.getParent());
-                        Files.copy(newFile, diffFile);
-                    }
-                    newFilesStack.pop();
-                } else {
-                    // only [new] is empty => mark all remaining as deleted
-                    diffFile = workingDirectory.oldFiles.relativize(oldFile);
-                    deletedFiles.add(FileUtils.normalisedPathString(diffFile, false));
-                    oldFilesStack.pop();
-                }
+            checkedFiles++;
+            List<String> sources = oldContents.findAll(target, path);
+            if (sources.contains(path)) {
+                unchangedFiles.add(path);
                 continue;
             }
-            // both stacks contain elements => compare files
-            oldFileRel = workingDirectory.oldFiles.relativize(oldFile);
-            newFileRel = workingDirectory.newFiles.relativize(newFile);
-            String oldRelString = oldFileRel.toString();
-            String newRelString = newFileRel.toString();
-            diffFile = diffTreeRoot.resolve(newFileRel);
-            if (oldRelString.compareTo(newRelString) < 0) {
-                // [old] is before [new] alphabetically => [new] skipped a file => mark as deleted
-                deletedFiles.add(FileUtils.normalisedPathString(oldRelString, false));
-                oldFilesStack.pop();
-            } else if (oldRelString.compareTo(newRelString) > 0) {
-                // [old] is after [new] alphabetically => [old] skipped a file => add new file
-                if (!movedDestFiles.contains(newFileRel.toString())) {
-                    Files.createDirectories(diffFile.getParent());
-                    Files.copy(newFile, diffFile);
-                }
-                newFilesStack.pop();
-            } else if (oldRelString.equals(newRelString)) {
-                // [old] and [new] have equal paths => compare files and add new if changed
-                if (!movedDestFiles.contains(newFileRel.toString()) && !FileUtils.equalFiles(newFile, oldFile)) {
-                    Files.createDirectories(diffFile.getParent());
-                    Files.copy(newFile, diffFile);
+            String source = null;
+            for (String candidate : sources) {
+                if (source == null || newIndex.contains(source) && !newIndex.contains(candidate)) {
+                    source = candidate;
                 }
-                oldFilesStack.pop();
-                newFilesStack.pop();
+            }
+            if (source != null) {
+                movedFiles.add(new Tuple2<>(source, path));
+                movedDestFiles.add(path);
+            }
+        }
+        if (moveEvent.shouldCommit()) {
+            moveEvent.checkedFileCount = checkedFiles;
+            moveEvent.unchangedFileCount = unchangedFiles.size();
+            moveEvent.movedFileCount = movedFiles.size();
+            moveEvent.commit();
+        }
+        // check for deleted files and directories
+        List<String> deletedFiles = new ArrayList<>();
+        for (String path : oldIndex.paths()) {
+            if (!newIndex.contains(path)) {
+                deletedFiles.add(path);
+            }
+        }
+        // check for new/changed files and new directories
+        List<String> changedPaths = new ArrayList<>();
+        for (String path : newIndex.paths()) {
+            boolean changed;
+            if (newIndex.isDirectory(path)) {
+                changed = !oldIndex.isDirectory(path);
             } else {
-                throw new IOException("Working directory is being modified by another thread.");
+                changed = !movedDestFiles.contains(path) && !unchangedFiles.contains(path);
+            }
+            if (changed) {
+                changedPaths.add(path);
             }
         }
-        for (String dir : encounteredNewDirs.stream()
-                .filter(d -> !encounteredOldDirs.contains(d))
-                .toList()) {
-            Files.createDirectories(workingDirectory
-                    .diffDataFiles
-                    .resolve(DiffFormatConstantsV1.DATA_DIR)
-                    .resolve(dir));
+        if (comparisonEvent.shouldCommit()) {
+            comparisonEvent.oldPathCount = oldIndex.paths().size();
+            comparisonEvent.newPathCount = newIndex.paths().size();
+            comparisonEvent.changedPathCount = changedPaths.size();
+            comparisonEvent.deletedPathCount = deletedFiles.size();
+            comparisonEvent.movedFileCount = movedFiles.size();
+            comparisonEvent.commit();
         }
-        encounteredOldDirs.removeAll(encounteredNewDirs);
-        deletedFiles.addAll(encounteredOldDirs);
         // check for empty diff
-        boolean emptyDiffTree;
-        try (Stream<Path> diffTreeFiles = Files.list(diffTreeRoot)) {
-            emptyDiffTree = diffTreeFiles.findAny().isEmpty();
-        }
-        if (emptyDiffTree && deletedFiles.isEmpty() && movedFiles.isEmpty()) {
+        if (changedPaths.isEmpty() && deletedFiles.isEmpty() && movedFiles.isEmpty()) {
             throw new SelfUpdaterException("Diff is empty, because the given files are equal.");
         }
         // write meta-data for deleted and moved files
         deletedFiles.sort(null);
-        Path deletedFilesMeta = workingDirectory.diffDataFiles.resolve(DiffFormatConstantsV1.META_DELETED);
-        try (OutputStream outputStream = Files.newOutputStream(deletedFilesMeta)) {
-            for (String line : deletedFiles) {
-                outputStream.write(line.getBytes(StandardCharsets.UTF_8));
-                outputStream.write('\n');
-            }
+        ByteArrayOutputStream deletedFilesMeta = new ByteArrayOutputStream();
+        for (String line : deletedFiles) {
+            deletedFilesMeta.write(line.getBytes(StandardCharsets.UTF_8));
+            deletedFilesMeta.write('\n');
         }
-        Path movedFilesMeta = workingDirectory.diffDataFiles.resolve(DiffFormatConstantsV1.META_MOVED);
         movedFiles.sort(
                 Comparator.comparing((Tuple2<String, String> a) -> a.a()).thenComparing(Tuple2::b));
-        try (OutputStream outputStream = Files.newOutputStream(movedFilesMeta)) {
-            for (Tuple2<String, String> filePair : movedFiles) {
-                outputStream.write(
-                        FileUtils.normalisedPathString(filePair.a(), false).getBytes(StandardCharsets.UTF_8));
-                outputStream.write('\n');
-                outputStream.write(
-                        FileUtils.normalisedPathString(filePair.b(), false).getBytes(StandardCharsets.UTF_8));
-                outputStream.write('\n');
+        ByteArrayOutputStream movedFilesMeta = new ByteArrayOutputStream();
+        for (Tuple2<String, String> filePair : movedFiles) {
+            movedFilesMeta.write(filePair.a().getBytes(StandardCharsets.UTF_8));
+            movedFilesMeta.write('\n');
+            movedFilesMeta.write(filePair.b().getBytes(StandardCharsets.UTF_8));
+            movedFilesMeta.write('\n');
+        }
+        // sort the diff's data by path, because the writer hashes entries in order
+        NavigableMap<String, Source> diffData = new TreeMap<>();
+        diffData.put(FileUtils.DIFF_DATA_DIR, null);
+        diffData.put(FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.META_DELETED, bytesSource(deletedFilesMeta));
+        diffData.put(FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.META_MOVED, bytesSource(movedFilesMeta));
+        String diffTreeRoot = FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.DATA_DIR + "/";
+        diffData.put(diffTreeRoot, null);
+        for (DeltaCodec codec : codecs) {
+            diffData.put(FileUtils.DIFF_DATA_DIR + codec.directory() + "/", null);
+        }
+        // the manifest isn't known to the first meta version
+        DiffManifest manifest = metaVersion == MetaVersion.V1 ? null : DiffManifest.create(oldIndex, hashAlgorithm);
+        // deltas stay buffered until the diff is written
+        List<SpillBuffer> deltaBuffers = new ArrayList<>();
+        try {
+            for (String path : changedPaths) {
+                String root = diffTreeRoot;
+                Source source = null;
+                if (newIndex.isFile(path)) {
+                    Tuple2<DeltaCodec, SpillBuffer> delta =
+                            oldIndex.isFile(path) ? createDelta(oldIndex, newIndex, path, codecs) : null;
+                    if (delta == null) {
+                        source = new Source(newIndex, path);
+                    } else {
+                        deltaBuffers.add(delta.b());
+                        root = FileUtils.DIFF_DATA_DIR + delta.a().directory() + "/";
+                        source = new Source(delta.b()::writeTo);
+                        if (manifest != null) {
+                            manifest.putReconstructed(path, target.fileDigest(path, hashAlgorithm));
+                        }
+                    }
+                }
+                diffData.put(root + path, source);
+                for (String parent : FileUtils.parentPaths(path)) {
+                    diffData.putIfAbsent(root + parent, null);
+                }
+            }
+            try (JarWriter writer = new JarWriter(result, FileUtils.DIFF_DATA_DIR, metaVersion, hashAlgorithm)) {
+                writer.putTree(diffData);
+                String diffHash = writer.finishHash();
+                FileUtils.writeMandatoryMetaFiles(
+                        writer,
+                        diffHash,
+                        target.treeHash(metaVersion, hashAlgorithm),
+                        metaVersion.hashTree(oldIndex, "", hashAlgorithm),
+                        version,
+                        metaVersion,
+                        hashAlgorithm);
+                if (manifest != null) {
+                    writer.putFile(FileUtils.DIFF_META_DIR + FileUtils.META_MANIFEST, manifest.toBytes());
+                }
+            }
+        } finally {
+            for (SpillBuffer deltaBuffer : deltaBuffers) {
+                deltaBuffer.close();
             }
         }
-        FileUtils.generateMandatoryMetaFiles(workingDirectory, DiffFormatConstantsV1.VERSION);
-        Path result = outputDir.resolve(FileUtils.getStrippedFileName(oldJar) + "." + FileUtils.DIFF_FILE_TYPE);
-        FileUtils.zipDir(workingDirectory.diffRoot, result);
-        return result;
+    }
+
+    /**
+     * Encodes a changed file with the codec yielding the smallest diff entry.
+     *
+     * @return The chosen codec and its delta, or {@code null} if the whole file is smaller.
+     */
+    private static Tuple2<DeltaCodec, SpillBuffer> createDelta(
+            JarIndex oldIndex, JarIndex newIndex, String path, List<DeltaCodec> codecs) throws IOException {
+        // whole files are copied with their compressed data
+        RawEntry rawEntry = newIndex.getRawEntry(path);
+        long bestSize = rawEntry != null && rawEntry.isCopyable() ? rawEntry.compressedSize() : newIndex.size(path);
+        Tuple2<DeltaCodec, SpillBuffer> best = null;
+        for (DeltaCodec codec : codecs) {
+            SpillBuffer delta = new SpillBuffer();
+            try {
+                if (codec.createDelta(oldIndex, newIndex, path, delta) && delta.deflatedSize() < bestSize) {
+                    bestSize = delta.deflatedSize();
+                    if (best != null) {
+                        best.b().close();
+                    }
+                    best = new Tuple2<>(codec, delta);
+                    delta = null;
+                }
+            } catch (IOException e) {
+                if (best != null) {
+                    best.b().close();
+                }
+                throw e;
+            } finally {
+                if (delta != null) {
+                    delta.close();
+                }
+            }
+        }
+        return best;
+    }
+
+    private static Source bytesSource(ByteArrayOutputStream data) {
+        return new Source(data::writeTo);
     }
 }
@@ -0,0 +1,41 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoding of a changed file relative to its previous version.
+ * <p>
+ *     Diff formats store each codec's deltas in a separate directory below {@link FileUtils#DIFF_DATA_DIR},
+ *     using the same relative paths as the files they reconstruct.
+ * </p>
+ */
+interface DeltaCodec {
+    /**
+     * @return Name of the directory holding this codec's deltas.
+     */
+    String directory();
+
+    /**
+     * Encodes the changes of a file, which is present in both jars under the same path.
+     *
+     * @param oldJar The jar to be updated.
+     * @param newJar The target version.
+     * @param path   Normalised path of the file.
+     * @param delta  Receives the encoded changes.
+     *
+     * @return Whether the codec supports this file. Nothing is written to {@code delta} if it doesn't.
+     */
+    boolean createDelta(JarIndex oldJar, JarIndex newJar, String path, OutputStream delta) throws IOException;
+
+    /**
+     * Reconstructs the updated file.
+     *
+     * @param jar   The jar to be updated.
+     * @param path  Normalised path of the file.
+     * @param delta Changes as written by {@link #createDelta(JarIndex, JarIndex, String, OutputStream)}.
+     * @param out   Receives the updated content.
+     */
+    void applyDelta(JarIndex jar, String path, InputStream delta, OutputStream out) throws IOException;
+}
@@ -0,0 +1,313 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Size-bounded store of diffs on local disk, for servers which hand out the same diffs repeatedly.
+ * <p>
+ *     Diffs are keyed by the hashes of their old and new jar, as stored in {@code meta/oldHash}
+ *     and {@code meta/newHash}, together with the diff format and hash algorithm.
+ *     The jars' hashes are cached by path as well, so a repeated request for unchanged jars doesn't read them again.
+ * </p>
+ * <p>
+ *     When the diffs' total size exceeds the limit, the least recently used diffs are deleted.
+ *     Recency is kept in the files' modification times, so it survives restarts.
+ *     Concurrent requests for the same diff create it only once, all other requests wait for it.
+ *     Each request returns an {@link Entry}, which keeps its diff from being evicted until it is closed.
+ * </p>
+ */
+public final class DiffCache {
+    private static final String HASH_CACHE_FILE_NAME = "hashes.properties";
+    private static final String TMP_DIR_PREFIX = "creating-";
+
+    private final Path directory;
+    private final long maxSize;
+    private final HashCache hashCache;
+    // sizes of all cached diffs by file name, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Path>> pending = new ConcurrentHashMap<>();
+    // number of open entries by file name, which are never evicted
+    private final Map<String, Integer> pins = new HashMap<>();
+    private long size;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Opens a cache, keeping the diffs already stored in the directory.
+     *
+     * @param directory Location of the cache. Created if it doesn't exist.
+     * @param maxSize   Maximum total size of the cached diffs in bytes.
+     */
+    public DiffCache(Path directory, long maxSize) throws SelfUpdaterException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        hashCache = new HashCache(directory.resolve(HASH_CACHE_FILE_NAME));
+        try {
+            Files.createDirectories(directory);
+            List<Path> diffs = new ArrayList<>();
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String fileName = file.getFileName().toString();
+                    if (Files.isDirectory(file) && fileName.startsWith(TMP_DIR_PREFIX)) {
+                        // left behind by an interrupted creation
+                        FileUtils.clearWorkingDirectory(file);
+                    } else if (Files.isRegularFile(file) && fileName.endsWith("." + FileUtils.DIFF_FILE_TYPE)) {
+                        diffs.add(file);
+                    }
+                }
+            }
+            diffs.sort(Comparator.comparing(DiffCache::lastModified));
+            synchronized (this) {
+                for (Path diff : diffs) {
+                    long diffSize = Files.size(diff);
+                    entries.put(diff.getFileName().toString(), diffSize);
+                    size += diffSize;
+                }
+                evict();
+            }
+        } catch (IOException e) {
+            throw new SelfUpdaterException("Failed to open diff cache.", e);
+        }
+    }
+
+    /**
+     * Looks up the diff between two jars using the latest diff format, creating it if it isn't cached.
+     *
+     * @see #getOrCreate(Path, Path, DiffFormat, HashAlgorithm)
+     */
+    public Entry getOrCreate(Path oldJar, Path newJar) throws SelfUpdaterException {
+        return getOrCreate(oldJar, newJar, DiffFormat.LATEST, HashAlgorithm.DEFAULT);
+    }
+
+    /**
+     * Looks up the diff between two jars, creating it if it isn't cached.
+     *
+     * @param oldJar        Location of the old version.
+     * @param newJar        Location of the target version.
+     * @param diffFormat    Diff format to be used.
+     * @param hashAlgorithm Digest for the diff's hashes.
+     *
+     * @return The cached diff, which has to be closed once it isn't read anymore.
+     *
+     * @throws SelfUpdaterException If the jars can't be hashed or the diff can't be created.
+     */
+    public Entry getOrCreate(Path oldJar, Path newJar, DiffFormat diffFormat, HashAlgorithm hashAlgorithm)
+            throws SelfUpdaterException {
+        MetaVersion metaVersion = diffFormat.metaVersion;
+        String fileName;
+        try {
+            String key = diffFormat.name() + " " + hashAlgorithm.value + " "
+                    + hashCache.hashTree(oldJar, metaVersion, hashAlgorithm) + " "
+                    + hashCache.hashTree(newJar, metaVersion, hashAlgorithm);
+            fileName = FileUtils.hexString(FileUtils.sha256Digest().digest(key.getBytes(StandardCharsets.UTF_8)))
+                    + "." + FileUtils.DIFF_FILE_TYPE;
+        } catch (IOException e) {
+            throw new SelfUpdaterException("Failed to hash jars.", e);
+        }
+        while (true) {
+            CompletableFuture<Path> future = new CompletableFuture<>();
+            CompletableFuture<Path> running = pending.putIfAbsent(fileName, future);
+            if (running != null) {
+                try {
+                    running.join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof SelfUpdaterException selfUpdaterException
+                            ? selfUpdaterException
+                            : new SelfUpdaterException("Failed to create diff.", e.getCause());
+                }
+                Entry entry = lookup(fileName);
+                if (entry != null) {
+                    return entry;
+                }
+                // evicted before it could be opened, so this request looks it up again
+                continue;
+            }
+            try {
+                Entry entry = lookup(fileName);
+                if (entry == null) {
+                    synchronized (this) {
+                        misses++;
+                    }
+                    entry = create(oldJar, newJar, fileName, diffFormat, hashAlgorithm);
+                }
+                future.complete(entry.path());
+                return entry;
+            } catch (SelfUpdaterException | RuntimeException e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                pending.remove(fileName);
+            }
+        }
+    }
+
+    /**
+     * @return Counters and current size of the cache.
+     */
+    public synchronized Statistics getStatistics() {
+        return new Statistics(hits, misses, evictions, entries.size(), size);
+    }
+
+    /**
+     * Opens a cached diff and counts the hit.
+     *
+     * @return The diff, or {@code null} if it isn't cached.
+     */
+    private synchronized Entry lookup(String fileName) {
+        Path diff = directory.resolve(fileName);
+        if (entries.get(fileName) == null) {
+            return null;
+        }
+        if (!Files.isRegularFile(diff)) {
+            // deleted from outside
+            size -= entries.remove(fileName);
+            return null;
+        }
+        hits++;
+        try {
+            Files.setLastModifiedTime(diff, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // only the order after a restart is affected
+        }
+        return pin(fileName);
+    }
+
+    private synchronized Entry pin(String fileName) {
+        pins.merge(fileName, 1, Integer::sum);
+        return new Entry(fileName);
+    }
+
+    private synchronized void release(String fileName) {
+        if (pins.merge(fileName, -1, Integer::sum) == 0) {
+            pins.remove(fileName);
+        }
+        evict();
+    }
+
+    private Entry create(Path oldJar, Path newJar, String fileName, DiffFormat diffFormat, HashAlgorithm hashAlgorithm)
+            throws SelfUpdaterException {
+        Path diff = directory.resolve(fileName);
+        Path tmpDir = null;
+        try {
+            tmpDir = Files.createTempDirectory(directory, TMP_DIR_PREFIX);
+            Path created = diffFormat.createFunction.createDiff(oldJar, newJar, tmpDir, hashAlgorithm);
+            try {
+                Files.move(created, diff, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(created, diff, StandardCopyOption.REPLACE_EXISTING);
+            }
+            long diffSize = Files.size(diff);
+            synchronized (this) {
+                entries.put(fileName, diffSize);
+                size += diffSize;
+                Entry entry = pin(fileName);
+                evict();
+                return entry;
+            }
+        } catch (SelfUpdaterException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new SelfUpdaterException("Failed to create diff.", e);
+        } finally {
+            if (tmpDir != null) {
+                try {
+                    FileUtils.clearWorkingDirectory(tmpDir);
+                } catch (IOException e) {
+                    // removed when the cache is opened next time
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used diffs until the cache fits its size limit, except for open entries.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (pins.containsKey(entry.getKey())) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(directory.resolve(entry.getKey()));
+            } catch (IOException e) {
+                // dropped from the index anyway, so the limit holds for all diffs still known
+            }
+            size -= entry.getValue();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * A cached diff, which isn't evicted while it is open.
+     * <p>Closing an entry more than once has no further effect.</p>
+     */
+    public final class Entry implements AutoCloseable {
+        private final String fileName;
+        private boolean closed;
+
+        private Entry(String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * @return The location of the diff, which exists until the entry is closed.
+         */
+        public Path path() {
+            return directory.resolve(fileName);
+        }
+
+        /**
+         * Allows the diff to be evicted again.
+         */
+        @Override
+        public void close() {
+            synchronized (DiffCache.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                release(fileName);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of a cache's counters.
+     *
+     * @param hits       Requests answered with a cached diff, including ones which waited for its creation.
+     * @param misses     Requests which created a diff.
+     * @param evictions  Diffs deleted to stay within the size limit.
+     * @param entryCount Number of cached diffs.
+     * @param size       Total size of the cached diffs in bytes.
+     */
+    public record Statistics(long hits, long misses, long evictions, int entryCount, long size) {}
+}
@@ -1,5 +1,7 @@
 package space.kepler_17c.selfupdater;
 
+import java.util.List;
+
 /**
  * List of all
  * <a href="https://github.com/Kepler-17c/SelfUpdater/blob/main/selfupdater/src/main/resources/diff-format.md">
@@ -8,22 +10,76 @@ package space.kepler_17c.selfupdater;
  * implemented in this library version.
  */
 public enum DiffFormat {
-    V1(CreateDiff::v1, ApplyDiff::v1);
+    V1(DiffFormatConstantsV1.VERSION, MetaVersion.V1),
+    V2(DiffFormatConstantsV2.VERSION, MetaVersion.V1),
+    V3(DiffFormatConstantsV3.VERSION, MetaVersion.V1),
+    V4(DiffFormatConstantsV4.VERSION, MetaVersion.V1),
+    V5(DiffFormatConstantsV5.VERSION, MetaVersion.V1),
+    V6(DiffFormatConstantsV6.VERSION, MetaVersion.V2);
 
-    static final DiffFormat LATEST = V1;
+    static final DiffFormat LATEST = V6;
 
+    /**
+     * Version string stored in the meta-data of this format's diffs.
+     */
+    final String version;
+    /**
+     * Layout of the meta-data and tree hashes of this format's diffs.
+     */
+    final MetaVersion metaVersion;
     final CreateDiff createFunction;
     final ApplyDiff applyFunction;
 
-    DiffFormat(CreateDiff createFunction, ApplyDiff applyFunction) {
-        this.createFunction = createFunction;
-        this.applyFunction = applyFunction;
+    DiffFormat(String version, MetaVersion metaVersion) {
+        this.version = version;
+        this.metaVersion = metaVersion;
+        createFunction = (oldJar, newJar, outputDir, hashAlgorithm) ->
+                CreateDiff.create(oldJar, newJar, outputDir, this, hashAlgorithm);
+        applyFunction = (diff, jar) -> ApplyDiff.resolve(diff, jar, codecs());
+    }
+
+    /**
+     * Lists the codecs for applying diffs of this format, see {@link #codecs(HashAlgorithm)}.
+     * Nested diffs name their own hash algorithm, so none has to be given.
+     */
+    List<DeltaCodec> codecs() {
+        return codecs(HashAlgorithm.DEFAULT);
+    }
+
+    /**
+     * Lists the codecs of this format, in the order they are tried, each of which has its own delta directory.
+     *
+     * @param hashAlgorithm Digest for the hashes of nested diffs created by the codecs.
+     */
+    List<DeltaCodec> codecs(HashAlgorithm hashAlgorithm) {
+        return switch (this) {
+            case V1 -> List.of();
+            case V2 -> List.of(new BsDiffCodec());
+            case V3 -> List.of(new BsDiffCodec(), new BlockMatchCodec(BsDiffCodec.MAX_FILE_SIZE));
+            case V4 -> List.of(
+                    new ClassFileCodec(), new BsDiffCodec(), new BlockMatchCodec(BsDiffCodec.MAX_FILE_SIZE));
+            case V5, V6 -> List.of(
+                    new NestedJarCodec(createFunction, applyFunction, hashAlgorithm),
+                    new ClassFileCodec(),
+                    new BsDiffCodec(),
+                    new BlockMatchCodec(BsDiffCodec.MAX_FILE_SIZE));
+        };
     }
 
     static DiffFormat getFormatByVersion(int version) throws SelfUpdaterException {
         switch (version) {
             case 1:
                 return V1;
+            case 2:
+                return V2;
+            case 3:
+                return V3;
+            case 4:
+                return V4;
+            case 5:
+                return V5;
+            case 6:
+                return V6;
             default:
                 throw new SelfUpdaterException("Not a valid version number: " + version);
         }
@@ -0,0 +1,10 @@
+package space.kepler_17c.selfupdater;
+
+final class DiffFormatConstantsV2 {
+    static final String VERSION = "2";
+    static final String DELTA_DIR = "delta";
+
+    private DiffFormatConstantsV2() {
+        throw new UnsupportedOperationException("Static utility class.");
+    }
+}
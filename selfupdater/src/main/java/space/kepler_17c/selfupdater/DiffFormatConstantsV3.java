@@ -0,0 +1,10 @@
+package space.kepler_17c.selfupdater;
+
+final class DiffFormatConstantsV3 {
+    static final String VERSION = "3";
+    static final String BLOCKS_DIR = "blocks";
+
+    private DiffFormatConstantsV3() {
+        throw new UnsupportedOperationException("Static utility class.");
+    }
+}
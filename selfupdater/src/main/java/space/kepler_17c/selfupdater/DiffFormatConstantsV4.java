@@ -0,0 +1,10 @@
+package space.kepler_17c.selfupdater;
+
+final class DiffFormatConstantsV4 {
+    static final String VERSION = "4";
+    static final String CLASSES_DIR = "classes";
+
+    private DiffFormatConstantsV4() {
+        throw new UnsupportedOperationException("Static utility class.");
+    }
+}
@@ -0,0 +1,10 @@
+package space.kepler_17c.selfupdater;
+
+final class DiffFormatConstantsV5 {
+    static final String VERSION = "5";
+    static final String NESTED_DIR = "nested";
+
+    private DiffFormatConstantsV5() {
+        throw new UnsupportedOperationException("Static utility class.");
+    }
+}
@@ -0,0 +1,9 @@
+package space.kepler_17c.selfupdater;
+
+final class DiffFormatConstantsV6 {
+    static final String VERSION = "6";
+
+    private DiffFormatConstantsV6() {
+        throw new UnsupportedOperationException("Static utility class.");
+    }
+}
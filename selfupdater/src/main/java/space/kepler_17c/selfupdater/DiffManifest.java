@@ -0,0 +1,197 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import space.kepler_17c.selfupdater.JarWriter.Source;
+
+/**
+ * Per-entry information of a diff, which allows verifying an update without hashing the old tree.
+ * <p>
+ *     The old tree is described by the size and CRC-32 of each entry, which are checked against the jar's
+ *     central directory without reading any content.
+ *     Files reconstructed by a {@link DeltaCodec} are described by the digest of their content,
+ *     which is checked while they are written, so a bad entry is reported as soon as it is complete.
+ *     The updated tree is still hashed while it is written and compared to the diff's {@code newHash}.
+ * </p>
+ * <p>
+ *     Each line of the manifest describes one entry. Old entries are listed as {@code old <size> <crc> <path>},
+ *     with the CRC as hex string and zeros for directories.
+ *     Reconstructed files are listed as {@code new <digest> <path>}, using the diff's {@link HashAlgorithm}.
+ * </p>
+ */
+final class DiffManifest {
+    private static final String OLD_PREFIX = "old";
+    private static final String NEW_PREFIX = "new";
+
+    private final HashAlgorithm hashAlgorithm;
+    private final NavigableMap<String, OldEntry> oldEntries = new TreeMap<>();
+    private final NavigableMap<String, String> newDigests = new TreeMap<>();
+
+    private DiffManifest(HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    /**
+     * Describes all entries of the old tree.
+     *
+     * @param oldJar        The jar to be updated.
+     * @param hashAlgorithm Digest for reconstructed files.
+     */
+    static DiffManifest create(JarIndex oldJar, HashAlgorithm hashAlgorithm) {
+        DiffManifest manifest = new DiffManifest(hashAlgorithm);
+        for (String path : oldJar.paths()) {
+            manifest.oldEntries.put(
+                    path, oldJar.isFile(path) ? new OldEntry(oldJar.size(path), oldJar.crc(path)) : OldEntry.DIRECTORY);
+        }
+        return manifest;
+    }
+
+    /**
+     * Reads the manifest of a diff.
+     *
+     * @param hashAlgorithm Digest for reconstructed files, as stated in the diff's meta-data.
+     *
+     * @return The manifest, or {@code null} if the diff has none.
+     */
+    static DiffManifest read(JarIndex diff, HashAlgorithm hashAlgorithm) throws SelfUpdaterException {
+        String manifestPath = FileUtils.DIFF_META_DIR + FileUtils.META_MANIFEST;
+        if (!diff.isFile(manifestPath)) {
+            return null;
+        }
+        DiffManifest manifest = new DiffManifest(hashAlgorithm);
+        try (BufferedReader br =
+                new BufferedReader(new InputStreamReader(diff.open(manifestPath), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split(" ", line.startsWith(OLD_PREFIX + " ") ? 4 : 3);
+                if (fields.length == 4 && fields[0].equals(OLD_PREFIX)) {
+                    manifest.oldEntries.put(
+                            fields[3], new OldEntry(Long.parseLong(fields[1]), Long.parseLong(fields[2], 16)));
+                } else if (fields.length == 3 && fields[0].equals(NEW_PREFIX)) {
+                    manifest.newDigests.put(fields[2], fields[1]);
+                } else {
+                    throw new SelfUpdaterException("Invalid manifest line: " + line);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new SelfUpdaterException("Invalid manifest entry.", e);
+        } catch (IOException e) {
+            throw new SelfUpdaterException("Failed to read `manifest`.", e);
+        }
+        return manifest;
+    }
+
+    /**
+     * Starts a manifest for another diff from the same old tree.
+     *
+     * @return A manifest with the same old entries, but without reconstructed files.
+     */
+    DiffManifest withSameOld() {
+        DiffManifest manifest = new DiffManifest(hashAlgorithm);
+        manifest.oldEntries.putAll(oldEntries);
+        return manifest;
+    }
+
+    /**
+     * @return Whether the path is an entry of the old tree.
+     */
+    boolean containsOld(String path) {
+        return oldEntries.containsKey(path);
+    }
+
+    /**
+     * @return The digest of a reconstructed file as hex string, or {@code null} if the file isn't listed.
+     */
+    String getReconstructed(String path) {
+        return newDigests.get(path);
+    }
+
+    /**
+     * Records the digest of a reconstructed file, which is already known.
+     */
+    void putReconstructed(String path, String digest) {
+        newDigests.put(path, digest);
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (Map.Entry<String, OldEntry> entry : oldEntries.entrySet()) {
+            String line = OLD_PREFIX + " " + entry.getValue().size() + " " + Long.toHexString(entry.getValue().crc())
+                    + " " + entry.getKey() + "\n";
+            result.writeBytes(line.getBytes(StandardCharsets.UTF_8));
+        }
+        for (Map.Entry<String, String> entry : newDigests.entrySet()) {
+            String line = NEW_PREFIX + " " + entry.getValue() + " " + entry.getKey() + "\n";
+            result.writeBytes(line.getBytes(StandardCharsets.UTF_8));
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Compares the jar's paths, sizes and CRCs to the old tree, without reading any content.
+     * <p>
+     *     Unlike the old tree's hash, this doesn't detect corrupted data behind an intact central directory.
+     *     {@link JarWriter} checks the CRCs of copied entries while hashing the updated tree instead.
+     * </p>
+     *
+     * @return Whether the jar matches.
+     */
+    boolean matchesOld(JarIndex jar) {
+        if (!jar.paths().equals(oldEntries.navigableKeySet())) {
+            return false;
+        }
+        for (Map.Entry<String, OldEntry> entry : oldEntries.entrySet()) {
+            String path = entry.getKey();
+            OldEntry expected = jar.isFile(path) ? new OldEntry(jar.size(path), jar.crc(path)) : OldEntry.DIRECTORY;
+            if (!expected.equals(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds verification to all files of the updated tree, which are reconstructed while writing.
+     *
+     * @param updatedTree Resolved tree as returned by {@link ApplyDiff#applyDiff(JarIndex, JarIndex)}.
+     *
+     * @return The tree with verifying sources.
+     *
+     * @throws SelfUpdaterException If a reconstructed file isn't listed in the manifest.
+     */
+    NavigableMap<String, Source> verifying(NavigableMap<String, Source> updatedTree) throws SelfUpdaterException {
+        NavigableMap<String, Source> result = new TreeMap<>(updatedTree);
+        for (Map.Entry<String, Source> entry : updatedTree.entrySet()) {
+            Source source = entry.getValue();
+            if (source == null || source.content() == null) {
+                continue;
+            }
+            String path = entry.getKey();
+            String expectedHex = newDigests.get(path);
+            if (expectedHex == null) {
+                throw new SelfUpdaterException("Reconstructed file is missing in the manifest: " + path);
+            }
+            byte[] expectedDigest = FileUtils.hexBytes(expectedHex);
+            result.put(path, new Source(out -> {
+                MessageDigest digest = hashAlgorithm.newDigest();
+                source.content().writeTo(new DigestOutputStream(out, digest));
+                if (!MessageDigest.isEqual(expectedDigest, digest.digest())) {
+                    throw new SelfUpdaterException("Reconstructed file doesn't match the manifest: " + path);
+                }
+            }));
+        }
+        return result;
+    }
+
+    private record OldEntry(long size, long crc) {
+        private static final OldEntry DIRECTORY = new OldEntry(0, 0);
+    }
+}
@@ -0,0 +1,89 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import space.kepler_17c.selfupdater.MiscUtils.Tuple2;
+
+/**
+ * The new jar of one or more diffs, with the hashes derived from it.
+ * <p>
+ *     Creating diffs from several old versions to the same new version reads the new jar's index once
+ *     and computes its tree hash and the hashes of its files at most once for all diffs.
+ *     All methods may be called concurrently.
+ * </p>
+ */
+final class DiffTarget implements Closeable {
+    private final JarIndex index;
+    private final Map<Tuple2<MetaVersion, HashAlgorithm>, String> treeHashes = new HashMap<>();
+    private final Map<String, Long> contentDigests = new ConcurrentHashMap<>();
+    private final Map<Tuple2<String, HashAlgorithm>, String> fileDigests = new ConcurrentHashMap<>();
+
+    private DiffTarget(JarIndex index) {
+        this.index = index;
+    }
+
+    static DiffTarget open(Path jar) throws IOException {
+        return new DiffTarget(JarIndex.open(jar));
+    }
+
+    JarIndex index() {
+        return index;
+    }
+
+    /**
+     * Hashes the whole jar, as stored in the diffs' meta data.
+     */
+    synchronized String treeHash(MetaVersion metaVersion, HashAlgorithm hashAlgorithm) throws IOException {
+        Tuple2<MetaVersion, HashAlgorithm> key = new Tuple2<>(metaVersion, hashAlgorithm);
+        String hash = treeHashes.get(key);
+        if (hash == null) {
+            hash = metaVersion.hashTree(index, "", hashAlgorithm);
+            treeHashes.put(key, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Digests a file's content for lookups in a {@link ContentIndex}.
+     */
+    long contentDigest(String path) throws IOException {
+        Long digest = contentDigests.get(path);
+        if (digest == null) {
+            digest = ContentIndex.digest(index, path, new byte[ContentIndex.READ_BUFFER_SIZE]);
+            contentDigests.put(path, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * Digests a file's content, as listed for reconstructed files in a {@link DiffManifest}.
+     *
+     * @return The digest as hex string.
+     */
+    String fileDigest(String path, HashAlgorithm hashAlgorithm) throws IOException {
+        Tuple2<String, HashAlgorithm> key = new Tuple2<>(path, hashAlgorithm);
+        String hex = fileDigests.get(key);
+        if (hex == null) {
+            MessageDigest digest = hashAlgorithm.newDigest();
+            try (InputStream inputStream = index.open(path)) {
+                inputStream.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+            }
+            hex = FileUtils.hexString(digest.digest());
+            fileDigests.put(key, hex);
+        }
+        return hex;
+    }
+
+    @Override
+    public void close() throws IOException {
+        index.close();
+    }
+}
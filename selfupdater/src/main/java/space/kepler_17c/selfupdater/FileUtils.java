@@ -2,7 +2,6 @@ package space.kepler_17c.selfupdater;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
@@ -18,20 +17,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.UUID;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
-import java.util.zip.CRC32;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import space.kepler_17c.selfupdater.JarWriter.Source;
 import space.kepler_17c.selfupdater.MiscUtils.Tuple2;
 
 final class FileUtils {
@@ -40,11 +34,18 @@ final class FileUtils {
     private static final String UUID_PATTERN =
             "\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}";
     private static final String WORKING_DIR_PATTERN = WORKING_DIR_PREFIX + UUID_PATTERN;
-    private static final String PATH_OLD = "old/";
-    private static final String PATH_NEW = "new/";
-    private static final String PATH_DIFF = "diff/";
-    private static final String PATH_DIFF_DATA = PATH_DIFF + "data/";
-    private static final String PATH_DIFF_META = PATH_DIFF + "meta/";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<byte[][]> READ_BUFFERS =
+            ThreadLocal.withInitial(() -> new byte[][] {new byte[READ_BUFFER_SIZE], new byte[READ_BUFFER_SIZE]});
+    static final String DIFF_DATA_DIR = "data/";
+    static final String DIFF_META_DIR = "meta/";
+    static final String META_DIFF_HASH = "diffHash";
+    static final String META_NEW_HASH = "newHash";
+    static final String META_OLD_HASH = "oldHash";
+    static final String META_VERSION = "version";
+    static final String META_META_VERSION = "metaVersion";
+    static final String META_MANIFEST = "manifest";
+    static final String META_HASH_ALGORITHM = "hashAlgorithm";
     static final String DIFF_FILE_TYPE = "jardiff";
     static final String UPDATED_FILE_NAME = "updated.jar";
 
@@ -56,6 +57,10 @@ final class FileUtils {
      * </p>
      */
     static final List<Collection<List<Integer>>> JAR_FILE_MAGIC_BYTES = new ArrayList<>();
+    /**
+     * Number of leading bytes needed to check all {@link #JAR_FILE_MAGIC_BYTES}.
+     */
+    static final int MAGIC_BYTES_LENGTH;
 
     static {
         // for now this only registers jar/zip files for uncompressed nesting
@@ -75,6 +80,13 @@ final class FileUtils {
                             .map(s -> Integer.parseInt(s, 16))
                             .toList());
         }
+        int magicBytesLength = 0;
+        for (int offset = 0; offset < JAR_FILE_MAGIC_BYTES.size(); offset++) {
+            for (List<Integer> byteSequence : JAR_FILE_MAGIC_BYTES.get(offset)) {
+                magicBytesLength = Math.max(magicBytesLength, offset + byteSequence.size());
+            }
+        }
+        MAGIC_BYTES_LENGTH = magicBytesLength;
     }
 
     static {
@@ -106,7 +118,7 @@ final class FileUtils {
         return Path.of(cutEnd < 0 ? jarUriString.substring(cutStart) : jarUriString.substring(cutStart, cutEnd));
     }
 
-    private static Path getSystemTmpDir() {
+    static Path getSystemTmpDir() {
         return Path.of(System.getProperty("java.io.tmpdir"));
     }
 
@@ -116,21 +128,6 @@ final class FileUtils {
         return tmpDir;
     }
 
-    static WorkingDirectory prepareWorkingDirectory(Path oldJar, Path newJar, Path diff) throws SelfUpdaterException {
-        WorkingDirectory wd;
-        try {
-            wd = WorkingDirectory.fromPath(createTmpDir());
-            extractJar(oldJar, wd.oldFiles);
-            extractJar(newJar, wd.newFiles);
-            extractJar(diff, wd.diffRoot);
-            UpdaterEvent.triggerEvent(UpdaterEvent.EXTRACTED_DATA, true);
-        } catch (IOException e) {
-            UpdaterEvent.triggerEvent(UpdaterEvent.EXTRACTED_DATA, false);
-            throw new SelfUpdaterException("Failed to extract source files to working directory.", e);
-        }
-        return wd;
-    }
-
     public static void clearWorkingDirectory(Path rootDir) throws IOException {
         FileVisitor<Path> fileDeletionVisitor = new SimpleFileVisitor<>() {
             @Override
@@ -151,229 +148,189 @@ final class FileUtils {
         Files.walkFileTree(rootDir, fileDeletionVisitor);
     }
 
-    private static void extractJar(Path jar, Path targetDirectory) throws IOException {
-        if (jar == null) {
-            return;
-        }
-        if (!Files.isRegularFile(jar)) {
-            throw new SelfUpdaterException("Jar path must denote a regular file, but is " + jar);
-        }
-        if (!Files.isDirectory(targetDirectory)) {
-            Files.createDirectories(targetDirectory);
-        }
-        ZipInputStream zis = new ZipInputStream(Files.newInputStream(jar));
-        ZipEntry ze;
-        while ((ze = zis.getNextEntry()) != null) {
-            String entryName = ze.getName();
-            Path entryFile = targetDirectory.resolve(entryName);
-            if (entryName.endsWith("/")) {
-                Files.createDirectories(entryFile);
-            } else {
-                OutputStream outputStream = Files.newOutputStream(entryFile);
-                outputStream.write(zis.readAllBytes());
-                outputStream.close();
-            }
-        }
-        zis.close();
-    }
-
+    /**
+     * Packs a directory's content into a jar.
+     * <p>
+     *     Files are compressed concurrently by {@link JarWriter#putTree(NavigableMap)},
+     *     following the current {@link CompressionPolicy}, and written in the order of their paths.
+     * </p>
+     */
     public static void zipDir(Path sourceDirectory, Path jar) throws IOException {
         if (!Files.isDirectory(sourceDirectory)) {
             return;
         }
-        ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(jar));
-        FileVisitor<Path> zipWritingFileVisitor = new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                String pathString = sourceDirectory.relativize(dir).toString();
-                if (pathString.isEmpty()) {
-                    return FileVisitResult.CONTINUE;
+        NavigableMap<String, Source> tree = new TreeMap<>();
+        try (Stream<Path> paths = Files.walk(sourceDirectory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (path.equals(sourceDirectory)) {
+                    continue;
                 }
-                pathString = normalisedPathString(pathString, true);
-                ZipEntry ze = new ZipEntry(pathString);
-                zos.putNextEntry(ze);
-                zos.closeEntry();
-                return FileVisitResult.CONTINUE;
+                boolean isDirectory = Files.isDirectory(path);
+                String pathString = normalisedPathString(sourceDirectory.relativize(path), isDirectory);
+                tree.put(pathString, isDirectory ? null : new Source(out -> Files.copy(path, out)));
             }
+        }
+        try (JarWriter writer = new JarWriter(jar, null)) {
+            writer.putTree(tree);
+        }
+    }
 
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                String pathString = normalisedPathString(sourceDirectory.relativize(file), false);
-                byte[] data;
-                try (InputStream inputStream = Files.newInputStream(file)) {
-                    data = inputStream.readAllBytes();
+    static boolean isCompressedData(byte[] data, int length) {
+        for (int offset = 0; offset < JAR_FILE_MAGIC_BYTES.size(); offset++) {
+            for (List<Integer> byteSequence : JAR_FILE_MAGIC_BYTES.get(offset)) {
+                if (offset + byteSequence.size() > length) {
+                    continue;
                 }
-                ZipEntry ze = new ZipEntry(pathString);
-                if (isCompressedFile(file)) {
-                    ze.setMethod(ZipEntry.STORED);
-                    ze.setSize(data.length);
-                    ze.setCompressedSize(data.length);
-                    CRC32 crc = new CRC32();
-                    crc.update(data);
-                    ze.setCrc(crc.getValue());
+                boolean foundMatch = true;
+                for (int i = 0; i < byteSequence.size() && foundMatch; i++) {
+                    foundMatch = byteSequence.get(i) == (0xFF & data[offset + i]);
                 }
-                zos.putNextEntry(ze);
-                zos.write(data);
-                zos.closeEntry();
-                return FileVisitResult.CONTINUE;
-            }
-        };
-        Files.walkFileTree(sourceDirectory, zipWritingFileVisitor);
-        zos.close();
-    }
-
-    private static boolean isCompressedFile(Path file) throws SelfUpdaterException {
-        List<Integer> byteBuffer = new ArrayList<>();
-        try (InputStream input = Files.newInputStream(file)) {
-            for (Collection<List<Integer>> offsetGroup : JAR_FILE_MAGIC_BYTES) {
-                for (List<Integer> byteSequence : offsetGroup) {
-                    while (byteBuffer.size() < Math.max(byteSequence.size(), 1)) {
-                        byteBuffer.add(input.read());
-                    }
-                    boolean foundMatch = IntStream.range(0, byteSequence.size())
-                            .mapToObj(i -> byteSequence.get(i).equals(byteBuffer.get(i)))
-                            .reduce(true, Boolean::logicalAnd);
-                    if (foundMatch) {
-                        return true;
-                    }
+                if (foundMatch) {
+                    return true;
                 }
-                byteBuffer.remove(0);
             }
-        } catch (IOException e) {
-            throw new SelfUpdaterException(e);
         }
         return false;
     }
 
-    static void generateMandatoryMetaFiles(WorkingDirectory workingDirectory, String version) throws IOException {
-        String diffHash = FileUtils.hashDirectory(workingDirectory.diffDataFiles);
-        String newHash = FileUtils.hashDirectory(workingDirectory.newFiles);
-        String oldHash = FileUtils.hashDirectory(workingDirectory.oldFiles);
+    static void writeMandatoryMetaFiles(
+            JarWriter writer,
+            String diffHash,
+            String newHash,
+            String oldHash,
+            String version,
+            MetaVersion metaVersion,
+            HashAlgorithm hashAlgorithm)
+            throws IOException {
         List<Tuple2<String, String>> entries = new ArrayList<>();
-        entries.add(new Tuple2<>("diffHash", diffHash));
-        entries.add(new Tuple2<>("newHash", newHash));
-        entries.add(new Tuple2<>("oldHash", oldHash));
-        entries.add(new Tuple2<>("version", version));
+        entries.add(new Tuple2<>(META_DIFF_HASH, diffHash));
+        // omitted for the default algorithm, which all versions use unless stated otherwise
+        if (hashAlgorithm != HashAlgorithm.DEFAULT) {
+            entries.add(new Tuple2<>(META_HASH_ALGORITHM, hashAlgorithm.value));
+        }
+        // omitted for the first version, which predates this file
+        if (metaVersion != MetaVersion.V1) {
+            entries.add(new Tuple2<>(META_META_VERSION, metaVersion.value));
+        }
+        entries.add(new Tuple2<>(META_NEW_HASH, newHash));
+        entries.add(new Tuple2<>(META_OLD_HASH, oldHash));
+        entries.add(new Tuple2<>(META_VERSION, version));
+        writer.putDirectory(DIFF_META_DIR);
         for (Tuple2<String, String> e : entries) {
-            try (OutputStream outputStream = Files.newOutputStream(workingDirectory.diffMetaFiles.resolve(e.a()))) {
-                outputStream.write(e.b().getBytes(StandardCharsets.UTF_8));
-            }
+            writer.putFile(DIFF_META_DIR + e.a(), e.b().getBytes(StandardCharsets.UTF_8));
         }
     }
 
-    static DiffMetaData getDiffMetaData(WorkingDirectory workingDirectory) throws SelfUpdaterException {
+    static DiffMetaData getDiffMetaData(JarIndex diff) throws SelfUpdaterException {
         Map<String, String> presentMetaData = new HashMap<>();
-        List<Path> metaFiles;
-        try (Stream<Path> pathStream = Files.list(workingDirectory.diffMetaFiles)) {
-            metaFiles = pathStream.toList();
-        } catch (IOException e) {
-            throw new SelfUpdaterException("Failed to get list of meta file's paths.", e);
-        }
-        for (Path file : metaFiles) {
-            try (InputStream inputStream = Files.newInputStream(file)) {
-                byte[] dataBytes = inputStream.readAllBytes();
-                String dataString = dataBytes == null ? null : new String(dataBytes);
-                presentMetaData.put(file.getFileName().toString(), dataString);
+        for (String path : diff.subPaths(DIFF_META_DIR)) {
+            if (!diff.isFile(path)) {
+                continue;
+            }
+            try (InputStream inputStream = diff.open(path)) {
+                String dataString = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+                presentMetaData.put(path.substring(DIFF_META_DIR.length()), dataString);
             } catch (IOException e) {
                 throw new SelfUpdaterException("Failed to read meta file.", e);
             }
         }
         return new DiffMetaData(
-                presentMetaData.get("diffHash"),
-                presentMetaData.get("oldHash"),
-                presentMetaData.get("newHash"),
-                presentMetaData.get("version"));
+                presentMetaData.get(META_DIFF_HASH),
+                presentMetaData.get(META_OLD_HASH),
+                presentMetaData.get(META_NEW_HASH),
+                presentMetaData.get(META_VERSION),
+                presentMetaData.getOrDefault(META_META_VERSION, MetaVersion.V1.value),
+                presentMetaData.getOrDefault(META_HASH_ALGORITHM, HashAlgorithm.DEFAULT.value));
     }
 
     static String hashFile(Path file) throws IOException {
-        MessageDigest sha256;
-        try {
-            sha256 = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            // SHA-256 is required to be present on all implementations
-            throw new RuntimeException(e);
-        }
-        byte[] hashBytes;
-        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        MessageDigest sha256 = sha256Digest();
+        byte[] readBuffer = READ_BUFFERS.get()[0];
         int bytesCount;
         try (InputStream inputStream = Files.newInputStream(file)) {
             while ((bytesCount = inputStream.read(readBuffer)) > 0) {
                 sha256.update(readBuffer, 0, bytesCount);
             }
         }
-        hashBytes = sha256.digest();
-        return IntStream.range(0, hashBytes.length)
-                .map(i -> 0xFF & hashBytes[i])
-                .mapToObj(b -> String.format("%02x", b))
-                .collect(Collectors.joining());
+        return hexString(sha256.digest());
     }
 
-    static String hashDirectory(Path dir) throws SelfUpdaterException {
-        MessageDigest sha256;
+    static MessageDigest sha256Digest() throws SelfUpdaterException {
         try {
-            sha256 = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             // SHA-256 is required to be present on all implementations
             throw new SelfUpdaterException("Invalid JRE implementation.", e);
         }
-        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
-        byte[] hashBytes;
-        int bytesCount;
-        Stack<Path> fileStack = new Stack<>();
-        Path absPath, relPath;
-        String pathString;
-        pushFilesReversed(fileStack, dir);
-        while (!fileStack.isEmpty()) {
-            absPath = fileStack.pop();
-            relPath = dir.relativize(absPath);
-            pathString = normalisedPathString(relPath, Files.isDirectory(absPath));
-            sha256.update(pathString.getBytes(StandardCharsets.UTF_8));
-            if (Files.isDirectory(absPath)) {
-                pushFilesReversed(fileStack, absPath);
-            } else if (Files.isRegularFile(absPath)) {
-                try (InputStream inputStream = Files.newInputStream(absPath)) {
-                    while ((bytesCount = inputStream.read(readBuffer)) > 0) {
-                        sha256.update(readBuffer, 0, bytesCount);
-                    }
-                } catch (IOException e) {
-                    throw new SelfUpdaterException("Failed to file for hash.", e);
-                }
-            }
+    }
+
+    static String hexString(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
         }
-        hashBytes = sha256.digest();
-        return IntStream.range(0, hashBytes.length)
-                .map(i -> 0xFF & hashBytes[i])
-                .mapToObj(b -> String.format("%02x", b))
-                .collect(Collectors.joining());
+        return new String(chars);
     }
 
-    static void pushFilesReversed(Stack<Path> stack, Path dir) throws SelfUpdaterException {
-        if (dir == null || Files.isRegularFile(dir)) {
-            return;
+    /**
+     * Inverse of {@link #hexString(byte[])}, accepting both lower and upper case digits.
+     *
+     * @throws SelfUpdaterException If the string isn't an even number of hex digits.
+     */
+    static byte[] hexBytes(String hex) throws SelfUpdaterException {
+        if (hex.length() % 2 != 0) {
+            throw new SelfUpdaterException("Hex string has odd length: " + hex);
         }
-        // this special comparator is necessary due to system dependent behaviour in path comparisons
-        Comparator<Path> reverseComparator = (a, b) -> normalisedPathString(b).compareTo(normalisedPathString(a));
-        try (Stream<Path> pathStream = Files.list(dir)) {
-            pathStream.sorted(reverseComparator).forEach(stack::push);
-        } catch (IOException e) {
-            throw new SelfUpdaterException("Failed to get file list.", e);
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new SelfUpdaterException("Not a hex string: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
         }
+        return bytes;
     }
 
     static boolean equalFiles(Path a, Path b) throws IOException {
+        if (Files.size(a) != Files.size(b)) {
+            return false;
+        }
         try (InputStream inA = Files.newInputStream(a);
                 InputStream inB = Files.newInputStream(b)) {
-            byte[] bufferA = new byte[READ_BUFFER_SIZE];
-            byte[] bufferB = new byte[READ_BUFFER_SIZE];
-            int receivedA;
-            int receivedB;
-            while ((receivedA = inA.read(bufferA)) > 0 | (receivedB = inB.read(bufferB)) > 0) {
-                if (receivedA != receivedB || Arrays.compare(bufferA, bufferB) != 0) {
-                    return false;
-                }
-            }
-            return true;
+            return equalStreams(inA, inB);
+        }
+    }
+
+    static boolean equalFiles(JarIndex jarA, String a, JarIndex jarB, String b) throws IOException {
+        if (jarA.size(a) != jarB.size(b) || jarA.crc(a) != jarB.crc(b)) {
+            return false;
         }
+        try (InputStream inA = jarA.open(a);
+                InputStream inB = jarB.open(b)) {
+            return equalStreams(inA, inB);
+        }
+    }
+
+    /**
+     * Compares two streams until both are exhausted, reusing the read buffers of the current thread.
+     *
+     * @return Whether both streams provide the same bytes.
+     */
+    static boolean equalStreams(InputStream a, InputStream b) throws IOException {
+        byte[][] buffers = READ_BUFFERS.get();
+        int receivedA;
+        int receivedB;
+        do {
+            receivedA = a.readNBytes(buffers[0], 0, READ_BUFFER_SIZE);
+            receivedB = b.readNBytes(buffers[1], 0, READ_BUFFER_SIZE);
+            if (receivedA != receivedB || Arrays.mismatch(buffers[0], 0, receivedA, buffers[1], 0, receivedB) != -1) {
+                return false;
+            }
+        } while (receivedA == READ_BUFFER_SIZE);
+        return true;
     }
 
     static String getStrippedFileName(Path file) {
@@ -400,36 +357,28 @@ final class FileUtils {
         }
     }
 
-    static final class WorkingDirectory {
-        final Path rootDir;
-        final Path oldFiles;
-        final Path newFiles;
-        final Path diffRoot;
-        final Path diffDataFiles;
-        final Path diffMetaFiles;
-
-        private WorkingDirectory(Path rootDir) {
-            this.rootDir = rootDir;
-            oldFiles = rootDir.resolve(PATH_OLD);
-            newFiles = rootDir.resolve(PATH_NEW);
-            diffRoot = rootDir.resolve(PATH_DIFF);
-            diffDataFiles = rootDir.resolve(PATH_DIFF_DATA);
-            diffMetaFiles = rootDir.resolve(PATH_DIFF_META);
-        }
-
-        static WorkingDirectory fromPath(Path rootDir) throws IOException {
-            WorkingDirectory directories = new WorkingDirectory(rootDir);
-            directories.createDirectories();
-            return directories;
-        }
-
-        private void createDirectories() throws IOException {
-            Files.createDirectories(oldFiles);
-            Files.createDirectories(newFiles);
-            Files.createDirectories(diffDataFiles);
-            Files.createDirectories(diffMetaFiles);
+    /**
+     * Lists all directories containing the given path, starting at the top level.
+     *
+     * @param path Normalised relative path.
+     *
+     * @return Normalised paths of all parent directories.
+     */
+    static List<String> parentPaths(String path) {
+        List<String> parents = new ArrayList<>();
+        int end = path.indexOf('/');
+        while (end >= 0 && end < path.length() - 1) {
+            parents.add(path.substring(0, end + 1));
+            end = path.indexOf('/', end + 1);
         }
+        return parents;
     }
 
-    record DiffMetaData(String diffHash, String oldHash, String newHash, String version) {}
+    record DiffMetaData(
+            String diffHash,
+            String oldHash,
+            String newHash,
+            String version,
+            String metaVersion,
+            String hashAlgorithm) {}
 }
@@ -0,0 +1,157 @@
+package space.kepler_17c.selfupdater;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events emitted while creating and applying diffs.
+ * <p>
+ *     Events are only committed while a recording has them enabled,
+ *     otherwise creating and committing them is optimised away by the JIT.
+ *     {@link PhaseEvent} mirrors the {@link UpdaterEvent} stages of an update,
+ *     the other events cover the work done within the stages and while creating diffs.
+ * </p>
+ */
+final class FlightEvents {
+    private static final String PREFIX = "space.kepler_17c.selfupdater.";
+    private static final String CATEGORY = "SelfUpdater";
+
+    private FlightEvents() {}
+
+    @Name(PREFIX + "Phase")
+    @Label("Updater Phase")
+    @Description("Stage of applying a diff, ending with the named UpdaterEvent")
+    @Category(CATEGORY)
+    static final class PhaseEvent extends Event {
+        @Label("Event")
+        String event;
+
+        @Label("Success")
+        boolean success;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Entries Read")
+        long entriesRead;
+
+        @Label("Entries Written")
+        long entriesWritten;
+
+        @Label("Peak Buffer Size")
+        @DataAmount
+        long peakBufferSize;
+    }
+
+    @Name(PREFIX + "TreeHash")
+    @Label("Tree Hash")
+    @Description("Hash of a jar's subtree, as stored in a diff's meta-data")
+    @Category(CATEGORY)
+    static final class TreeHashEvent extends Event {
+        @Label("Root Directory")
+        String rootDir;
+
+        @Label("Meta Version")
+        String metaVersion;
+
+        @Label("Hash Algorithm")
+        String hashAlgorithm;
+
+        @Label("Path Count")
+        int pathCount;
+    }
+
+    @Name(PREFIX + "EntryHash")
+    @Label("Entry Hash")
+    @Description("Hashing of a single jar entry, only recorded above the threshold by default")
+    @Category(CATEGORY)
+    @Threshold("1 ms")
+    static final class EntryHashEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name(PREFIX + "DiffComparison")
+    @Label("Diff Comparison")
+    @Description("Comparison of two jars' trees when creating a diff, including move detection")
+    @Category(CATEGORY)
+    static final class DiffComparisonEvent extends Event {
+        @Label("Old Path Count")
+        int oldPathCount;
+
+        @Label("New Path Count")
+        int newPathCount;
+
+        @Label("Changed Path Count")
+        int changedPathCount;
+
+        @Label("Deleted Path Count")
+        int deletedPathCount;
+
+        @Label("Moved File Count")
+        int movedFileCount;
+    }
+
+    @Name(PREFIX + "MoveDetection")
+    @Label("Move Detection")
+    @Description("Search of the old jar for the content of each new file")
+    @Category(CATEGORY)
+    static final class MoveDetectionEvent extends Event {
+        @Label("Checked File Count")
+        int checkedFileCount;
+
+        @Label("Unchanged File Count")
+        int unchangedFileCount;
+
+        @Label("Moved File Count")
+        int movedFileCount;
+    }
+
+    @Name(PREFIX + "Pack")
+    @Label("Jar Packing")
+    @Category(CATEGORY)
+    static final class PackEvent extends Event {
+        @Label("Jar")
+        String jar;
+
+        @Label("Entry Count")
+        int entryCount;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name(PREFIX + "Replacement")
+    @Label("Jar Replacement")
+    @Description("Replacement of the running jar with its updated version")
+    @Category(CATEGORY)
+    static final class ReplacementEvent extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Target")
+        String target;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Success")
+        boolean success;
+    }
+}
@@ -0,0 +1,55 @@
+package space.kepler_17c.selfupdater;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Cryptographic digests available for the hashes of a diff.
+ * <p>
+ *     The chosen algorithm is recorded in the diff's meta-data, so applying it doesn't need to know it in advance.
+ *     Diffs without a {@link FileUtils#META_HASH_ALGORITHM} file use {@link #SHA_256}.
+ * </p>
+ */
+public enum HashAlgorithm {
+    /**
+     * The default, supported by all formats.
+     */
+    SHA_256("SHA-256"),
+    /**
+     * Truncated SHA-512, which is faster than SHA-256 on 64-bit platforms without SHA-256 instructions.
+     * <p>
+     *     Requires {@link DiffFormat#V6} or later.
+     *     Java SE doesn't require it to be available, although the JDK's default provider implements it.
+     * </p>
+     */
+    SHA_512_256("SHA-512/256");
+
+    static final HashAlgorithm DEFAULT = SHA_256;
+
+    /**
+     * Standard name of the algorithm, which is also stored in the meta-data.
+     */
+    final String value;
+
+    HashAlgorithm(String value) {
+        this.value = value;
+    }
+
+    MessageDigest newDigest() throws SelfUpdaterException {
+        try {
+            return MessageDigest.getInstance(value);
+        } catch (NoSuchAlgorithmException e) {
+            // of these, Java SE only requires SHA-256, SHA-512/256 depends on the installed providers
+            throw new SelfUpdaterException("Hash algorithm isn't supported by this JRE: " + value, e);
+        }
+    }
+
+    static HashAlgorithm getByValue(String value) throws SelfUpdaterException {
+        for (HashAlgorithm hashAlgorithm : values()) {
+            if (hashAlgorithm.value.equals(value)) {
+                return hashAlgorithm;
+            }
+        }
+        throw new SelfUpdaterException("Not a valid hash algorithm: " + value);
+    }
+}
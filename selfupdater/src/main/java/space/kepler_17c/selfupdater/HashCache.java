@@ -0,0 +1,218 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk cache of jar tree hashes, so repeated updates don't have to hash an unchanged jar again.
+ * <p>
+ *     Entries are keyed by the jar's real path, the {@link MetaVersion} and the {@link HashAlgorithm} of the hash.
+ *     Each entry records the size, modification time and file key of the jar when it was hashed,
+ *     and is only used while all of them are unchanged.
+ *     A hash is only stored if the jar didn't change while it was hashed.
+ * </p>
+ * <p>
+ *     A stale entry can't produce a broken update, because the updated tree's hash is still computed or verified.
+ *     Failures of the cache itself are ignored and fall back to hashing.
+ *     Entries are added under a file lock and the cache is replaced atomically,
+ *     so concurrent programs don't lose each other's entries.
+ * </p>
+ */
+final class HashCache {
+    private static final String DEFAULT_DIR_NAME = ".selfupdater";
+    private static final String CACHE_FILE_NAME = "hashes.properties";
+    private static final String LOCK_FILE_SUFFIX = ".lock";
+    private static final Set<PosixFilePermission> PRIVATE_DIR_PERMISSIONS =
+            PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> FOREIGN_WRITE_PERMISSIONS =
+            Set.of(PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE);
+
+    private final Path cacheFile;
+    private final boolean ownerOnly;
+
+    HashCache(Path cacheFile) {
+        this(cacheFile, false);
+    }
+
+    /**
+     * @param ownerOnly Whether the cache is only used if its directory and file belong to the current user
+     *                  and nobody else may write them. The directory is created accessible to the user only.
+     */
+    HashCache(Path cacheFile, boolean ownerOnly) {
+        this.cacheFile = cacheFile;
+        this.ownerOnly = ownerOnly;
+    }
+
+    /**
+     * @return The cache shared by all programs of the current user, located in a private directory in the user's home.
+     */
+    static HashCache getDefault() {
+        return new HashCache(Path.of(System.getProperty("user.home"), DEFAULT_DIR_NAME, CACHE_FILE_NAME), true);
+    }
+
+    /**
+     * Looks up the hash of a jar's whole tree, computing and storing it if there is no valid entry.
+     *
+     * @param jarFile       Location of the jar.
+     * @param metaVersion   Determines how the hash is computed.
+     * @param hashAlgorithm Digest used for the hash.
+     *
+     * @return The hash as hex string.
+     */
+    String hashTree(Path jarFile, MetaVersion metaVersion, HashAlgorithm hashAlgorithm) throws IOException {
+        Path realPath = jarFile.toRealPath();
+        if (!isTrusted()) {
+            try (JarIndex jar = JarIndex.open(realPath)) {
+                return metaVersion.hashTree(jar, "", hashAlgorithm);
+            }
+        }
+        String key = metaVersion.value + "," + hashAlgorithm.value + ":" + realPath;
+        FileState before = FileState.of(realPath);
+        String cached = load().getProperty(key);
+        if (cached != null) {
+            String[] fields = cached.split(" ", 2);
+            if (fields.length == 2 && fields[1].equals(before.toString())) {
+                return fields[0];
+            }
+        }
+        String hash;
+        try (JarIndex jar = JarIndex.open(realPath)) {
+            hash = metaVersion.hashTree(jar, "", hashAlgorithm);
+        }
+        if (before.equals(FileState.of(realPath))) {
+            update(key, hash + " " + before);
+        }
+        return hash;
+    }
+
+    /**
+     * Checks that no other user may have written the cache, creating a private directory for it if needed.
+     * <p>Always true unless the cache is restricted to its owner.</p>
+     */
+    private boolean isTrusted() {
+        if (!ownerOnly) {
+            return true;
+        }
+        Path directory = cacheFile.toAbsolutePath().getParent();
+        try {
+            if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+                if (Files.getFileAttributeView(directory.getParent(), PosixFileAttributeView.class) != null) {
+                    Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PRIVATE_DIR_PERMISSIONS));
+                } else {
+                    Files.createDirectories(directory);
+                }
+            }
+            UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            for (Path path : List.of(directory, cacheFile)) {
+                if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                    continue;
+                }
+                if (Files.isSymbolicLink(path) || !user.equals(Files.getOwner(path, LinkOption.NOFOLLOW_LINKS))) {
+                    return false;
+                }
+                PosixFileAttributeView posixView =
+                        Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+                if (posixView != null && posixView.readAttributes().permissions().stream()
+                        .anyMatch(FOREIGN_WRITE_PERMISSIONS::contains)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds an entry to the cache as stored at the moment, holding the cache's lock.
+     */
+    private void update(String key, String value) {
+        Path lockFile = cacheFile.resolveSibling(cacheFile.getFileName() + LOCK_FILE_SUFFIX);
+        // file locks are held by the whole JVM, so threads have to wait for each other separately
+        synchronized (HashCache.class) {
+            try (FileChannel lockChannel =
+                    FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                lockChannel.lock();
+                Properties entries = load();
+                entries.setProperty(key, value);
+                store(entries);
+            } catch (IOException e) {
+                // the cache stays as it was
+            }
+        }
+    }
+
+    /**
+     * Reads all entries. A missing or unreadable cache is treated as empty.
+     */
+    private Properties load() {
+        Properties entries = new Properties();
+        try (InputStream inputStream = Files.newInputStream(cacheFile)) {
+            entries.load(inputStream);
+        } catch (IOException | IllegalArgumentException e) {
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the cache atomically, dropping entries of jars which don't exist anymore.
+     */
+    private void store(Properties entries) {
+        entries.stringPropertyNames().stream()
+                .filter(key -> !Files.exists(Path.of(key.substring(key.indexOf(':') + 1))))
+                .forEach(entries::remove);
+        Path tmpFile = null;
+        try {
+            tmpFile = Files.createTempFile(cacheFile.toAbsolutePath().getParent(), CACHE_FILE_NAME, null);
+            try (OutputStream outputStream = Files.newOutputStream(tmpFile)) {
+                entries.store(outputStream, null);
+            }
+            try {
+                Files.move(tmpFile, cacheFile, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            try {
+                if (tmpFile != null) {
+                    Files.deleteIfExists(tmpFile);
+                }
+            } catch (IOException ignored) {
+                // the cache stays as it was
+            }
+        }
+    }
+
+    private record FileState(long size, long modifiedNanos, Object fileKey) {
+        static FileState of(Path file) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return new FileState(
+                    attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.fileKey());
+        }
+
+        @Override
+        public String toString() {
+            return size + " " + modifiedNanos + " " + Objects.toString(fileKey);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import space.kepler_17c.selfupdater.ZipCentralDirectory.RawEntry;
+
+/**
+ * Read-only view of the file tree stored in a jar, backed by the archive's central directory.
+ * <p>
+ *     Entry names are normalised the same way as paths of an extracted tree,
+ *     and directories only implied by the entries below them are added explicitly.
+ *     Iterating {@link #paths()} therefore yields the same sequence as walking the extracted jar.
+ * </p>
+ */
+final class JarIndex implements Closeable {
+    private final ZipFile zipFile;
+    private final FileChannel channel;
+    private final Map<String, RawEntry> rawEntries;
+    private final NavigableMap<String, ZipEntry> entries = new TreeMap<>();
+    private final PhaseMetrics metrics = PhaseMetrics.current();
+    private final Cancellation cancellation = Cancellation.current();
+
+    private JarIndex(ZipFile zipFile, FileChannel channel) throws IOException {
+        this.zipFile = zipFile;
+        this.channel = channel;
+        rawEntries = ZipCentralDirectory.read(channel);
+        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+        while (zipEntries.hasMoreElements()) {
+            ZipEntry ze = zipEntries.nextElement();
+            String path = FileUtils.normalisedPathString(ze.getName(), ze.isDirectory());
+            if (path.isEmpty() || path.equals("/")) {
+                continue;
+            }
+            entries.putIfAbsent(path, ze);
+            for (String parent : FileUtils.parentPaths(path)) {
+                entries.putIfAbsent(parent, new ZipEntry(parent));
+            }
+        }
+    }
+
+    static JarIndex open(Path jar) throws IOException {
+        if (jar == null || !Files.isRegularFile(jar)) {
+            throw new SelfUpdaterException("Jar path must denote a regular file, but is " + jar);
+        }
+        ZipFile zipFile = new ZipFile(jar.toFile());
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(jar, StandardOpenOption.READ);
+            return new JarIndex(zipFile, channel);
+        } catch (IOException e) {
+            zipFile.close();
+            if (channel != null) {
+                channel.close();
+            }
+            throw e;
+        }
+    }
+
+    NavigableSet<String> paths() {
+        return Collections.unmodifiableNavigableSet(entries.navigableKeySet());
+    }
+
+    boolean contains(String path) {
+        return entries.containsKey(path);
+    }
+
+    boolean isDirectory(String path) {
+        return path.endsWith("/") && entries.containsKey(path);
+    }
+
+    boolean isFile(String path) {
+        return !path.endsWith("/") && entries.containsKey(path);
+    }
+
+    ZipEntry getEntry(String path) {
+        return entries.get(path);
+    }
+
+    long size(String path) {
+        return entries.get(path).getSize();
+    }
+
+    long crc(String path) {
+        return entries.get(path).getCrc();
+    }
+
+    InputStream open(String path) throws IOException {
+        if (!isFile(path)) {
+            throw new SelfUpdaterException("Jar entry doesn't denote a file: " + path);
+        }
+        cancellation.check();
+        return metrics.recordEntryRead(zipFile.getInputStream(entries.get(path)));
+    }
+
+    /**
+     * Looks up where the compressed data of a file is located.
+     *
+     * @param path Normalised path of the file.
+     *
+     * @return Central directory information, or {@code null} for directories.
+     */
+    RawEntry getRawEntry(String path) {
+        ZipEntry ze = entries.get(path);
+        return ze == null || ze.isDirectory() ? null : rawEntries.get(ze.getName());
+    }
+
+    /**
+     * Opens a file's data as stored in the jar, without inflating it.
+     *
+     * @param path Normalised path of the file.
+     *
+     * @return Stream of the compressed data.
+     */
+    InputStream openRaw(String path) throws IOException {
+        RawEntry rawEntry = getRawEntry(path);
+        if (rawEntry == null) {
+            throw new SelfUpdaterException("Jar entry has no raw data: " + path);
+        }
+        cancellation.check();
+        return metrics.recordEntryRead(ZipCentralDirectory.openRaw(channel, rawEntry));
+    }
+
+    /**
+     * Locates a file's data as stored in the jar.
+     *
+     * @param path Normalised path of the file.
+     *
+     * @return Offset of the compressed data's first byte.
+     */
+    long rawDataOffset(String path) throws IOException {
+        RawEntry rawEntry = getRawEntry(path);
+        if (rawEntry == null) {
+            throw new SelfUpdaterException("Jar entry has no raw data: " + path);
+        }
+        return ZipCentralDirectory.dataOffset(channel, rawEntry);
+    }
+
+    /**
+     * Lists the subtree below the given directory.
+     *
+     * @param rootDir Normalised directory path. Empty for the whole jar.
+     *
+     * @return All paths in the subtree, excluding the root itself.
+     */
+    List<String> subPaths(String rootDir) {
+        List<String> paths = new ArrayList<>();
+        for (String path : entries.tailMap(rootDir, false).keySet()) {
+            if (!path.startsWith(rootDir)) {
+                break;
+            }
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Hashes the subtree below the given directory.
+     *
+     * @param rootDir Normalised directory path the hashed paths are relative to. Empty for the whole jar.
+     *
+     * @return The serial tree hash of {@link TreeHasher} with {@link HashAlgorithm#DEFAULT},
+     * which doesn't depend on how the jar's entries are stored.
+     */
+    String hashTree(String rootDir) throws IOException {
+        return hashTree(rootDir, HashAlgorithm.DEFAULT);
+    }
+
+    /**
+     * Hashes the subtree below the given directory with the serial tree hash.
+     *
+     * @param rootDir       Normalised directory path the hashed paths are relative to. Empty for the whole jar.
+     * @param hashAlgorithm Digest used for the tree.
+     */
+    String hashTree(String rootDir, HashAlgorithm hashAlgorithm) throws IOException {
+        TreeHasher hasher = new TreeHasher(hashAlgorithm);
+        for (String path : subPaths(rootDir)) {
+            hasher.putPath(path.substring(rootDir.length()));
+            if (isFile(path)) {
+                FlightEvents.EntryHashEvent event = new FlightEvents.EntryHashEvent();
+                event.begin();
+                try (InputStream inputStream = open(path)) {
+                    hasher.putContent(inputStream);
+                }
+                if (event.shouldCommit()) {
+                    event.path = path;
+                    event.size = size(path);
+                    event.commit();
+                }
+            }
+        }
+        return hasher.finish();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            zipFile.close();
+        }
+    }
+}
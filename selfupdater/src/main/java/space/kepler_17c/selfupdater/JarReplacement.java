@@ -0,0 +1,104 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Replacement of the running jar, prepared ahead of time so the replacement itself is a single rename.
+ * <p>
+ *     Staging copies the updated jar next to the running one, so both are on the same file system,
+ *     and keeps the running jar as backup, preferably as hard link.
+ *     Replacing then atomically moves the staged jar over the running one,
+ *     so the running jar is complete at any time, even if the program is killed during shutdown.
+ *     If staging fails, e.g. because the jar's directory isn't writable,
+ *     the replacement falls back to copying the updated jar over the running one.
+ * </p>
+ */
+final class JarReplacement {
+    static final String STAGED_SUFFIX = ".update";
+    static final String BACKUP_SUFFIX = ".backup";
+
+    private final Path stagedJar;
+    private final Path targetJar;
+    private final boolean staged;
+
+    private JarReplacement(Path stagedJar, Path targetJar, boolean staged) {
+        this.stagedJar = stagedJar;
+        this.targetJar = targetJar;
+        this.staged = staged;
+    }
+
+    /**
+     * Copies the updated jar next to the target and creates the backup.
+     *
+     * @param updatedJar Updated jar in its working directory, which is deleted afterwards.
+     * @param targetJar  The jar to be replaced.
+     */
+    static JarReplacement stage(Path updatedJar, Path targetJar) throws IOException {
+        Path stagedJar = sibling(targetJar, STAGED_SUFFIX);
+        Path backupJar = sibling(targetJar, BACKUP_SUFFIX);
+        Path targetDir = targetJar.toAbsolutePath().getParent();
+        Path tmpFile = Files.createTempFile(targetDir, stagedJar.getFileName().toString(), null);
+        try {
+            Files.copy(updatedJar, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+            move(tmpFile, stagedJar);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmpFile);
+            throw e;
+        }
+        try {
+            Files.deleteIfExists(backupJar);
+            try {
+                Files.createLink(backupJar, targetJar);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(targetJar, backupJar, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // an unstaged replacement follows, which must not find a stale staged jar
+            Files.deleteIfExists(stagedJar);
+            throw e;
+        }
+        FileUtils.clearWorkingDirectory(updatedJar.getParent());
+        return new JarReplacement(stagedJar, targetJar, true);
+    }
+
+    /**
+     * Prepares nothing, the replacement copies the updated jar from its working directory.
+     */
+    static JarReplacement unstaged(Path updatedJar, Path targetJar) {
+        return new JarReplacement(updatedJar, targetJar, false);
+    }
+
+    /**
+     * @return The jar which replaces the target.
+     */
+    Path stagedJar() {
+        return stagedJar;
+    }
+
+    /**
+     * Replaces the target jar with the staged one.
+     */
+    void replace() throws IOException {
+        if (staged) {
+            move(stagedJar, targetJar);
+        } else {
+            Files.copy(stagedJar, targetJar, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Path sibling(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+}
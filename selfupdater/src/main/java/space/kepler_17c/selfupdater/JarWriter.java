@@ -0,0 +1,896 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import space.kepler_17c.selfupdater.ZipCentralDirectory.RawEntry;
+import static space.kepler_17c.selfupdater.ZipConstants.CENTRAL_HEADER_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.CENTRAL_HEADER_SIZE;
+import static space.kepler_17c.selfupdater.ZipConstants.DATA_DESCRIPTOR_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.END_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.FLAG_DATA_DESCRIPTOR;
+import static space.kepler_17c.selfupdater.ZipConstants.FLAG_UTF8;
+import static space.kepler_17c.selfupdater.ZipConstants.LOCAL_HEADER_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.LOCAL_HEADER_SIZE;
+import static space.kepler_17c.selfupdater.ZipConstants.VERSION_DEFLATED;
+import static space.kepler_17c.selfupdater.ZipConstants.VERSION_STORED;
+import static space.kepler_17c.selfupdater.ZipConstants.VERSION_ZIP64;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_END_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_END_SIZE;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_EXTRA_ID;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_LOCATOR_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_MAGIC;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_MAGIC_COUNT;
+
+/**
+ * Sequential jar output, which optionally hashes a subtree of the written entries on the fly.
+ * <p>
+ *     Entries are expected in the order used by {@link TreeDigest}.
+ *     Files starting with known archive magic bytes are written {@link ZipEntry#STORED},
+ *     all others are compressed as the {@link CompressionPolicy} current at creation decides.
+ *     Files copied from another jar keep their compressed data, so only new content goes through the deflater.
+ * </p>
+ * <p>
+ *     {@link #putTree(NavigableMap)} produces and compresses new content concurrently on threads of its own,
+ *     while the entries are still written in the tree's order.
+ *     Thus the written jar doesn't depend on the parallelism.
+ * </p>
+ */
+final class JarWriter implements Closeable {
+    private static final int COPY_BUFFER_SIZE = 1 << 16; // 2^16 = 64 KiB
+    private static final long UNKNOWN_SIZE = -1;
+    // entries compressed ahead of the one being written, per packing thread
+    private static final int PENDING_ENTRIES_PER_THREAD = 2;
+    private static final int PACK_THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final CountingOutputStream out;
+    private final String hashRootDir;
+    private final TreeDigest hasher;
+    private final List<EntryHeader> centralDirectory = new ArrayList<>();
+    private final long dosTime = toDosTime(LocalDateTime.now());
+    private final byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+    private final byte[] codecBuffer = new byte[COPY_BUFFER_SIZE];
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(1 << 8).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32 crc = new CRC32();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final CompressionPolicy compressionPolicy = SelfUpdater.getCompressionPolicy();
+    private final PhaseMetrics metrics = PhaseMetrics.current();
+    private final Cancellation cancellation = Cancellation.current();
+    private final FlightEvents.PackEvent packEvent = new FlightEvents.PackEvent();
+
+    /**
+     * @param jar         Location of the jar to be written.
+     * @param hashRootDir Directory whose subtree is hashed, empty for the whole jar or {@code null} to hash nothing.
+     */
+    JarWriter(Path jar, String hashRootDir) throws IOException {
+        this(jar, hashRootDir, MetaVersion.V1, HashAlgorithm.DEFAULT);
+    }
+
+    /**
+     * @param jar           Location of the jar to be written.
+     * @param hashRootDir   Directory whose subtree is hashed, empty for the whole jar or {@code null} to hash nothing.
+     * @param metaVersion   Determines how the subtree is hashed.
+     * @param hashAlgorithm Digest used for the subtree.
+     */
+    JarWriter(Path jar, String hashRootDir, MetaVersion metaVersion, HashAlgorithm hashAlgorithm)
+            throws IOException {
+        this.hashRootDir = hashRootDir;
+        hasher = hashRootDir == null ? null : metaVersion.newTreeDigest(hashAlgorithm);
+        out = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(jar), COPY_BUFFER_SIZE));
+        packEvent.begin();
+        packEvent.jar = jar.toString();
+    }
+
+    void putDirectory(String path) throws IOException {
+        String dirPath = FileUtils.normalisedPathString(path, true);
+        hashPath(dirPath);
+        writeLocalHeader(new EntryHeader(dirPath, ZipEntry.STORED, dosTime, 0, 0, 0, out.count));
+    }
+
+    void putFile(String path, byte[] data) throws IOException {
+        writeFile(path, data, hashPath(path));
+    }
+
+    /**
+     * Writes a file whose content is produced while writing, e.g. by patching another file.
+     * <p>Content is deflated as it is produced, only archives are buffered until their size and CRC are known.</p>
+     */
+    void putFile(String path, Content content) throws IOException {
+        EntryOutputStream entryOut = new EntryOutputStream(path, hashPath(path));
+        content.writeTo(entryOut);
+        entryOut.finish();
+    }
+
+    private void writeFile(String path, byte[] data, boolean hashed) throws IOException {
+        metrics.recordBuffer(data.length);
+        if (hashed) {
+            hasher.putContent(data, 0, data.length);
+        }
+        if (FileUtils.isCompressedData(data, data.length) || compressionPolicy.isStored(path)) {
+            crc.reset();
+            crc.update(data);
+            writeLocalHeader(new EntryHeader(
+                    path, ZipEntry.STORED, dosTime, crc.getValue(), data.length, data.length, out.count));
+            out.write(data);
+        } else {
+            writeDeflated(path, dosTime, data, data.length, null, false);
+        }
+    }
+
+    void copyFile(String path, JarIndex source, String sourcePath) throws IOException {
+        boolean hashed = hashPath(path);
+        RawEntry rawEntry = source.getRawEntry(sourcePath);
+        if (rawEntry != null && rawEntry.isCopyable() && copyRawFile(path, source, sourcePath, rawEntry, hashed)) {
+            return;
+        }
+        // fall back to recompressing the content
+        long sourceTime = rawEntry == null ? dosTime : rawEntry.dosTime();
+        try (InputStream inputStream = source.open(sourcePath)) {
+            int headerLength = inputStream.readNBytes(copyBuffer, 0, FileUtils.MAGIC_BYTES_LENGTH);
+            if (FileUtils.isCompressedData(copyBuffer, headerLength) || compressionPolicy.isStored(path)) {
+                ZipEntry sourceEntry = source.getEntry(sourcePath);
+                EntryHeader header = new EntryHeader(
+                        path,
+                        ZipEntry.STORED,
+                        sourceTime,
+                        sourceEntry.getCrc(),
+                        sourceEntry.getSize(),
+                        sourceEntry.getSize(),
+                        out.count);
+                writeLocalHeader(header);
+                long start = out.count;
+                int bytesCount = headerLength;
+                do {
+                    out.write(copyBuffer, 0, bytesCount);
+                    if (hashed) {
+                        hasher.putContent(copyBuffer, 0, bytesCount);
+                    }
+                } while ((bytesCount = inputStream.read(copyBuffer)) > 0);
+                if (out.count - start != header.size) {
+                    throw new ZipException("Unexpected size of stored entry: " + sourcePath);
+                }
+            } else {
+                writeDeflated(path, sourceTime, copyBuffer, headerLength, inputStream, hashed);
+            }
+        }
+    }
+
+    /**
+     * Writes a whole file tree.
+     * <p>
+     *     Produced content is compressed into separate buffers by a fixed number of daemon threads,
+     *     a bounded number of entries ahead of the entry being written.
+     *     These threads only live during the call, and the writer's metrics and cancellation are current there.
+     *     With a single processor, content is compressed right before it is written instead.
+     *     If the subtree is hashed per entry, packed files are hashed along, so they don't have to be inflated again.
+     *     Directories and copied files are written directly, once all entries before them are written.
+     * </p>
+     *
+     * @param tree Sorted mapping of normalised paths to the file content's source.
+     */
+    void putTree(NavigableMap<String, Source> tree) throws IOException {
+        ExecutorService executor = PACK_THREADS <= 1 ? null : Executors.newFixedThreadPool(PACK_THREADS, task -> {
+            Thread thread = new Thread(task, "SelfUpdater-pack");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int maxPending = PENDING_ENTRIES_PER_THREAD * PACK_THREADS;
+        Deque<PendingEntry> pendingEntries = new ArrayDeque<>();
+        try {
+            for (Map.Entry<String, Source> entry : tree.entrySet()) {
+                cancellation.check();
+                String path = entry.getKey();
+                Source source = entry.getValue();
+                CompletableFuture<PackedContent> packed = null;
+                if (source != null && source.content() != null) {
+                    String hashedPath = hashedPath(path);
+                    MessageDigest entryDigest = hashedPath == null ? null : hasher.startEntry(hashedPath);
+                    if (executor == null) {
+                        packed = CompletableFuture.completedFuture(pack(path, source.content(), entryDigest));
+                    } else {
+                        packed = CompletableFuture.supplyAsync(() -> {
+                            // content may open jars of its own, e.g. when reconstructing a nested archive
+                            PhaseMetrics previousMetrics = metrics.attach();
+                            Cancellation previousCancellation = cancellation.attach();
+                            try {
+                                cancellation.check();
+                                return pack(path, source.content(), entryDigest);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            } finally {
+                                PhaseMetrics.restore(previousMetrics);
+                                Cancellation.restore(previousCancellation);
+                            }
+                        }, executor);
+                    }
+                }
+                pendingEntries.add(new PendingEntry(path, source, packed));
+                // write finished entries right away, but wait for the oldest one if too many are pending
+                while (!pendingEntries.isEmpty()
+                        && (pendingEntries.size() > maxPending || pendingEntries.peek().isReady())) {
+                    writePending(pendingEntries.poll());
+                }
+            }
+            while (!pendingEntries.isEmpty()) {
+                cancellation.check();
+                writePending(pendingEntries.poll());
+            }
+        } finally {
+            for (PendingEntry pendingEntry : pendingEntries) {
+                if (pendingEntry.packed() != null) {
+                    pendingEntry.packed().thenAccept(PackedContent::discard);
+                }
+            }
+            if (executor != null) {
+                // queued tasks still run, so their buffers are discarded as well
+                executor.shutdown();
+            }
+        }
+    }
+
+    private void writePending(PendingEntry pendingEntry) throws IOException {
+        if (pendingEntry.source() == null) {
+            putDirectory(pendingEntry.path());
+        } else if (pendingEntry.packed() == null) {
+            copyFile(pendingEntry.path(), pendingEntry.source().jar(), pendingEntry.source().path());
+        } else {
+            PackedContent packed;
+            try {
+                packed = pendingEntry.packed().join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                    throw uncheckedIOException.getCause();
+                }
+                throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : e;
+            }
+            try {
+                writePacked(pendingEntry.path(), packed);
+            } finally {
+                packed.buffer().close();
+            }
+        }
+    }
+
+    /**
+     * Produces and compresses a file's content, independently of the writer's state.
+     *
+     * @param entryDigest Digest of the entry, which is fed with the content, may be {@code null}.
+     */
+    private PackedContent pack(String path, Content content, MessageDigest entryDigest) throws IOException {
+        SpillBuffer buffer = new SpillBuffer(false);
+        Deflater entryDeflater = new Deflater(compressionPolicy.level(path), true);
+        try {
+            PackingOutputStream packingOut = new PackingOutputStream(buffer, entryDeflater, path, entryDigest);
+            content.writeTo(packingOut);
+            return packingOut.finish();
+        } catch (IOException | RuntimeException e) {
+            buffer.close();
+            throw e;
+        } finally {
+            entryDeflater.end();
+        }
+    }
+
+    /**
+     * Writes compressed content with sizes and CRC in the local header, so no data descriptor is needed.
+     */
+    private void writePacked(String path, PackedContent packed) throws IOException {
+        boolean hashed;
+        if (packed.digest() != null) {
+            hasher.putEntry(packed.digest());
+            hashed = false;
+        } else {
+            hashed = hashPath(path);
+        }
+        boolean deflated = packed.method() == ZipEntry.DEFLATED;
+        EntryHeader header = new EntryHeader(
+                path, packed.method(), dosTime, packed.crc(), packed.compressedSize(), packed.size(), out.count);
+        writeLocalHeader(header);
+        long start = out.count;
+        if (deflated) {
+            inflater.reset();
+        }
+        packed.buffer().writeTo(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                if (hashed && deflated) {
+                    hashInflated(b, off, len);
+                } else if (hashed) {
+                    hasher.putContent(b, off, len);
+                }
+            }
+        });
+        if (out.count - start != header.compressedSize) {
+            throw new ZipException("Unexpected compressed size of entry: " + path);
+        }
+    }
+
+    /**
+     * Completes the hash of all entries written so far.
+     * <p>Entries written afterwards must lie outside the hashed subtree.</p>
+     *
+     * @return The hash as hex string.
+     */
+    String finishHash() {
+        return hasher.finish();
+    }
+
+    private boolean hashPath(String path) {
+        String hashedPath = hashedPath(path);
+        if (hashedPath == null) {
+            return false;
+        }
+        hasher.putPath(hashedPath);
+        return true;
+    }
+
+    /**
+     * @return The path relative to the hashed subtree, or {@code null} if it isn't hashed.
+     */
+    private String hashedPath(String path) {
+        if (hasher == null || !path.startsWith(hashRootDir) || path.length() == hashRootDir.length()) {
+            return null;
+        }
+        return path.substring(hashRootDir.length());
+    }
+
+    /**
+     * Copies the compressed data of a file.
+     * <p>
+     *     Nothing is written if the file is a deflated archive, because archives have to be stored.
+     *     Hashed files are inflated anyway, so their CRC is checked as well.
+     * </p>
+     *
+     * @return Whether the file was copied.
+     */
+    private boolean copyRawFile(String path, JarIndex source, String sourcePath, RawEntry rawEntry, boolean hashed)
+            throws IOException {
+        boolean deflated = rawEntry.method() == ZipEntry.DEFLATED;
+        try (InputStream inputStream = source.openRaw(sourcePath)) {
+            int bytesCount = inputStream.readNBytes(copyBuffer, 0, COPY_BUFFER_SIZE);
+            if (deflated) {
+                inflater.reset();
+                inflater.setInput(copyBuffer, 0, bytesCount);
+                int headerLength = inflate(codecBuffer, FileUtils.MAGIC_BYTES_LENGTH);
+                if (FileUtils.isCompressedData(codecBuffer, headerLength)) {
+                    return false;
+                }
+                inflater.reset();
+            }
+            EntryHeader header = new EntryHeader(
+                    path,
+                    rawEntry.method(),
+                    rawEntry.dosTime(),
+                    rawEntry.crc(),
+                    rawEntry.compressedSize(),
+                    rawEntry.size(),
+                    out.count);
+            writeLocalHeader(header);
+            long start = out.count;
+            crc.reset();
+            while (bytesCount > 0) {
+                out.write(copyBuffer, 0, bytesCount);
+                if (hashed && deflated) {
+                    // content is only inflated for hashing, never deflated again
+                    hashInflated(copyBuffer, 0, bytesCount);
+                } else if (hashed) {
+                    crc.update(copyBuffer, 0, bytesCount);
+                    hasher.putContent(copyBuffer, 0, bytesCount);
+                }
+                bytesCount = inputStream.read(copyBuffer);
+            }
+            if (out.count - start != header.compressedSize) {
+                throw new ZipException("Unexpected compressed size of entry: " + sourcePath);
+            }
+            if (hashed && crc.getValue() != header.crc) {
+                throw new ZipException("Unexpected CRC of entry: " + sourcePath);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes the next part of deflated content and adds it to the CRC, continuing the inflater's current entry.
+     */
+    private void hashInflated(byte[] input, int offset, int length) throws ZipException {
+        inflater.setInput(input, offset, length);
+        int inflatedCount;
+        while ((inflatedCount = inflate(codecBuffer, codecBuffer.length)) > 0) {
+            crc.update(codecBuffer, 0, inflatedCount);
+            hasher.putContent(codecBuffer, 0, inflatedCount);
+        }
+    }
+
+    private int inflate(byte[] buffer, int length) throws ZipException {
+        try {
+            return inflater.inflate(buffer, 0, length);
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid deflated data: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deflates content and writes it, followed by a data descriptor.
+     *
+     * @param prefix       Content to be written first.
+     * @param prefixLength Number of valid bytes in {@code prefix}.
+     * @param remainder    Stream of the remaining content, may be {@code null}.
+     */
+    private void writeDeflated(
+            String path, long time, byte[] prefix, int prefixLength, InputStream remainder, boolean hashed)
+            throws IOException {
+        EntryHeader header = beginDeflated(path, time);
+        byte[] input = prefix;
+        int inputLength = prefixLength;
+        while (inputLength >= 0) {
+            deflate(input, 0, inputLength, hashed);
+            input = copyBuffer;
+            inputLength = remainder == null ? -1 : remainder.read(copyBuffer);
+        }
+        endDeflated(header);
+    }
+
+    private EntryHeader beginDeflated(String path, long time) throws IOException {
+        EntryHeader header =
+                new EntryHeader(path, ZipEntry.DEFLATED, time, 0, UNKNOWN_SIZE, UNKNOWN_SIZE, out.count);
+        writeLocalHeader(header);
+        crc.reset();
+        deflater.reset();
+        deflater.setLevel(compressionPolicy.level(path));
+        return header;
+    }
+
+    private void deflate(byte[] input, int offset, int length, boolean hashed) throws IOException {
+        crc.update(input, offset, length);
+        if (hashed) {
+            hasher.putContent(input, offset, length);
+        }
+        deflater.setInput(input, offset, length);
+        while (!deflater.needsInput()) {
+            out.write(codecBuffer, 0, deflater.deflate(codecBuffer));
+        }
+    }
+
+    /**
+     * Flushes the deflater and writes the data descriptor.
+     */
+    private void endDeflated(EntryHeader header) throws IOException {
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.write(codecBuffer, 0, deflater.deflate(codecBuffer));
+        }
+        header.crc = crc.getValue();
+        header.compressedSize = deflater.getBytesWritten();
+        header.size = deflater.getBytesRead();
+        headerBuffer.clear();
+        headerBuffer.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        headerBuffer.putInt((int) header.crc);
+        if (header.isZip64()) {
+            headerBuffer.putLong(header.compressedSize);
+            headerBuffer.putLong(header.size);
+        } else {
+            headerBuffer.putInt((int) header.compressedSize);
+            headerBuffer.putInt((int) header.size);
+        }
+        out.write(headerBuffer.array(), 0, headerBuffer.position());
+    }
+
+    private void writeLocalHeader(EntryHeader header) throws IOException {
+        centralDirectory.add(header);
+        boolean zip64 = header.isZip64();
+        headerBuffer.clear();
+        headerBuffer.putInt(LOCAL_HEADER_SIGNATURE);
+        headerBuffer.putShort((short) header.version(zip64));
+        headerBuffer.putShort((short) header.flags());
+        headerBuffer.putShort((short) header.method);
+        headerBuffer.putInt((int) header.dosTime);
+        if (header.dataDescriptor) {
+            headerBuffer.putInt(0);
+            headerBuffer.putInt(0);
+            headerBuffer.putInt(0);
+        } else {
+            headerBuffer.putInt((int) header.crc);
+            headerBuffer.putInt(zip64 ? (int) ZIP64_MAGIC : (int) header.compressedSize);
+            headerBuffer.putInt(zip64 ? (int) ZIP64_MAGIC : (int) header.size);
+        }
+        headerBuffer.putShort((short) header.name.length);
+        headerBuffer.putShort((short) (zip64 ? 4 + 2 * Long.BYTES : 0));
+        out.write(headerBuffer.array(), 0, LOCAL_HEADER_SIZE);
+        out.write(header.name);
+        if (zip64) {
+            headerBuffer.clear();
+            headerBuffer.putShort((short) ZIP64_EXTRA_ID);
+            headerBuffer.putShort((short) (2 * Long.BYTES));
+            headerBuffer.putLong(header.size);
+            headerBuffer.putLong(header.compressedSize);
+            out.write(headerBuffer.array(), 0, headerBuffer.position());
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long directoryOffset = out.count;
+        for (EntryHeader header : centralDirectory) {
+            boolean zip64Size = header.size >= ZIP64_MAGIC;
+            boolean zip64CompressedSize = header.compressedSize >= ZIP64_MAGIC;
+            boolean zip64Offset = header.offset >= ZIP64_MAGIC;
+            int zip64Length = (zip64Size ? Long.BYTES : 0)
+                    + (zip64CompressedSize ? Long.BYTES : 0)
+                    + (zip64Offset ? Long.BYTES : 0);
+            boolean zip64 = zip64Length > 0;
+            headerBuffer.clear();
+            headerBuffer.putInt(CENTRAL_HEADER_SIGNATURE);
+            headerBuffer.putShort((short) header.version(zip64));
+            headerBuffer.putShort((short) header.version(zip64));
+            headerBuffer.putShort((short) header.flags());
+            headerBuffer.putShort((short) header.method);
+            headerBuffer.putInt((int) header.dosTime);
+            headerBuffer.putInt((int) header.crc);
+            headerBuffer.putInt(zip64CompressedSize ? (int) ZIP64_MAGIC : (int) header.compressedSize);
+            headerBuffer.putInt(zip64Size ? (int) ZIP64_MAGIC : (int) header.size);
+            headerBuffer.putShort((short) header.name.length);
+            headerBuffer.putShort((short) (zip64 ? 4 + zip64Length : 0));
+            headerBuffer.putShort((short) 0); // comment length
+            headerBuffer.putShort((short) 0); // disk number
+            headerBuffer.putShort((short) 0); // internal attributes
+            headerBuffer.putInt(0); // external attributes
+            headerBuffer.putInt(zip64Offset ? (int) ZIP64_MAGIC : (int) header.offset);
+            out.write(headerBuffer.array(), 0, CENTRAL_HEADER_SIZE);
+            out.write(header.name);
+            if (zip64) {
+                headerBuffer.clear();
+                headerBuffer.putShort((short) ZIP64_EXTRA_ID);
+                headerBuffer.putShort((short) zip64Length);
+                if (zip64Size) {
+                    headerBuffer.putLong(header.size);
+                }
+                if (zip64CompressedSize) {
+                    headerBuffer.putLong(header.compressedSize);
+                }
+                if (zip64Offset) {
+                    headerBuffer.putLong(header.offset);
+                }
+                out.write(headerBuffer.array(), 0, headerBuffer.position());
+            }
+        }
+        long directorySize = out.count - directoryOffset;
+        long entryCount = centralDirectory.size();
+        headerBuffer.clear();
+        if (entryCount >= ZIP64_MAGIC_COUNT || directorySize >= ZIP64_MAGIC || directoryOffset >= ZIP64_MAGIC) {
+            long zip64EndOffset = out.count;
+            headerBuffer.putInt(ZIP64_END_SIGNATURE);
+            headerBuffer.putLong(ZIP64_END_SIZE - 12); // size of the remaining record
+            headerBuffer.putShort((short) VERSION_ZIP64);
+            headerBuffer.putShort((short) VERSION_ZIP64);
+            headerBuffer.putInt(0); // disk number
+            headerBuffer.putInt(0); // disk with central directory
+            headerBuffer.putLong(entryCount);
+            headerBuffer.putLong(entryCount);
+            headerBuffer.putLong(directorySize);
+            headerBuffer.putLong(directoryOffset);
+            headerBuffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+            headerBuffer.putInt(0); // disk with ZIP64 end record
+            headerBuffer.putLong(zip64EndOffset);
+            headerBuffer.putInt(1); // total number of disks
+        }
+        headerBuffer.putInt(END_SIGNATURE);
+        headerBuffer.putShort((short) 0); // disk number
+        headerBuffer.putShort((short) 0); // disk with central directory
+        headerBuffer.putShort((short) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        headerBuffer.putShort((short) Math.min(entryCount, ZIP64_MAGIC_COUNT));
+        headerBuffer.putInt((int) Math.min(directorySize, ZIP64_MAGIC));
+        headerBuffer.putInt((int) Math.min(directoryOffset, ZIP64_MAGIC));
+        headerBuffer.putShort((short) 0); // comment length
+        out.write(headerBuffer.array(), 0, headerBuffer.position());
+    }
+
+    private static long toDosTime(LocalDateTime time) {
+        int year = time.getYear() - 1980;
+        if (year < 0) {
+            return (1 << 21) | (1 << 16);
+        }
+        return 0xFFFFFFFFL
+                & (year << 25
+                        | time.getMonthValue() << 21
+                        | time.getDayOfMonth() << 16
+                        | time.getHour() << 11
+                        | time.getMinute() << 5
+                        | time.getSecond() >> 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (out) {
+            writeCentralDirectory();
+            metrics.recordWritten(centralDirectory.size(), out.count);
+            if (packEvent.shouldCommit()) {
+                packEvent.entryCount = centralDirectory.size();
+                packEvent.size = out.count;
+                packEvent.commit();
+            }
+        } finally {
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    /**
+     * Origin of a file's content: either a file inside another jar or content produced while writing.
+     * <p>Trees passed to {@link #putTree(NavigableMap)} use {@code null} for directories.</p>
+     */
+    record Source(JarIndex jar, String path, Content content) {
+        Source(JarIndex jar, String path) {
+            this(jar, path, null);
+        }
+
+        Source(Content content) {
+            this(null, null, content);
+        }
+
+        /**
+         * Writes the uncompressed content without adding it to a jar.
+         */
+        void writeTo(OutputStream out) throws IOException {
+            if (content != null) {
+                content.writeTo(out);
+            } else {
+                try (InputStream inputStream = jar.open(path)) {
+                    inputStream.transferTo(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Producer of a file's content, which is called once when the file is written.
+     */
+    @FunctionalInterface
+    interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private record PendingEntry(String path, Source source, CompletableFuture<PackedContent> packed) {
+        private boolean isReady() {
+            return packed == null || packed.isDone();
+        }
+    }
+
+    /**
+     * Compressed content of an entry, which owns its buffer until the entry is written.
+     *
+     * @param method One of {@link ZipEntry#STORED} and {@link ZipEntry#DEFLATED}.
+     * @param digest The entry's digest fed with the uncompressed content, or {@code null} if it isn't hashed yet.
+     */
+    private record PackedContent(
+            SpillBuffer buffer, int method, long crc, long compressedSize, long size, MessageDigest digest) {
+        private void discard() {
+            try {
+                buffer.close();
+            } catch (IOException e) {
+                // only a temporary file is left behind
+            }
+        }
+    }
+
+    /**
+     * Compresses produced content into a buffer, like {@link EntryOutputStream} does into the jar.
+     * <p>Only uses its own state, so several instances run concurrently.</p>
+     */
+    private final class PackingOutputStream extends OutputStream {
+        private final SpillBuffer buffer;
+        private final Deflater entryDeflater;
+        private final String path;
+        private final MessageDigest entryDigest;
+        private final byte[] deflateBuffer = new byte[COPY_BUFFER_SIZE];
+        private final CRC32 entryCrc = new CRC32();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private boolean decided;
+        private boolean stored;
+        private long size;
+
+        private PackingOutputStream(
+                SpillBuffer buffer, Deflater entryDeflater, String path, MessageDigest entryDigest) {
+            this.buffer = buffer;
+            this.entryDeflater = entryDeflater;
+            this.path = path;
+            this.entryDigest = entryDigest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (decided) {
+                append(b, off, len);
+                return;
+            }
+            pending.write(b, off, len);
+            if (pending.size() >= FileUtils.MAGIC_BYTES_LENGTH) {
+                decide();
+            }
+        }
+
+        private void decide() throws IOException {
+            byte[] prefix = pending.toByteArray();
+            pending.reset();
+            stored = FileUtils.isCompressedData(prefix, prefix.length) || compressionPolicy.isStored(path);
+            decided = true;
+            append(prefix, 0, prefix.length);
+        }
+
+        private void append(byte[] b, int off, int len) throws IOException {
+            entryCrc.update(b, off, len);
+            if (entryDigest != null) {
+                entryDigest.update(b, off, len);
+            }
+            size += len;
+            if (stored) {
+                buffer.write(b, off, len);
+                return;
+            }
+            entryDeflater.setInput(b, off, len);
+            while (!entryDeflater.needsInput()) {
+                buffer.write(deflateBuffer, 0, entryDeflater.deflate(deflateBuffer));
+            }
+        }
+
+        private PackedContent finish() throws IOException {
+            if (!decided) {
+                // content too short to decide
+                decide();
+            }
+            long compressedSize = size;
+            if (!stored) {
+                entryDeflater.finish();
+                while (!entryDeflater.finished()) {
+                    buffer.write(deflateBuffer, 0, entryDeflater.deflate(deflateBuffer));
+                }
+                compressedSize = entryDeflater.getBytesWritten();
+            }
+            int method = stored ? ZipEntry.STORED : ZipEntry.DEFLATED;
+            return new PackedContent(buffer, method, entryCrc.getValue(), compressedSize, size, entryDigest);
+        }
+    }
+
+    /**
+     * Receives produced content and decides on the compression method once the leading bytes are known.
+     */
+    private final class EntryOutputStream extends OutputStream {
+        private final String path;
+        private final boolean hashed;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private boolean archive;
+        private EntryHeader header;
+
+        private EntryOutputStream(String path, boolean hashed) {
+            this.path = path;
+            this.hashed = hashed;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (header != null) {
+                deflate(b, off, len, hashed);
+                return;
+            }
+            pending.write(b, off, len);
+            if (!archive && pending.size() >= FileUtils.MAGIC_BYTES_LENGTH) {
+                byte[] prefix = pending.toByteArray();
+                archive = FileUtils.isCompressedData(prefix, prefix.length) || compressionPolicy.isStored(path);
+                if (!archive) {
+                    pending.reset();
+                    header = beginDeflated(path, dosTime);
+                    deflate(prefix, 0, prefix.length, hashed);
+                }
+            }
+        }
+
+        private void finish() throws IOException {
+            if (header != null) {
+                endDeflated(header);
+            } else {
+                // archives and content too short to decide
+                writeFile(path, pending.toByteArray(), hashed);
+            }
+        }
+    }
+
+    private static final class EntryHeader {
+        private final byte[] name;
+        private final boolean utf8;
+        private final boolean dataDescriptor;
+        private final int method;
+        private final long dosTime;
+        private final long offset;
+        private long crc;
+        private long compressedSize;
+        private long size;
+
+        private EntryHeader(
+                String name, int method, long dosTime, long crc, long compressedSize, long size, long offset) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.utf8 = this.name.length != name.length();
+            this.dataDescriptor = size == UNKNOWN_SIZE;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.offset = offset;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+
+        private boolean isZip64() {
+            return compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+        }
+
+        private int flags() {
+            return (utf8 ? FLAG_UTF8 : 0) | (dataDescriptor ? FLAG_DATA_DESCRIPTOR : 0);
+        }
+
+        private int version(boolean zip64) {
+            return zip64 ? VERSION_ZIP64 : method == ZipEntry.DEFLATED ? VERSION_DEFLATED : VERSION_STORED;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Merkle tree hash over a file tree.
+ * <p>
+ *     Each entry is hashed on its own, from its path string and, for files, its content.
+ *     These leaves are ordered by their normalised relative path and combined pairwise:
+ *     a range of leaves is split in the middle (rounding down), and the hashes of both halves are combined.
+ *     Leaves and combined nodes use different prefixes, so neither can be mistaken for the other.
+ * </p>
+ * <p>
+ *     As entries don't depend on each other, {@link #hashTree(JarIndex, String)} hashes them in parallel.
+ *     Writing a jar produces entries one by one, so the incremental interface hashes them sequentially,
+ *     yielding the same hash. Single entries may still be hashed elsewhere with {@link #startEntry(String)}.
+ * </p>
+ */
+final class MerkleTreeHasher implements TreeDigest {
+    private static final int READ_BUFFER_SIZE = 1 << 16; // 2^16 = 64 KiB
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+    // entries hashed by a single task
+    private static final int SEQUENTIAL_ENTRIES = 8;
+
+    private final HashAlgorithm hashAlgorithm;
+    private final List<byte[]> leaves = new ArrayList<>();
+    private MessageDigest leafDigest;
+    private byte[] readBuffer;
+
+    MerkleTreeHasher(HashAlgorithm hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    @Override
+    public void putPath(String normalisedPath) {
+        completeLeaf();
+        leafDigest = startLeaf(hashAlgorithm, normalisedPath);
+    }
+
+    @Override
+    public void putContent(byte[] data, int offset, int length) {
+        leafDigest.update(data, offset, length);
+    }
+
+    @Override
+    public void putContent(InputStream inputStream) throws IOException {
+        if (readBuffer == null) {
+            readBuffer = new byte[READ_BUFFER_SIZE];
+        }
+        int bytesCount;
+        while ((bytesCount = inputStream.read(readBuffer)) > 0) {
+            leafDigest.update(readBuffer, 0, bytesCount);
+        }
+    }
+
+    @Override
+    public MessageDigest startEntry(String normalisedPath) {
+        return startLeaf(hashAlgorithm, normalisedPath);
+    }
+
+    @Override
+    public void putEntry(MessageDigest entryDigest) {
+        completeLeaf();
+        leaves.add(entryDigest.digest());
+    }
+
+    @Override
+    public String finish() {
+        completeLeaf();
+        return FileUtils.hexString(root(hashAlgorithm, leaves, 0, leaves.size()));
+    }
+
+    private void completeLeaf() {
+        if (leafDigest != null) {
+            leaves.add(leafDigest.digest());
+            leafDigest = null;
+        }
+    }
+
+    /**
+     * Hashes the subtree below the given directory on the common {@link ForkJoinPool}.
+     *
+     * @param jar           Jar containing the tree.
+     * @param rootDir       Normalised directory path the hashed paths are relative to. Empty for the whole jar.
+     * @param hashAlgorithm Digest for leaves and nodes.
+     *
+     * @return The same hash as passing the subtree's entries to a new instance.
+     */
+    static String hashTree(JarIndex jar, String rootDir, HashAlgorithm hashAlgorithm) throws IOException {
+        List<String> paths = jar.subPaths(rootDir);
+        try {
+            return FileUtils.hexString(ForkJoinPool.commonPool()
+                    .invoke(new NodeTask(jar, rootDir, hashAlgorithm, paths, 0, paths.size())));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static MessageDigest startLeaf(HashAlgorithm hashAlgorithm, String normalisedPath) {
+        MessageDigest digest = newDigest(hashAlgorithm);
+        byte[] pathBytes = normalisedPath.getBytes(StandardCharsets.UTF_8);
+        digest.update(LEAF_PREFIX);
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(pathBytes.length).array());
+        digest.update(pathBytes);
+        return digest;
+    }
+
+    private static byte[] root(HashAlgorithm hashAlgorithm, List<byte[]> leaves, int start, int end) {
+        if (end - start == 0) {
+            return newDigest(hashAlgorithm).digest();
+        } else if (end - start == 1) {
+            return leaves.get(start);
+        }
+        int middle = (start + end) >>> 1;
+        return combine(
+                hashAlgorithm, root(hashAlgorithm, leaves, start, middle), root(hashAlgorithm, leaves, middle, end));
+    }
+
+    private static byte[] combine(HashAlgorithm hashAlgorithm, byte[] left, byte[] right) {
+        MessageDigest digest = newDigest(hashAlgorithm);
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest(HashAlgorithm hashAlgorithm) {
+        try {
+            return hashAlgorithm.newDigest();
+        } catch (SelfUpdaterException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hashes the node covering a range of entries, splitting it the same way as
+     * {@link #root(HashAlgorithm, List, int, int)}.
+     */
+    private static final class NodeTask extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final JarIndex jar;
+        private final String rootDir;
+        private final HashAlgorithm hashAlgorithm;
+        private final List<String> paths;
+        private final int start;
+        private final int end;
+
+        private NodeTask(
+                JarIndex jar, String rootDir, HashAlgorithm hashAlgorithm, List<String> paths, int start, int end) {
+            this.jar = jar;
+            this.rootDir = rootDir;
+            this.hashAlgorithm = hashAlgorithm;
+            this.paths = paths;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected byte[] compute() {
+            if (end - start <= SEQUENTIAL_ENTRIES) {
+                List<byte[]> leaves = new ArrayList<>(end - start);
+                byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+                for (int i = start; i < end; i++) {
+                    leaves.add(hashEntry(paths.get(i), readBuffer));
+                }
+                return root(hashAlgorithm, leaves, 0, leaves.size());
+            }
+            int middle = (start + end) >>> 1;
+            NodeTask left = new NodeTask(jar, rootDir, hashAlgorithm, paths, start, middle);
+            left.fork();
+            byte[] right = new NodeTask(jar, rootDir, hashAlgorithm, paths, middle, end).compute();
+            return combine(hashAlgorithm, left.join(), right);
+        }
+
+        private byte[] hashEntry(String path, byte[] readBuffer) {
+            MessageDigest digest = startLeaf(hashAlgorithm, path.substring(rootDir.length()));
+            if (jar.isFile(path)) {
+                FlightEvents.EntryHashEvent event = new FlightEvents.EntryHashEvent();
+                event.begin();
+                try (InputStream inputStream = jar.open(path)) {
+                    int bytesCount;
+                    while ((bytesCount = inputStream.read(readBuffer)) > 0) {
+                        digest.update(readBuffer, 0, bytesCount);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (event.shouldCommit()) {
+                    event.path = path;
+                    event.size = jar.size(path);
+                    event.commit();
+                }
+            }
+            return digest.digest();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+
+/**
+ * Version of a diff's meta-data, which determines how the hashes of file trees are computed.
+ * <p>Diffs without a {@link FileUtils#META_META_VERSION} file use {@link #V1}.</p>
+ */
+enum MetaVersion {
+    /**
+     * Serial hash, see {@link TreeHasher}.
+     */
+    V1("1"),
+    /**
+     * Parallel Merkle tree hash, see {@link MerkleTreeHasher}.
+     */
+    V2("2");
+
+    final String value;
+
+    MetaVersion(String value) {
+        this.value = value;
+    }
+
+    TreeDigest newTreeDigest() throws SelfUpdaterException {
+        return newTreeDigest(HashAlgorithm.DEFAULT);
+    }
+
+    TreeDigest newTreeDigest(HashAlgorithm hashAlgorithm) throws SelfUpdaterException {
+        return switch (this) {
+            case V1 -> new TreeHasher(hashAlgorithm);
+            case V2 -> new MerkleTreeHasher(hashAlgorithm);
+        };
+    }
+
+    /**
+     * Hashes the subtree below the given directory with the default algorithm.
+     *
+     * @see #hashTree(JarIndex, String, HashAlgorithm)
+     */
+    String hashTree(JarIndex jar, String rootDir) throws IOException {
+        return hashTree(jar, rootDir, HashAlgorithm.DEFAULT);
+    }
+
+    /**
+     * Hashes the subtree below the given directory.
+     *
+     * @param jar           Jar containing the tree.
+     * @param rootDir       Normalised directory path the hashed paths are relative to. Empty for the whole jar.
+     * @param hashAlgorithm Digest used for the tree.
+     *
+     * @return The hash as hex string.
+     */
+    String hashTree(JarIndex jar, String rootDir, HashAlgorithm hashAlgorithm) throws IOException {
+        FlightEvents.TreeHashEvent event = new FlightEvents.TreeHashEvent();
+        event.begin();
+        String hash = switch (this) {
+            case V1 -> jar.hashTree(rootDir, hashAlgorithm);
+            case V2 -> MerkleTreeHasher.hashTree(jar, rootDir, hashAlgorithm);
+        };
+        if (event.shouldCommit()) {
+            event.rootDir = rootDir;
+            event.metaVersion = value;
+            event.hashAlgorithm = hashAlgorithm.value;
+            event.pathCount = jar.subPaths(rootDir).size();
+            event.commit();
+        }
+        return hash;
+    }
+
+    static MetaVersion getByValue(String value) throws SelfUpdaterException {
+        for (MetaVersion metaVersion : values()) {
+            if (metaVersion.value.equals(value)) {
+                return metaVersion;
+            }
+        }
+        throw new SelfUpdaterException("Not a valid meta version: " + value);
+    }
+}
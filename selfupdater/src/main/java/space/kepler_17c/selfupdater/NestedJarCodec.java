@@ -0,0 +1,447 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import space.kepler_17c.selfupdater.FileUtils.DiffMetaData;
+import space.kepler_17c.selfupdater.JarWriter.Source;
+import space.kepler_17c.selfupdater.ZipCentralDirectory.RawEntry;
+
+/**
+ * Delta for nested archives, like the libraries inside a fat jar.
+ * <p>
+ *     Archives are stored as a whole, so a single changed class in a nested library would ship the entire library.
+ *     This codec diffs the file trees of both archives with a full diff format instead,
+ *     and embeds the resulting diff in the delta.
+ * </p>
+ * <p>
+ *     The updated archive has to be reproduced byte by byte, because its hash is part of the outer tree's hash.
+ *     Therefore, each archive is split into its entries' compressed data and a skeleton of the remaining bytes,
+ *     i.e. headers and central directory.
+ *     The skeleton is encoded with {@link BsDiffCodec} against the old archive's skeleton.
+ *     Each entry's data is obtained in one of these ways:
+ *     copied from the old archive, the stored content, the content deflated with a detected compression level,
+ *     or literally if none of the others reproduces it.
+ * </p>
+ * <p>
+ *     Deltas consist of the nested diff's length as big-endian {@code int} and the nested diff,
+ *     which is left empty when both archives hold the same tree,
+ *     followed by the skeleton delta's length as {@code int} and the skeleton delta.
+ *     Then follows the number of entries as {@code int}, and for each entry in order of position:
+ *     the number of skeleton bytes preceding it as {@code long}, the operation as {@code byte} and its arguments.
+ * </p>
+ */
+final class NestedJarCodec implements DeltaCodec {
+    private static final byte OP_COPY = 0;
+    private static final byte OP_STORE = 1;
+    private static final byte OP_DEFLATE = 2;
+    private static final byte OP_LITERAL = 3;
+    // most common levels first
+    private static final int[] DEFLATE_LEVELS = {
+        Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION, 1, 2, 3, 4, 5, 7, 8, Deflater.NO_COMPRESSION
+    };
+    private static final int NO_LEVEL = Integer.MIN_VALUE;
+    private static final int COPY_BUFFER_SIZE = 1 << 16; // 2^16 = 64 KiB
+    private static final String OLD_ARCHIVE_NAME = "old.jar";
+    private static final String NEW_ARCHIVE_NAME = "new.jar";
+    private static final String NESTED_DIFF_NAME = "nested." + FileUtils.DIFF_FILE_TYPE;
+
+    private final CreateDiff createFunction;
+    private final ApplyDiff applyFunction;
+    private final HashAlgorithm hashAlgorithm;
+
+    /**
+     * @param createFunction Diff format for the nested trees.
+     * @param applyFunction  Counterpart to {@code createFunction}.
+     * @param hashAlgorithm  Digest for the nested diffs' hashes, unused when applying diffs,
+     *                       which take the hash algorithm from each nested diff.
+     */
+    NestedJarCodec(CreateDiff createFunction, ApplyDiff applyFunction, HashAlgorithm hashAlgorithm) {
+        this.createFunction = createFunction;
+        this.applyFunction = applyFunction;
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    @Override
+    public String directory() {
+        return DiffFormatConstantsV5.NESTED_DIR;
+    }
+
+    @Override
+    public boolean createDelta(JarIndex oldJar, JarIndex newJar, String path, OutputStream delta) throws IOException {
+        if (!isArchive(oldJar, path) || !isArchive(newJar, path)) {
+            return false;
+        }
+        Path workDir = FileUtils.createTmpDir();
+        try {
+            Path oldFile = extract(oldJar, path, workDir.resolve(OLD_ARCHIVE_NAME));
+            Path newFile = extract(newJar, path, workDir.resolve(NEW_ARCHIVE_NAME));
+            try (JarIndex oldIndex = openArchive(oldFile);
+                    JarIndex newIndex = openArchive(newFile)) {
+                if (oldIndex == null || newIndex == null) {
+                    return false;
+                }
+                Skeleton oldSkeleton;
+                Skeleton newSkeleton;
+                try {
+                    oldSkeleton = Skeleton.read(oldFile, oldIndex);
+                    newSkeleton = Skeleton.read(newFile, newIndex);
+                } catch (ZipException e) {
+                    return false;
+                }
+                if (oldSkeleton == null || newSkeleton == null) {
+                    return false;
+                }
+                Path nestedDiff = null;
+                if (!oldIndex.hashTree("").equals(newIndex.hashTree(""))) {
+                    nestedDiff = createFunction.createDiff(oldFile, newFile, workDir, hashAlgorithm);
+                    if (Files.size(nestedDiff) > Integer.MAX_VALUE) {
+                        return false;
+                    }
+                }
+                byte[] skeletonDelta = BsDiffCodec.diff(oldSkeleton.data(), newSkeleton.data());
+                DataOutputStream dataOut = new DataOutputStream(delta);
+                if (nestedDiff == null) {
+                    dataOut.writeInt(0);
+                } else {
+                    dataOut.writeInt((int) Files.size(nestedDiff));
+                    Files.copy(nestedDiff, dataOut);
+                }
+                dataOut.writeInt(skeletonDelta.length);
+                dataOut.write(skeletonDelta);
+                dataOut.writeInt(newSkeleton.regions().size());
+                long skeletonPosition = 0;
+                for (Region region : newSkeleton.regions()) {
+                    dataOut.writeLong(region.skeletonPosition() - skeletonPosition);
+                    skeletonPosition = region.skeletonPosition();
+                    writeEntryData(oldIndex, newIndex, region.path(), dataOut);
+                }
+                dataOut.flush();
+                return true;
+            }
+        } finally {
+            FileUtils.clearWorkingDirectory(workDir);
+        }
+    }
+
+    @Override
+    public void applyDelta(JarIndex jar, String path, InputStream delta, OutputStream out) throws IOException {
+        Path workDir = FileUtils.createTmpDir();
+        try {
+            Path oldFile = extract(jar, path, workDir.resolve(OLD_ARCHIVE_NAME));
+            DataInputStream dataIn = new DataInputStream(delta);
+            int nestedDiffLength = dataIn.readInt();
+            if (nestedDiffLength < 0) {
+                throw new SelfUpdaterException("Nested archive delta has an invalid header: " + path);
+            }
+            Path nestedDiff = null;
+            if (nestedDiffLength > 0) {
+                nestedDiff = workDir.resolve(NESTED_DIFF_NAME);
+                try (OutputStream diffOut = Files.newOutputStream(nestedDiff)) {
+                    copyBytes(dataIn, diffOut, nestedDiffLength);
+                }
+            }
+            int skeletonDeltaLength = dataIn.readInt();
+            if (skeletonDeltaLength < 0) {
+                throw new SelfUpdaterException("Nested archive delta has an invalid header: " + path);
+            }
+            byte[] skeletonDelta = new byte[skeletonDeltaLength];
+            dataIn.readFully(skeletonDelta);
+            try (JarIndex oldIndex = JarIndex.open(oldFile);
+                    JarIndex diffIndex = nestedDiff == null ? null : JarIndex.open(nestedDiff)) {
+                NavigableMap<String, Source> tree = diffIndex == null ? null : applyNested(diffIndex, oldIndex, path);
+                Skeleton oldSkeleton = Skeleton.read(oldFile, oldIndex);
+                if (oldSkeleton == null) {
+                    throw new SelfUpdaterException("Nested archive is too large: " + path);
+                }
+                ByteArrayOutputStream skeletonOut = new ByteArrayOutputStream();
+                BsDiffCodec.patch(oldSkeleton.data(), skeletonDelta, skeletonOut);
+                byte[] skeleton = skeletonOut.toByteArray();
+                int entryCount = dataIn.readInt();
+                int skeletonPosition = 0;
+                for (int i = 0; i < entryCount; i++) {
+                    long gap = dataIn.readLong();
+                    if (gap < 0 || gap > skeleton.length - skeletonPosition) {
+                        throw new SelfUpdaterException("Nested archive delta exceeds its skeleton: " + path);
+                    }
+                    out.write(skeleton, skeletonPosition, (int) gap);
+                    skeletonPosition += (int) gap;
+                    readEntryData(oldIndex, tree, dataIn, out);
+                }
+                out.write(skeleton, skeletonPosition, skeleton.length - skeletonPosition);
+            }
+        } catch (EOFException e) {
+            throw new SelfUpdaterException("Nested archive delta is truncated: " + path, e);
+        } finally {
+            FileUtils.clearWorkingDirectory(workDir);
+        }
+    }
+
+    /**
+     * Applies the nested diff, after checking it belongs to the old archive.
+     *
+     * @return The nested archive's updated tree.
+     */
+    private NavigableMap<String, Source> applyNested(JarIndex diff, JarIndex oldIndex, String path)
+            throws IOException {
+        DiffMetaData metaData = FileUtils.getDiffMetaData(diff);
+        MetaVersion metaVersion = MetaVersion.getByValue(metaData.metaVersion());
+        HashAlgorithm nestedHashAlgorithm = HashAlgorithm.getByValue(metaData.hashAlgorithm());
+        if (!metaVersion.hashTree(diff, FileUtils.DIFF_DATA_DIR, nestedHashAlgorithm).equals(metaData.diffHash())
+                || !metaVersion.hashTree(oldIndex, "", nestedHashAlgorithm).equals(metaData.oldHash())) {
+            throw new SelfUpdaterException("Nested diff doesn't match the archive: " + path);
+        }
+        return applyFunction.applyDiff(diff, oldIndex);
+    }
+
+    /**
+     * Chooses how to reproduce an entry's compressed data and writes the operation.
+     */
+    private static void writeEntryData(JarIndex oldIndex, JarIndex newIndex, String path, DataOutputStream dataOut)
+            throws IOException {
+        RawEntry newEntry = newIndex.getRawEntry(path);
+        RawEntry oldEntry = oldIndex.isFile(path) ? oldIndex.getRawEntry(path) : null;
+        if (oldEntry != null
+                && oldEntry.method() == newEntry.method()
+                && oldEntry.crc() == newEntry.crc()
+                && oldEntry.compressedSize() == newEntry.compressedSize()
+                && equalRawData(oldIndex, newIndex, path)) {
+            dataOut.writeByte(OP_COPY);
+            dataOut.writeUTF(path);
+            return;
+        }
+        if (newEntry.isCopyable()
+                && newEntry.size() <= BsDiffCodec.MAX_FILE_SIZE
+                && newEntry.compressedSize() <= BsDiffCodec.MAX_FILE_SIZE) {
+            byte[] raw;
+            byte[] content;
+            try (InputStream rawIn = newIndex.openRaw(path);
+                    InputStream contentIn = newIndex.open(path)) {
+                raw = rawIn.readAllBytes();
+                content = contentIn.readAllBytes();
+            }
+            if (newEntry.method() == ZipEntry.STORED && Arrays.equals(raw, content)) {
+                dataOut.writeByte(OP_STORE);
+                dataOut.writeUTF(path);
+                return;
+            }
+            int level = newEntry.method() == ZipEntry.DEFLATED ? deflateLevel(content, raw) : NO_LEVEL;
+            if (level != NO_LEVEL) {
+                CRC32 crc = new CRC32();
+                crc.update(raw);
+                dataOut.writeByte(OP_DEFLATE);
+                dataOut.writeUTF(path);
+                dataOut.writeByte(level);
+                dataOut.writeInt((int) crc.getValue());
+                return;
+            }
+        }
+        dataOut.writeByte(OP_LITERAL);
+        dataOut.writeLong(newEntry.compressedSize());
+        try (InputStream rawIn = newIndex.openRaw(path)) {
+            rawIn.transferTo(dataOut);
+        }
+    }
+
+    /**
+     * Reads one operation and writes the entry's compressed data it describes.
+     *
+     * @param tree Updated tree of the nested archive, or {@code null} if it didn't change.
+     */
+    private static void readEntryData(
+            JarIndex oldIndex, NavigableMap<String, Source> tree, DataInputStream dataIn, OutputStream out)
+            throws IOException {
+        byte op = dataIn.readByte();
+        switch (op) {
+            case OP_COPY -> {
+                try (InputStream rawIn = oldIndex.openRaw(dataIn.readUTF())) {
+                    rawIn.transferTo(out);
+                }
+            }
+            case OP_STORE -> updatedSource(oldIndex, tree, dataIn.readUTF()).writeTo(out);
+            case OP_DEFLATE -> {
+                String path = dataIn.readUTF();
+                int level = dataIn.readByte();
+                long expectedCrc = 0xFFFFFFFFL & dataIn.readInt();
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                updatedSource(oldIndex, tree, path).writeTo(content);
+                byte[] raw = deflate(content.toByteArray(), level);
+                CRC32 crc = new CRC32();
+                crc.update(raw);
+                if (crc.getValue() != expectedCrc) {
+                    throw new SelfUpdaterException("Deflating doesn't reproduce the nested archive's entry: " + path);
+                }
+                out.write(raw);
+            }
+            case OP_LITERAL -> {
+                long length = dataIn.readLong();
+                if (length < 0) {
+                    throw new SelfUpdaterException("Nested archive delta has an invalid literal length: " + length);
+                }
+                copyBytes(dataIn, out, length);
+            }
+            default -> throw new SelfUpdaterException("Nested archive delta has an invalid operation: " + op);
+        }
+    }
+
+    private static Source updatedSource(JarIndex oldIndex, NavigableMap<String, Source> tree, String path)
+            throws SelfUpdaterException {
+        Source source = tree == null ? (oldIndex.isFile(path) ? new Source(oldIndex, path) : null) : tree.get(path);
+        if (source == null) {
+            throw new SelfUpdaterException("Entry is missing in the updated nested archive: " + path);
+        }
+        return source;
+    }
+
+    /**
+     * Searches the compression level, which deflates the content to exactly the given data.
+     *
+     * @return The level, or {@link #NO_LEVEL} if there is none.
+     */
+    private static int deflateLevel(byte[] content, byte[] raw) {
+        for (int level : DEFLATE_LEVELS) {
+            if (Arrays.equals(deflate(content, level), raw)) {
+                return level;
+            }
+        }
+        return NO_LEVEL;
+    }
+
+    private static byte[] deflate(byte[] content, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            while (!deflater.finished()) {
+                result.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean equalRawData(JarIndex oldIndex, JarIndex newIndex, String path) throws IOException {
+        try (InputStream oldIn = oldIndex.openRaw(path);
+                InputStream newIn = newIndex.openRaw(path)) {
+            byte[] oldBuffer = new byte[COPY_BUFFER_SIZE];
+            byte[] newBuffer = new byte[COPY_BUFFER_SIZE];
+            int oldCount;
+            do {
+                oldCount = oldIn.readNBytes(oldBuffer, 0, COPY_BUFFER_SIZE);
+                int newCount = newIn.readNBytes(newBuffer, 0, COPY_BUFFER_SIZE);
+                if (oldCount != newCount || !Arrays.equals(oldBuffer, 0, oldCount, newBuffer, 0, newCount)) {
+                    return false;
+                }
+            } while (oldCount == COPY_BUFFER_SIZE);
+            return true;
+        }
+    }
+
+    private static boolean isArchive(JarIndex jar, String path) throws IOException {
+        try (InputStream inputStream = jar.open(path)) {
+            byte[] header = inputStream.readNBytes(FileUtils.MAGIC_BYTES_LENGTH);
+            return FileUtils.isCompressedData(header, header.length);
+        }
+    }
+
+    /**
+     * @return Index of the archive, or {@code null} if it only looks like one.
+     */
+    private static JarIndex openArchive(Path file) throws IOException {
+        try {
+            return JarIndex.open(file);
+        } catch (ZipException e) {
+            return null;
+        }
+    }
+
+    private static Path extract(JarIndex jar, String path, Path file) throws IOException {
+        try (InputStream inputStream = jar.open(path)) {
+            Files.copy(inputStream, file);
+        }
+        return file;
+    }
+
+    private static void copyBytes(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(length, COPY_BUFFER_SIZE)];
+        while (length > 0) {
+            int bytesCount = in.read(buffer, 0, (int) Math.min(length, buffer.length));
+            if (bytesCount < 0) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, bytesCount);
+            length -= bytesCount;
+        }
+    }
+
+    /**
+     * Location of an entry's compressed data.
+     *
+     * @param skeletonPosition Where the data is located after removing all entries' data from the archive.
+     */
+    private record Region(String path, long offset, long length, long skeletonPosition) {}
+
+    /**
+     * Bytes of an archive without its entries' compressed data.
+     *
+     * @param regions Removed data, ordered by position.
+     */
+    private record Skeleton(byte[] data, List<Region> regions) {
+        /**
+         * @return The skeleton, or {@code null} if it exceeds {@link BsDiffCodec#MAX_FILE_SIZE}.
+         */
+        static Skeleton read(Path file, JarIndex index) throws IOException {
+            List<Region> candidates = new ArrayList<>();
+            for (String path : index.paths()) {
+                RawEntry rawEntry = index.isFile(path) ? index.getRawEntry(path) : null;
+                if (rawEntry != null && rawEntry.compressedSize() > 0) {
+                    candidates.add(new Region(path, index.rawDataOffset(path), rawEntry.compressedSize(), 0));
+                }
+            }
+            candidates.sort(Comparator.comparingLong(Region::offset));
+            long fileSize = Files.size(file);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            List<Region> regions = new ArrayList<>();
+            try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(file))) {
+                long position = 0;
+                for (Region candidate : candidates) {
+                    // overlapping data stays part of the skeleton
+                    if (candidate.offset() < position || candidate.offset() + candidate.length() > fileSize) {
+                        continue;
+                    }
+                    if (data.size() + candidate.offset() - position > BsDiffCodec.MAX_FILE_SIZE) {
+                        return null;
+                    }
+                    copyBytes(inputStream, data, candidate.offset() - position);
+                    inputStream.skipNBytes(candidate.length());
+                    position = candidate.offset() + candidate.length();
+                    regions.add(new Region(candidate.path(), candidate.offset(), candidate.length(), data.size()));
+                }
+                if (data.size() + fileSize - position > BsDiffCodec.MAX_FILE_SIZE) {
+                    return null;
+                }
+                inputStream.transferTo(data);
+            }
+            return new Skeleton(data.toByteArray(), regions);
+        }
+    }
+}
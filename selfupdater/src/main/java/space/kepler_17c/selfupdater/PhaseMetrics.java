@@ -0,0 +1,164 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a running update, which are reported and reset with each {@link UpdaterEvent}.
+ * <p>
+ *     An update makes its metrics current for its thread via {@link #begin()}.
+ *     {@link JarIndex} and {@link JarWriter} pick up the current metrics when they are created
+ *     and record into them from any thread, so parallel work is included.
+ *     Tasks on other threads which may create either of them {@link #attach()} the metrics first.
+ *     Outside an update, {@link #current()} returns a disabled instance, which records nothing.
+ *     Each phase of an enabled instance is also emitted as {@link FlightEvents.PhaseEvent}.
+ * </p>
+ */
+final class PhaseMetrics {
+    private static final ThreadLocal<PhaseMetrics> CURRENT = new ThreadLocal<>();
+    private static final PhaseMetrics DISABLED = new PhaseMetrics(false);
+
+    private final boolean enabled;
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder entriesRead = new LongAdder();
+    private final LongAdder entriesWritten = new LongAdder();
+    private final AtomicLong peakBufferSize = new AtomicLong();
+    private long phaseStart = System.nanoTime();
+    private FlightEvents.PhaseEvent phaseEvent;
+
+    private PhaseMetrics(boolean enabled) {
+        this.enabled = enabled;
+        if (enabled) {
+            phaseEvent = new FlightEvents.PhaseEvent();
+            phaseEvent.begin();
+        }
+    }
+
+    /**
+     * Starts recording for the current thread, until {@link #end()} is called.
+     */
+    static PhaseMetrics begin() {
+        PhaseMetrics metrics = new PhaseMetrics(true);
+        CURRENT.set(metrics);
+        return metrics;
+    }
+
+    static PhaseMetrics current() {
+        PhaseMetrics metrics = CURRENT.get();
+        return metrics == null ? DISABLED : metrics;
+    }
+
+    void end() {
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Makes these metrics current for the current thread as well, e.g. for a task on a pool thread.
+     *
+     * @return The metrics current before, to be passed to {@link #restore(PhaseMetrics)} afterwards.
+     */
+    PhaseMetrics attach() {
+        PhaseMetrics previous = CURRENT.get();
+        CURRENT.set(this);
+        return previous;
+    }
+
+    /**
+     * @param previous The result of {@link #attach()}.
+     */
+    static void restore(PhaseMetrics previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Counts an opened entry and all bytes read from it.
+     */
+    InputStream recordEntryRead(InputStream inputStream) {
+        if (!enabled) {
+            return inputStream;
+        }
+        entriesRead.increment();
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                int value = super.read();
+                if (value >= 0) {
+                    bytesRead.increment();
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int received = super.read(b, off, len);
+                if (received > 0) {
+                    bytesRead.add(received);
+                }
+                return received;
+            }
+        };
+    }
+
+    void recordWritten(long entries, long bytes) {
+        if (enabled) {
+            entriesWritten.add(entries);
+            bytesWritten.add(bytes);
+        }
+    }
+
+    /**
+     * Records content held in memory at once.
+     */
+    void recordBuffer(long size) {
+        if (enabled) {
+            peakBufferSize.accumulateAndGet(size, Math::max);
+        }
+    }
+
+    /**
+     * Reports everything recorded since the previous phase ended and starts the next phase.
+     */
+    synchronized UpdaterEventInfo finishPhase(UpdaterEvent event, boolean success) {
+        long now = System.nanoTime();
+        UpdaterEventInfo info = new UpdaterEventInfo(
+                event,
+                success,
+                Duration.ofNanos(now - phaseStart),
+                bytesRead.sumThenReset(),
+                bytesWritten.sumThenReset(),
+                entriesRead.sumThenReset(),
+                entriesWritten.sumThenReset(),
+                peakBufferSize.getAndSet(0));
+        phaseStart = now;
+        if (enabled) {
+            commitPhaseEvent(info);
+            phaseEvent = new FlightEvents.PhaseEvent();
+            phaseEvent.begin();
+        }
+        return info;
+    }
+
+    private void commitPhaseEvent(UpdaterEventInfo info) {
+        if (phaseEvent.shouldCommit()) {
+            phaseEvent.event = info.event().name();
+            phaseEvent.success = info.success();
+            phaseEvent.bytesRead = info.bytesRead();
+            phaseEvent.bytesWritten = info.bytesWritten();
+            phaseEvent.entriesRead = info.entriesRead();
+            phaseEvent.entriesWritten = info.entriesWritten();
+            phaseEvent.peakBufferSize = info.peakBufferSize();
+            phaseEvent.commit();
+        }
+    }
+}
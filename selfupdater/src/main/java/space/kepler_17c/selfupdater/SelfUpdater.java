@@ -3,28 +3,52 @@ package space.kepler_17c.selfupdater;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import space.kepler_17c.selfupdater.FileUtils.DiffMetaData;
-import space.kepler_17c.selfupdater.FileUtils.WorkingDirectory;
+import space.kepler_17c.selfupdater.JarWriter.Source;
 
 /**
  * This is the main interface of the library.
  * <p>
  *     Functionality accessible from here includes:
  *     <ul>
- *         <li><i>createDiff</i> &#8211; Generate a diff from two jar files.</li>
- *         <li><i>applyDiff</i> &#8211; Apply a diff to a jar file.</li>
+ *         <li><i>createDiff</i>, <i>createDiffs</i> &#8211; Generate diffs between jar files.</li>
+ *         <li><i>applyDiff</i>, <i>applyDiffs</i> &#8211; Apply a diff or a chain of diffs to a jar file.</li>
  *         <li><i>update</i> &#8211; Add some automation around application of the diff.</li>
+ *         <li><i>applyDiffAsync</i>, <i>updateAsync</i> &#8211; Run either of them in the background.</li>
+ *         <li><i>composeDiffs</i> &#8211; Merge consecutive diffs into one.</li>
  *     </ul>
  * </p>
  */
 public final class SelfUpdater {
+    /**
+     * Runs each asynchronous update on a new daemon thread, so it neither blocks shutdown nor a shared pool.
+     */
+    private static final Executor DEFAULT_EXECUTOR = task -> {
+        Thread thread = new Thread(task, "SelfUpdater");
+        thread.setDaemon(true);
+        thread.start();
+    };
+
     /**
      * Holds the current update policy.
      * <p>Default value is {@link UpdatePolicy#ON_SHUTDOWN}.</p>
      */
     private static UpdatePolicy updatePolicy = UpdatePolicy.ON_SHUTDOWN;
 
+    /**
+     * Holds the current compression policy for all written jars.
+     * <p>Default value is {@link CompressionPolicy#DEFAULT}.</p>
+     */
+    private static CompressionPolicy compressionPolicy = CompressionPolicy.DEFAULT;
+
     private SelfUpdater() {
         throw new UnsupportedOperationException("This is a static class.");
     }
@@ -57,12 +81,132 @@ public final class SelfUpdater {
      * @see #createDiff(Path, Path, Path)
      */
     public static Path createDiff(Path oldJar, Path newJar, Path outputDir, DiffFormat diffFormat) {
+        return createDiff(oldJar, newJar, outputDir, diffFormat, HashAlgorithm.DEFAULT);
+    }
+
+    /**
+     * Creates a diff from two jar files using the chosen diff format and hash algorithm and writes it to a file.
+     * <p>The algorithm is stored in the diff, so applying it works the same for all algorithms.</p>
+     *
+     * @param oldJar        Location of the old version.
+     * @param newJar        Location of the target version.
+     * @param outputDir     Directory where the diff shall be written to.
+     * @param diffFormat    Diff format to be used.
+     * @param hashAlgorithm Digest for the diff's hashes. Algorithms other than {@link HashAlgorithm#SHA_256}
+     *                      require {@link DiffFormat#V6} or later.
+     *
+     * @return The location of the diff file if all operations succeeded, {@code null} otherwise.
+     *
+     * @see #createDiff(Path, Path, Path, DiffFormat)
+     */
+    public static Path createDiff(
+            Path oldJar, Path newJar, Path outputDir, DiffFormat diffFormat, HashAlgorithm hashAlgorithm) {
+        try {
+            return diffFormat.createFunction.createDiff(oldJar, newJar, outputDir, hashAlgorithm);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Creates diffs from several old versions to one new version using the latest diff format.
+     * <p>The diffs are created concurrently on the common {@link ForkJoinPool}.</p>
+     *
+     * @see #createDiffs(List, Path, Path, DiffFormat, HashAlgorithm, Executor)
+     */
+    public static List<Path> createDiffs(List<Path> oldJars, Path newJar, Path outputDir) {
+        return createDiffs(
+                oldJars, newJar, outputDir, DiffFormat.LATEST, HashAlgorithm.DEFAULT, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates diffs from several old versions to one new version.
+     * <p>
+     *     The new jar is read and hashed once for all diffs, instead of once per diff.
+     *     Each diff is named after its old jar, so the old jars need distinct file names.
+     * </p>
+     *
+     * @param oldJars       Locations of the old versions.
+     * @param newJar        Location of the target version.
+     * @param outputDir     Directory where the diffs shall be written to.
+     * @param diffFormat    Diff format to be used.
+     * @param hashAlgorithm Digest for the diffs' hashes.
+     * @param executor      Runs the creation of each diff.
+     *
+     * @return The locations of the diff files in the order of the old jars, with {@code null} for each failed diff.
+     * {@code null} if the arguments are invalid or the new jar can't be read.
+     *
+     * @see #createDiff(Path, Path, Path, DiffFormat, HashAlgorithm)
+     */
+    public static List<Path> createDiffs(
+            List<Path> oldJars,
+            Path newJar,
+            Path outputDir,
+            DiffFormat diffFormat,
+            HashAlgorithm hashAlgorithm,
+            Executor executor) {
+        List<CompletableFuture<Path>> creations;
         try {
-            return diffFormat.createFunction.createDiff(oldJar, newJar, outputDir);
+            creations = CreateDiff.createAll(oldJars, newJar, outputDir, diffFormat, hashAlgorithm, executor);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
+        List<Path> results = new ArrayList<>();
+        for (CompletableFuture<Path> creation : creations) {
+            try {
+                results.add(creation.join());
+            } catch (CompletionException e) {
+                e.getCause().printStackTrace();
+                results.add(null);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Merges consecutive diffs into a single diff, without creating any of the intermediate versions.
+     *
+     * @param diffs     Locations of the diffs, each applying to the result of its predecessor.
+     * @param outputDir Directory where the diff shall be written to.
+     *
+     * @return The location of the composed diff.
+     *
+     * @throws SelfUpdaterException When the diffs can't be composed,
+     * e.g. because a delta applies to a file of the oldest version, which isn't available here.
+     *
+     * @see #composeDiffs(List, Path, Path)
+     */
+    public static Path composeDiffs(List<Path> diffs, Path outputDir) throws SelfUpdaterException {
+        return composeDiffs(diffs, null, outputDir);
+    }
+
+    /**
+     * Merges consecutive diffs into a single diff, without creating any of the intermediate versions.
+     * <p>
+     *     Chained moves are merged, files which are added and deleted again are dropped
+     *     and changed files only keep their newest version.
+     *     Deltas which don't apply to the oldest version directly are reconstructed and stored as whole files,
+     *     which may require the oldest version.
+     * </p>
+     *
+     * @param diffs     Locations of the diffs, each applying to the result of its predecessor.
+     * @param baseJar   Location of the version the first diff applies to, may be {@code null}.
+     * @param outputDir Directory where the diff shall be written to.
+     *
+     * @return The location of the composed diff.
+     *
+     * @throws SelfUpdaterException When the diffs can't be composed or when they revert each other.
+     */
+    public static Path composeDiffs(List<Path> diffs, Path baseJar, Path outputDir) throws SelfUpdaterException {
+        try {
+            return ComposeDiff.compose(diffs, baseJar, outputDir);
+        } catch (SelfUpdaterException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new SelfUpdaterException("Failed to compose diffs.", e);
+        }
     }
 
     /**
@@ -71,29 +215,103 @@ public final class SelfUpdater {
      *     When applying the diff succeeded (uses {@link SelfUpdater#applyDiff(Path, Path)}),
      *     the {@link UpdatePolicy} set via {@link SelfUpdater#setUpdatePolicy(UpdatePolicy)} is checked,
      *     and replacing the running file is scheduled accordingly.
+     *     The updated file is staged next to the running one beforehand, so replacing it is a single atomic rename.
+     *     The previous version is kept next to it with the suffix {@code .backup}.
      *     After the file is replaced, all update callbacks registered via {@link UpdatePolicy} will be called.
      * </p>
      *
      * @param diff to apply for the update.
      */
     public static void update(Path diff) throws SelfUpdaterException {
+        scheduleReplacement(applyUpdate(diff));
+    }
+
+    /**
+     * Runs {@link #update(Path)} on a new daemon thread.
+     *
+     * @see #updateAsync(Path, Executor)
+     */
+    public static CompletableFuture<Path> updateAsync(Path diff) {
+        return updateAsync(diff, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * Runs {@link #update(Path)} on the given executor.
+     * <p>
+     *     Cancelling the future stops applying the diff before the next jar entry and deletes the updated file.
+     *     Once replacing the running file is scheduled, cancelling has no effect anymore.
+     * </p>
+     *
+     * @param diff     to apply for the update.
+     * @param executor Runs the update.
+     *                 Hashing additionally uses the common {@link java.util.concurrent.ForkJoinPool}.
+     *
+     * @return Completes with the location of the staged file when replacing the running file is scheduled.
+     */
+    public static CompletableFuture<Path> updateAsync(Path diff, Executor executor) {
+        return runAsync(executor, false, () -> {
+            Path updatedFile = applyUpdate(diff);
+            try {
+                Cancellation.current().check();
+            } catch (SelfUpdaterException e) {
+                discardResult(updatedFile);
+                throw e;
+            }
+            return scheduleReplacement(updatedFile);
+        });
+    }
+
+    private static Path applyUpdate(Path diff) throws SelfUpdaterException {
         if (diff == null || !Files.isRegularFile(diff)) {
             UpdaterEvent.triggerEvent(UpdaterEvent.RECEIVED_DIFF, false);
             throw new SelfUpdaterException("The given path doesn't denote a file: " + diff);
         }
-        Path updatedFile = applyDiff(diff, FileUtils.getRunningJarFile());
+        return applyDiff(diff, FileUtils.getRunningJarFile(), HashCache.getDefault());
+    }
+
+    /**
+     * Stages the updated file next to the running jar and schedules the replacement according to the policy.
+     *
+     * @return The file which replaces the running jar.
+     */
+    private static Path scheduleReplacement(Path updatedFile) {
+        Path runningJar = FileUtils.getRunningJarFile();
+        JarReplacement replacement = stageReplacement(updatedFile, runningJar);
         Runnable updateTask = () -> {
+            FlightEvents.ReplacementEvent event = new FlightEvents.ReplacementEvent();
+            event.begin();
+            boolean replaced = false;
             try {
-                Files.copy(updatedFile, FileUtils.getRunningJarFile(), StandardCopyOption.REPLACE_EXISTING);
-                UpdatePolicy.runUpdateCallbacks();
+                replacement.replace();
+                replaced = true;
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            if (event.shouldCommit()) {
+                event.source = replacement.stagedJar().toString();
+                event.target = runningJar.toString();
+                event.size = runningJar.toFile().length();
+                event.success = replaced;
+                event.commit();
+            }
+            if (replaced) {
+                UpdatePolicy.runUpdateCallbacks();
+            }
         };
         switch (updatePolicy) {
             case ON_SHUTDOWN -> Runtime.getRuntime().addShutdownHook(new Thread(updateTask));
             case WHEN_READY -> updateTask.run();
         }
+        return replacement.stagedJar();
+    }
+
+    private static JarReplacement stageReplacement(Path updatedFile, Path runningJar) {
+        try {
+            return JarReplacement.stage(updatedFile, runningJar);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return JarReplacement.unstaged(updatedFile, runningJar);
+        }
     }
 
     /**
@@ -110,23 +328,259 @@ public final class SelfUpdater {
      * @see #update(Path)
      */
     public static Path applyDiff(Path diff, Path jar) throws SelfUpdaterException {
+        return applyDiff(diff, jar, null);
+    }
+
+    /**
+     * Runs {@link #applyDiff(Path, Path)} on a new daemon thread.
+     *
+     * @see #applyDiffAsync(Path, Path, Executor)
+     */
+    public static CompletableFuture<Path> applyDiffAsync(Path diff, Path jar) {
+        return applyDiffAsync(diff, jar, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * Runs {@link #applyDiff(Path, Path)} on the given executor.
+     * <p>
+     *     Cancelling the future stops applying the diff before the next jar entry
+     *     and deletes the working directory of the updated file.
+     * </p>
+     *
+     * @param diff     Location of the diff to be applied.
+     * @param jar      Location of the file to be updated.
+     * @param executor Runs the update.
+     *                 Hashing additionally uses the common {@link java.util.concurrent.ForkJoinPool}.
+     *
+     * @return Completes with the location of the updated jar file,
+     * or exceptionally with the {@link SelfUpdaterException} {@link #applyDiff(Path, Path)} would throw.
+     */
+    public static CompletableFuture<Path> applyDiffAsync(Path diff, Path jar, Executor executor) {
+        return runAsync(executor, true, () -> applyDiff(diff, jar, null));
+    }
+
+    /**
+     * Applies consecutive diffs to a jar file, writing only the newest version.
+     * <p>
+     *     The diffs are resolved together, so no intermediate version is written or hashed.
+     *     Files reconstructed from deltas are verified against their diff's manifest, if it has one,
+     *     and the updated jar is verified against the last diff's hash.
+     * </p>
+     *
+     * @param diffs Locations of the diffs, each applying to the result of its predecessor.
+     * @param jar   Location of the file to be updated.
+     *
+     * @return The location of the updated jar file.
+     *
+     * @throws SelfUpdaterException When any stage of applying the diffs failed.
+     * Subscribe to {@link UpdaterEvent} channels for status updates, which are sent once for the whole chain.
+     *
+     * @see #applyDiff(Path, Path)
+     * @see #composeDiffs(List, Path, Path)
+     */
+    public static Path applyDiffs(List<Path> diffs, Path jar) throws SelfUpdaterException {
+        PhaseMetrics metrics = PhaseMetrics.begin();
+        try {
+            return applyDiffsMeasured(diffs, jar);
+        } finally {
+            metrics.end();
+        }
+    }
+
+    private static Path applyDiffsMeasured(List<Path> diffs, Path jar) throws SelfUpdaterException {
+        if (diffs != null && !diffs.isEmpty() && diffs.stream().allMatch(Files::isRegularFile)) {
+            UpdaterEvent.triggerEvent(UpdaterEvent.RECEIVED_DIFF, true);
+        } else {
+            UpdaterEvent.triggerEvent(UpdaterEvent.RECEIVED_DIFF, false);
+            throw new SelfUpdaterException("Invalid diff file paths: " + diffs);
+        }
+        try (JarIndex jarIndex = JarIndex.open(jar)) {
+            List<JarIndex> diffIndices = new ArrayList<>();
+            try {
+                for (Path diff : diffs) {
+                    diffIndices.add(JarIndex.open(diff));
+                }
+                UpdaterEvent.triggerEvent(UpdaterEvent.EXTRACTED_DATA, true);
+                return applyDiffs(new ComposeDiff(jarIndex, diffIndices));
+            } finally {
+                for (JarIndex diffIndex : diffIndices) {
+                    diffIndex.close();
+                }
+            }
+        } catch (SelfUpdaterException e) {
+            throw e;
+        } catch (IOException e) {
+            UpdaterEvent.triggerEvent(UpdaterEvent.EXTRACTED_DATA, false);
+            throw new SelfUpdaterException("Failed to read source files.", e);
+        }
+    }
+
+    private static Path applyDiffs(ComposeDiff chain) throws SelfUpdaterException {
+        try {
+            chain.checkVersions();
+        } catch (SelfUpdaterException e) {
+            UpdaterEvent.triggerEvent(UpdaterEvent.CHECKED_VERSION, false);
+            throw e;
+        }
+        UpdaterEvent.triggerEvent(UpdaterEvent.CHECKED_VERSION, true);
+        try {
+            chain.verifyHashes();
+        } catch (IOException e) {
+            UpdaterEvent.triggerEvent(UpdaterEvent.VERIFIED_HASHES, false);
+            throw e instanceof SelfUpdaterException selfUpdaterException
+                    ? selfUpdaterException
+                    : new SelfUpdaterException("Failed to hash source or diff files.", e);
+        }
+        UpdaterEvent.triggerEvent(UpdaterEvent.VERIFIED_HASHES, true);
+        NavigableMap<String, Source> updatedTree;
+        try {
+            chain.resolve();
+            updatedTree = chain.updatedTree();
+        } catch (IOException e) {
+            UpdaterEvent.triggerEvent(UpdaterEvent.APPLIED_DIFF, false);
+            throw e instanceof SelfUpdaterException selfUpdaterException
+                    ? selfUpdaterException
+                    : new SelfUpdaterException("Failed to read diff files.", e);
+        }
+        UpdaterEvent.triggerEvent(UpdaterEvent.APPLIED_DIFF, true);
+        Path resultPath = null;
+        String newHashActual;
+        try {
+            resultPath = FileUtils.createTmpDir().resolve(FileUtils.UPDATED_FILE_NAME);
+            try (JarWriter writer = new JarWriter(resultPath, "", chain.metaVersion(), chain.hashAlgorithm())) {
+                writer.putTree(updatedTree);
+                newHashActual = writer.finishHash();
+            }
+            UpdaterEvent.triggerEvent(UpdaterEvent.PACKED_EXECUTABLE, true);
+        } catch (IOException e) {
+            discardResult(resultPath);
+            UpdaterEvent.triggerEvent(UpdaterEvent.PACKED_EXECUTABLE, false);
+            throw new SelfUpdaterException("Failed to write updated files.", e);
+        }
+        if (chain.newHash().equals(newHashActual)) {
+            UpdaterEvent.triggerEvent(UpdaterEvent.VERIFIED_UPDATED_FILES, true);
+            return resultPath;
+        } else {
+            discardResult(resultPath);
+            UpdaterEvent.triggerEvent(UpdaterEvent.VERIFIED_UPDATED_FILES, false);
+            throw new SelfUpdaterException("Updated files' hashes don't match.");
+        }
+    }
+
+    /**
+     * Runs a task with cancellation bound to the returned future.
+     *
+     * @param discardOnCancel Whether to delete the result's working directory if the future was cancelled meanwhile.
+     */
+    private static CompletableFuture<Path> runAsync(Executor executor, boolean discardOnCancel, AsyncTask task) {
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        Runnable runnable = () -> {
+            if (future.isDone()) {
+                return;
+            }
+            Cancellation cancellation = Cancellation.begin(future::isCancelled);
+            try {
+                Path result = task.run();
+                if (!future.complete(result) && discardOnCancel) {
+                    discardResult(result);
+                }
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                cancellation.end();
+            }
+        };
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static void discardResult(Path resultPath) {
+        if (resultPath == null) {
+            return;
+        }
+        try {
+            FileUtils.clearWorkingDirectory(resultPath.getParent());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies a diff, taking the old jar's hash from a cache if possible.
+     *
+     * @param hashCache Cache for the old jar's hash, {@code null} to always compute it.
+     */
+    private static Path applyDiff(Path diff, Path jar, HashCache hashCache) throws SelfUpdaterException {
+        PhaseMetrics metrics = PhaseMetrics.begin();
+        try {
+            return applyDiffMeasured(diff, jar, hashCache);
+        } finally {
+            metrics.end();
+        }
+    }
+
+    private static Path applyDiffMeasured(Path diff, Path jar, HashCache hashCache) throws SelfUpdaterException {
         if (diff != null && Files.isRegularFile(diff)) {
             UpdaterEvent.triggerEvent(UpdaterEvent.RECEIVED_DIFF, true);
         } else {
             UpdaterEvent.triggerEvent(UpdaterEvent.RECEIVED_DIFF, false);
             throw new SelfUpdaterException("Invalid diff file path: " + diff);
         }
-        WorkingDirectory workingDirectory = FileUtils.prepareWorkingDirectory(jar, null, diff);
-        DiffMetaData metaData = FileUtils.getDiffMetaData(workingDirectory);
-        if (metaData.version().matches("[0-9]+") && DiffFormat.hasVersion(Integer.parseInt(metaData.version()))) {
+        try (JarIndex diffIndex = JarIndex.open(diff);
+                JarIndex jarIndex = JarIndex.open(jar)) {
+            UpdaterEvent.triggerEvent(UpdaterEvent.EXTRACTED_DATA, true);
+            return applyDiff(diffIndex, jarIndex, jar, hashCache);
+        } catch (SelfUpdaterException e) {
+            throw e;
+        } catch (IOException e) {
+            UpdaterEvent.triggerEvent(UpdaterEvent.EXTRACTED_DATA, false);
+            throw new SelfUpdaterException("Failed to read source files.", e);
+        }
+    }
+
+    private static Path applyDiff(JarIndex diff, JarIndex jar, Path jarFile, HashCache hashCache)
+            throws SelfUpdaterException {
+        DiffMetaData metaData = FileUtils.getDiffMetaData(diff);
+        MetaVersion metaVersion;
+        HashAlgorithm hashAlgorithm;
+        if (metaData.version() != null
+                && metaData.version().matches("[0-9]+")
+                && DiffFormat.hasVersion(Integer.parseInt(metaData.version()))) {
+            try {
+                metaVersion = MetaVersion.getByValue(metaData.metaVersion());
+                hashAlgorithm = HashAlgorithm.getByValue(metaData.hashAlgorithm());
+            } catch (SelfUpdaterException e) {
+                UpdaterEvent.triggerEvent(UpdaterEvent.CHECKED_VERSION, false);
+                throw e;
+            }
             UpdaterEvent.triggerEvent(UpdaterEvent.CHECKED_VERSION, true);
         } else {
             UpdaterEvent.triggerEvent(UpdaterEvent.CHECKED_VERSION, false);
             throw new SelfUpdaterException("Version string doesn't represent a known version: " + metaData.version());
         }
-        String diffHashActual = FileUtils.hashDirectory(workingDirectory.diffDataFiles);
-        String oldHashActual = FileUtils.hashDirectory(workingDirectory.oldFiles);
-        if (metaData.diffHash().equals(diffHashActual) && metaData.oldHash().equals(oldHashActual)) {
+        // with a manifest, the old tree is checked against its central directory instead of being hashed
+        DiffManifest manifest;
+        String diffHashActual;
+        boolean oldMatches;
+        try {
+            manifest = DiffManifest.read(diff, hashAlgorithm);
+            diffHashActual = metaVersion.hashTree(diff, FileUtils.DIFF_DATA_DIR, hashAlgorithm);
+            if (manifest != null) {
+                oldMatches = manifest.matchesOld(jar);
+            } else if (hashCache != null) {
+                oldMatches = metaData.oldHash().equals(hashCache.hashTree(jarFile, metaVersion, hashAlgorithm));
+            } else {
+                oldMatches = metaData.oldHash().equals(metaVersion.hashTree(jar, "", hashAlgorithm));
+            }
+        } catch (IOException e) {
+            UpdaterEvent.triggerEvent(UpdaterEvent.VERIFIED_HASHES, false);
+            throw new SelfUpdaterException("Failed to hash source or diff files.", e);
+        }
+        if (metaData.diffHash().equals(diffHashActual) && oldMatches) {
             UpdaterEvent.triggerEvent(UpdaterEvent.VERIFIED_HASHES, true);
         } else {
             UpdaterEvent.triggerEvent(UpdaterEvent.VERIFIED_HASHES, false);
@@ -134,11 +588,36 @@ public final class SelfUpdater {
         }
         int version = Integer.parseInt(metaData.version());
         DiffFormat diffFormat = DiffFormat.getFormatByVersion(version);
-        Path resultPath = diffFormat.applyFunction.applyDiff(workingDirectory);
-        if (metaData.newHash().equals(FileUtils.hashDirectory(workingDirectory.newFiles))) {
+        NavigableMap<String, Source> updatedTree;
+        try {
+            updatedTree = diffFormat.applyFunction.applyDiff(diff, jar);
+        } catch (SelfUpdaterException e) {
+            UpdaterEvent.triggerEvent(UpdaterEvent.APPLIED_DIFF, false);
+            throw e;
+        }
+        UpdaterEvent.triggerEvent(UpdaterEvent.APPLIED_DIFF, true);
+        if (manifest != null) {
+            updatedTree = manifest.verifying(updatedTree);
+        }
+        Path resultPath = null;
+        String newHashActual;
+        try {
+            resultPath = FileUtils.createTmpDir().resolve(FileUtils.UPDATED_FILE_NAME);
+            try (JarWriter writer = new JarWriter(resultPath, "", metaVersion, hashAlgorithm)) {
+                writer.putTree(updatedTree);
+                newHashActual = writer.finishHash();
+            }
+            UpdaterEvent.triggerEvent(UpdaterEvent.PACKED_EXECUTABLE, true);
+        } catch (IOException e) {
+            discardResult(resultPath);
+            UpdaterEvent.triggerEvent(UpdaterEvent.PACKED_EXECUTABLE, false);
+            throw new SelfUpdaterException("Failed to write updated files.", e);
+        }
+        if (metaData.newHash().equals(newHashActual)) {
             UpdaterEvent.triggerEvent(UpdaterEvent.VERIFIED_UPDATED_FILES, true);
             return resultPath;
         } else {
+            discardResult(resultPath);
             UpdaterEvent.triggerEvent(UpdaterEvent.VERIFIED_UPDATED_FILES, false);
             throw new SelfUpdaterException("Updated files' hashes don't match.");
         }
@@ -156,4 +635,26 @@ public final class SelfUpdater {
         updatePolicy = newPolicy;
         return oldPolicy;
     }
+
+    /**
+     * Changes the compression policy, which applies to jars written afterwards.
+     *
+     * @param newPolicy The new policy.
+     *
+     * @return The old policy.
+     */
+    public static CompressionPolicy setCompressionPolicy(CompressionPolicy newPolicy) {
+        CompressionPolicy oldPolicy = compressionPolicy;
+        compressionPolicy = newPolicy;
+        return oldPolicy;
+    }
+
+    static CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    @FunctionalInterface
+    private interface AsyncTask {
+        Path run() throws IOException;
+    }
 }
@@ -0,0 +1,120 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+
+/**
+ * Output buffer, which keeps small content in memory and moves larger content to a temporary file.
+ * <p>
+ *     While writing, the content's deflated size is tracked,
+ *     so encodings can be compared by the space they would take in a jar.
+ * </p>
+ */
+final class SpillBuffer extends OutputStream {
+    private static final int MEMORY_LIMIT = 1 << 23; // 2^23 = 8 MiB
+    private static final int DEFLATE_BUFFER_SIZE = 1 << 16; // 2^16 = 64 KiB
+    private static final String SPILL_FILE_NAME = "spill";
+
+    private final Deflater deflater;
+    private final byte[] deflateBuffer;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private Path spillDir;
+    private OutputStream spillOut;
+    private long deflatedSize = -1;
+
+    SpillBuffer() {
+        this(true);
+    }
+
+    /**
+     * @param tracksDeflatedSize Whether {@link #deflatedSize()} is measured, which deflates all content once more.
+     */
+    SpillBuffer(boolean tracksDeflatedSize) {
+        deflater = tracksDeflatedSize ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        deflateBuffer = tracksDeflatedSize ? new byte[DEFLATE_BUFFER_SIZE] : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (deflatedSize >= 0) {
+            throw new IOException("Buffer is already complete.");
+        }
+        if (deflater != null) {
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflater.deflate(deflateBuffer);
+            }
+        }
+        if (memory != null && memory.size() + len > MEMORY_LIMIT) {
+            spillDir = FileUtils.createTmpDir();
+            spillOut = new BufferedOutputStream(Files.newOutputStream(spillDir.resolve(SPILL_FILE_NAME)));
+            memory.writeTo(spillOut);
+            memory = null;
+        }
+        if (memory != null) {
+            memory.write(b, off, len);
+        } else {
+            spillOut.write(b, off, len);
+        }
+    }
+
+    /**
+     * Completes the content.
+     *
+     * @return Size of the content after deflating it, or {@code 0} if the size isn't tracked.
+     */
+    long deflatedSize() throws IOException {
+        if (deflatedSize < 0) {
+            deflatedSize = 0;
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflater.deflate(deflateBuffer);
+                }
+                deflatedSize = deflater.getBytesWritten();
+                deflater.end();
+            }
+            if (spillOut != null) {
+                spillOut.close();
+            }
+        }
+        return deflatedSize;
+    }
+
+    /**
+     * Copies the completed content.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        deflatedSize();
+        if (memory != null) {
+            memory.writeTo(out);
+        } else {
+            Files.copy(spillDir.resolve(SPILL_FILE_NAME), out);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (spillOut != null) {
+            spillOut.close();
+        }
+        if (spillDir != null) {
+            FileUtils.clearWorkingDirectory(spillDir);
+            spillDir = null;
+        }
+        memory = null;
+    }
+}
@@ -0,0 +1,39 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Incremental hash over a file tree, whose entries are passed sorted by their normalised relative path.
+ * <p>Every entry contributes its path string, and files additionally contribute their content.</p>
+ */
+interface TreeDigest {
+    void putPath(String normalisedPath);
+
+    void putContent(byte[] data, int offset, int length);
+
+    void putContent(InputStream inputStream) throws IOException;
+
+    /**
+     * Starts hashing a single entry apart from the tree, e.g. on another thread.
+     *
+     * @return A digest to be fed with the entry's content and then passed to {@link #putEntry(MessageDigest)},
+     *         or {@code null} if entries can only be hashed in sequence.
+     */
+    default MessageDigest startEntry(String normalisedPath) {
+        return null;
+    }
+
+    /**
+     * Adds an entry hashed by a digest of {@link #startEntry(String)}, in place of its path and content.
+     */
+    default void putEntry(MessageDigest entryDigest) {
+        throw new UnsupportedOperationException("Entries can only be hashed in sequence.");
+    }
+
+    /**
+     * @return The hash as hex string.
+     */
+    String finish();
+}
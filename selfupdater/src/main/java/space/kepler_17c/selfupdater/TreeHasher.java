@@ -0,0 +1,52 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Incremental hash over a file tree.
+ * <p>
+ *     Entries have to be passed sorted by their normalised relative path,
+ *     which is the order of {@link JarIndex#subPaths(String)}.
+ *     Every entry contributes its path string, and files additionally contribute their content.
+ *     This makes the result independent of whether the tree is stored in a directory or in a jar.
+ * </p>
+ */
+final class TreeHasher implements TreeDigest {
+    private static final int READ_BUFFER_SIZE = 1 << 16; // 2^16 = 64 KiB
+
+    private final MessageDigest digest;
+    private byte[] readBuffer;
+
+    TreeHasher(HashAlgorithm hashAlgorithm) throws SelfUpdaterException {
+        digest = hashAlgorithm.newDigest();
+    }
+
+    @Override
+    public void putPath(String normalisedPath) {
+        digest.update(normalisedPath.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void putContent(byte[] data, int offset, int length) {
+        digest.update(data, offset, length);
+    }
+
+    @Override
+    public void putContent(InputStream inputStream) throws IOException {
+        if (readBuffer == null) {
+            readBuffer = new byte[READ_BUFFER_SIZE];
+        }
+        int bytesCount;
+        while ((bytesCount = inputStream.read(readBuffer)) > 0) {
+            digest.update(readBuffer, 0, bytesCount);
+        }
+    }
+
+    @Override
+    public String finish() {
+        return FileUtils.hexString(digest.digest());
+    }
+}
@@ -1,5 +1,6 @@
 package space.kepler_17c.selfupdater;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -17,20 +18,28 @@ public enum UpdaterEvent {
     VERIFIED_UPDATED_FILES;
 
     private static final Map<UpdaterEvent, Set<Consumer<Boolean>>> REGISTERED_CALLBACKS = new HashMap<>();
+    private static final Map<UpdaterEvent, Set<Consumer<UpdaterEventInfo>>> REGISTERED_INFO_CALLBACKS =
+            new HashMap<>();
 
     static {
         for (UpdaterEvent event : UpdaterEvent.values()) {
             REGISTERED_CALLBACKS.put(event, new HashSet<>());
+            REGISTERED_INFO_CALLBACKS.put(event, new HashSet<>());
         }
     }
 
     static void triggerEvent(UpdaterEvent updaterEvent, boolean value) {
+        UpdaterEventInfo info = PhaseMetrics.current().finishPhase(updaterEvent, value);
+        REGISTERED_INFO_CALLBACKS.get(updaterEvent).forEach(e -> e.accept(info));
         if (value) {
             REGISTERED_CALLBACKS.get(updaterEvent).forEach(e -> e.accept(true));
         } else {
             UpdaterEvent[] events = UpdaterEvent.values();
             int start = Arrays.asList(events).indexOf(updaterEvent);
-            for (int i = start; i < events.length; i++) {
+            REGISTERED_CALLBACKS.get(updaterEvent).forEach(e -> e.accept(false));
+            for (int i = start + 1; i < events.length; i++) {
+                UpdaterEventInfo skipped = new UpdaterEventInfo(events[i], false, Duration.ZERO, 0, 0, 0, 0, 0);
+                REGISTERED_INFO_CALLBACKS.get(events[i]).forEach(e -> e.accept(skipped));
                 REGISTERED_CALLBACKS.get(events[i]).forEach(e -> e.accept(false));
             }
         }
@@ -43,4 +52,19 @@ public enum UpdaterEvent {
     public static void unsubscribeFrom(UpdaterEvent updaterEvent, Consumer<Boolean> callback) {
         REGISTERED_CALLBACKS.get(updaterEvent).remove(callback);
     }
+
+    /**
+     * Registers a callback receiving the outcome together with the metrics of the phase ending with the event.
+     * <p>Info callbacks of an event are called before its {@code Boolean} callbacks.</p>
+     *
+     * @param updaterEvent The event to subscribe to.
+     * @param callback     The function to be called.
+     */
+    public static void subscribeEventInfo(UpdaterEvent updaterEvent, Consumer<UpdaterEventInfo> callback) {
+        REGISTERED_INFO_CALLBACKS.get(updaterEvent).add(callback);
+    }
+
+    public static void unsubscribeInfoFrom(UpdaterEvent updaterEvent, Consumer<UpdaterEventInfo> callback) {
+        REGISTERED_INFO_CALLBACKS.get(updaterEvent).remove(callback);
+    }
 }
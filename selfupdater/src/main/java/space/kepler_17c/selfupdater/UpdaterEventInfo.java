@@ -0,0 +1,32 @@
+package space.kepler_17c.selfupdater;
+
+import java.time.Duration;
+
+/**
+ * Outcome and metrics of one phase of applying a diff, ending with the given event.
+ * <p>
+ *     All values cover the time since the previous event of the same update.
+ *     Resolving the updated tree ({@link UpdaterEvent#APPLIED_DIFF}) doesn't produce any content yet,
+ *     so patching is included in {@link UpdaterEvent#PACKED_EXECUTABLE}.
+ *     Events following a failed phase report no metrics.
+ * </p>
+ *
+ * @param event          The event which ended the phase.
+ * @param success        Whether the phase succeeded, as passed to the {@code Boolean} callbacks.
+ * @param duration       Wall-clock time of the phase.
+ * @param bytesRead      Uncompressed bytes read from the diff, the old jar and nested jars.
+ *                       Data copied without inflating counts with its compressed size.
+ * @param bytesWritten   Bytes written to the updated jar, including nested jars built for it.
+ * @param entriesRead    Number of jar entries opened for reading.
+ * @param entriesWritten Number of jar entries written.
+ * @param peakBufferSize Largest file content held in memory at once while writing.
+ */
+public record UpdaterEventInfo(
+        UpdaterEvent event,
+        boolean success,
+        Duration duration,
+        long bytesRead,
+        long bytesWritten,
+        long entriesRead,
+        long entriesWritten,
+        long peakBufferSize) {}
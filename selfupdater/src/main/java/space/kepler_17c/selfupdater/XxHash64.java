@@ -0,0 +1,110 @@
+package space.kepler_17c.selfupdater;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Incremental <a href="https://github.com/Cyan4973/xxHash">xxHash64</a> with seed zero.
+ * <p>
+ *     This is a fast, non-cryptographic digest.
+ *     It is only used to rule out unequal content, so files with the same digest still need to be compared.
+ * </p>
+ */
+final class XxHash64 {
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_SIZE = 32;
+    private static final VarHandle LONG_LE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT_LE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // unprocessed bytes of an incomplete stripe
+    private final byte[] stripe = new byte[STRIPE_SIZE];
+    private int stripeLength;
+    private long totalLength;
+    private long acc1 = PRIME_1 + PRIME_2;
+    private long acc2 = PRIME_2;
+    private long acc3 = 0;
+    private long acc4 = -PRIME_1;
+
+    void update(byte[] data, int offset, int length) {
+        totalLength += length;
+        if (stripeLength > 0) {
+            int copied = Math.min(length, STRIPE_SIZE - stripeLength);
+            System.arraycopy(data, offset, stripe, stripeLength, copied);
+            stripeLength += copied;
+            offset += copied;
+            length -= copied;
+            if (stripeLength < STRIPE_SIZE) {
+                return;
+            }
+            processStripe(stripe, 0);
+            stripeLength = 0;
+        }
+        int end = offset + length;
+        for (; offset + STRIPE_SIZE <= end; offset += STRIPE_SIZE) {
+            processStripe(data, offset);
+        }
+        System.arraycopy(data, offset, stripe, 0, end - offset);
+        stripeLength = end - offset;
+    }
+
+    /**
+     * @return The digest of all data passed so far. The instance must not be used afterwards.
+     */
+    long digest() {
+        long hash;
+        if (totalLength >= STRIPE_SIZE) {
+            hash = Long.rotateLeft(acc1, 1)
+                    + Long.rotateLeft(acc2, 7)
+                    + Long.rotateLeft(acc3, 12)
+                    + Long.rotateLeft(acc4, 18);
+            hash = mergeRound(hash, acc1);
+            hash = mergeRound(hash, acc2);
+            hash = mergeRound(hash, acc3);
+            hash = mergeRound(hash, acc4);
+        } else {
+            hash = PRIME_5;
+        }
+        hash += totalLength;
+        int offset = 0;
+        for (; offset + Long.BYTES <= stripeLength; offset += Long.BYTES) {
+            hash ^= round(0, (long) LONG_LE.get(stripe, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+        }
+        if (offset + Integer.BYTES <= stripeLength) {
+            hash ^= Integer.toUnsignedLong((int) INT_LE.get(stripe, offset)) * PRIME_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME_2 + PRIME_3;
+            offset += Integer.BYTES;
+        }
+        for (; offset < stripeLength; offset++) {
+            hash ^= (stripe[offset] & 0xFF) * PRIME_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME_1;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private void processStripe(byte[] data, int offset) {
+        acc1 = round(acc1, (long) LONG_LE.get(data, offset));
+        acc2 = round(acc2, (long) LONG_LE.get(data, offset + 8));
+        acc3 = round(acc3, (long) LONG_LE.get(data, offset + 16));
+        acc4 = round(acc4, (long) LONG_LE.get(data, offset + 24));
+    }
+
+    private static long round(long acc, long input) {
+        return Long.rotateLeft(acc + input * PRIME_2, 31) * PRIME_1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        return (acc ^ round(0, value)) * PRIME_1 + PRIME_4;
+    }
+}
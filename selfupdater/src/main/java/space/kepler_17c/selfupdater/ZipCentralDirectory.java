@@ -0,0 +1,224 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import static space.kepler_17c.selfupdater.ZipConstants.CENTRAL_HEADER_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.CENTRAL_HEADER_SIZE;
+import static space.kepler_17c.selfupdater.ZipConstants.END_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.END_SIZE;
+import static space.kepler_17c.selfupdater.ZipConstants.FLAG_ENCRYPTED;
+import static space.kepler_17c.selfupdater.ZipConstants.LOCAL_HEADER_EXTRA_LENGTH;
+import static space.kepler_17c.selfupdater.ZipConstants.LOCAL_HEADER_NAME_LENGTH;
+import static space.kepler_17c.selfupdater.ZipConstants.LOCAL_HEADER_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.LOCAL_HEADER_SIZE;
+import static space.kepler_17c.selfupdater.ZipConstants.MAX_COMMENT_LENGTH;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_END_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_END_SIZE;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_EXTRA_ID;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_LOCATOR_SIGNATURE;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_LOCATOR_SIZE;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_MAGIC;
+import static space.kepler_17c.selfupdater.ZipConstants.ZIP64_MAGIC_COUNT;
+
+/**
+ * Minimal reader for the central directory of a ZIP file.
+ * <p>
+ *     {@link java.util.zip.ZipFile} hides where an entry's compressed data is located.
+ *     This reader provides these locations, so entries can be copied without inflating and deflating them again.
+ * </p>
+ */
+final class ZipCentralDirectory {
+    private ZipCentralDirectory() {
+        throw new UnsupportedOperationException("Static utility class.");
+    }
+
+    /**
+     * Reads all entries from the central directory.
+     *
+     * @param channel Channel of the ZIP file.
+     *
+     * @return Mapping of raw entry names to their central directory information.
+     */
+    static Map<String, RawEntry> read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailLength = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = readFully(channel, fileSize - tailLength, tailLength);
+        int endPosition = -1;
+        for (int i = tailLength - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE && i + END_SIZE + (0xFFFF & tail.getShort(i + 20)) <= tailLength) {
+                endPosition = i;
+                break;
+            }
+        }
+        if (endPosition < 0) {
+            throw new ZipException("End of central directory not found.");
+        }
+        long entryCount = 0xFFFF & tail.getShort(endPosition + 10);
+        long directorySize = 0xFFFFFFFFL & tail.getInt(endPosition + 12);
+        long directoryOffset = 0xFFFFFFFFL & tail.getInt(endPosition + 16);
+        // actual position of the record the directory is located in front of
+        long directoryEnd = fileSize - tailLength + endPosition;
+        if (entryCount == ZIP64_MAGIC_COUNT || directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC) {
+            long locatorPosition = directoryEnd - ZIP64_LOCATOR_SIZE;
+            ByteBuffer locator = locatorPosition < 0 ? null : readFully(channel, locatorPosition, ZIP64_LOCATOR_SIZE);
+            if (locator != null && locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                long zip64EndOffset = locator.getLong(8);
+                ByteBuffer zip64End = readFully(channel, zip64EndOffset, ZIP64_END_SIZE);
+                if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new ZipException("Invalid ZIP64 end of central directory.");
+                }
+                entryCount = zip64End.getLong(32);
+                directorySize = zip64End.getLong(40);
+                directoryOffset = zip64End.getLong(48);
+                directoryEnd = zip64EndOffset;
+            }
+        }
+        if (directorySize > Integer.MAX_VALUE || directoryEnd - directorySize < 0) {
+            throw new ZipException("Invalid central directory size: " + directorySize);
+        }
+        // data prepended to the archive shifts all offsets
+        long offsetShift = directoryEnd - directorySize - directoryOffset;
+        ByteBuffer directory = readFully(channel, directoryEnd - directorySize, (int) directorySize);
+        Map<String, RawEntry> rawEntries = new HashMap<>((int) Math.min(entryCount * 2, Integer.MAX_VALUE / 2));
+        int position = 0;
+        while (position + CENTRAL_HEADER_SIZE <= directory.limit()
+                && directory.getInt(position) == CENTRAL_HEADER_SIGNATURE) {
+            int flags = 0xFFFF & directory.getShort(position + 8);
+            int method = 0xFFFF & directory.getShort(position + 10);
+            long dosTime = 0xFFFFFFFFL & directory.getInt(position + 12);
+            long crc = 0xFFFFFFFFL & directory.getInt(position + 16);
+            long compressedSize = 0xFFFFFFFFL & directory.getInt(position + 20);
+            long size = 0xFFFFFFFFL & directory.getInt(position + 24);
+            int nameLength = 0xFFFF & directory.getShort(position + 28);
+            int extraLength = 0xFFFF & directory.getShort(position + 30);
+            int commentLength = 0xFFFF & directory.getShort(position + 32);
+            long localHeaderOffset = 0xFFFFFFFFL & directory.getInt(position + 42);
+            byte[] nameBytes = new byte[nameLength];
+            directory.get(position + CENTRAL_HEADER_SIZE, nameBytes);
+            // values exceeding 32 bit are stored in the ZIP64 extra field, in this order
+            int extraPosition = position + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extraPosition + extraLength;
+            while (extraPosition + 4 <= extraEnd) {
+                int extraId = 0xFFFF & directory.getShort(extraPosition);
+                int extraSize = 0xFFFF & directory.getShort(extraPosition + 2);
+                if (extraId == ZIP64_EXTRA_ID) {
+                    int valuePosition = extraPosition + 4;
+                    if (size == ZIP64_MAGIC) {
+                        size = directory.getLong(valuePosition);
+                        valuePosition += Long.BYTES;
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = directory.getLong(valuePosition);
+                        valuePosition += Long.BYTES;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC) {
+                        localHeaderOffset = directory.getLong(valuePosition);
+                    }
+                }
+                extraPosition += 4 + extraSize;
+            }
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            rawEntries.putIfAbsent(
+                    name,
+                    new RawEntry(
+                            flags, method, dosTime, crc, compressedSize, size, localHeaderOffset + offsetShift));
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return rawEntries;
+    }
+
+    /**
+     * Opens the compressed data of an entry.
+     *
+     * @param channel Channel of the ZIP file.
+     * @param entry   Entry of that file.
+     *
+     * @return Stream of exactly {@link RawEntry#compressedSize()} bytes.
+     */
+    static InputStream openRaw(FileChannel channel, RawEntry entry) throws IOException {
+        return new ChannelInputStream(channel, dataOffset(channel, entry), entry.compressedSize());
+    }
+
+    /**
+     * Locates the compressed data of an entry behind its local header.
+     *
+     * @param channel Channel of the ZIP file.
+     * @param entry   Entry of that file.
+     *
+     * @return Offset of the data's first byte.
+     */
+    static long dataOffset(FileChannel channel, RawEntry entry) throws IOException {
+        ByteBuffer header = readFully(channel, entry.localHeaderOffset(), LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header at offset " + entry.localHeaderOffset());
+        }
+        return entry.localHeaderOffset()
+                + LOCAL_HEADER_SIZE
+                + (0xFFFF & header.getShort(LOCAL_HEADER_NAME_LENGTH))
+                + (0xFFFF & header.getShort(LOCAL_HEADER_EXTRA_LENGTH));
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of ZIP file.");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Location and properties of an entry's compressed data.
+     */
+    record RawEntry(
+            int flags, int method, long dosTime, long crc, long compressedSize, long size, long localHeaderOffset) {
+        boolean isCopyable() {
+            return (flags & FLAG_ENCRYPTED) == 0 && (method == ZipEntry.STORED || method == ZipEntry.DEFLATED);
+        }
+    }
+
+    /**
+     * Positional reads from a channel, so multiple streams can share it.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        private ChannelInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : 0xFF & single[0];
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead < 0) {
+                throw new ZipException("Unexpected end of ZIP file.");
+            }
+            position += bytesRead;
+            remaining -= bytesRead;
+            return bytesRead;
+        }
+    }
+}
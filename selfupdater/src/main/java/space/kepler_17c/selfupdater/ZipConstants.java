@@ -0,0 +1,34 @@
+package space.kepler_17c.selfupdater;
+
+/**
+ * Record layout of the ZIP file format, as far as it is needed for reading and writing raw entries.
+ */
+final class ZipConstants {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int LOCAL_HEADER_NAME_LENGTH = 26;
+    static final int LOCAL_HEADER_EXTRA_LENGTH = 28;
+    static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int END_SIZE = 22;
+    static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    static final int ZIP64_END_SIZE = 56;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    static final int ZIP64_LOCATOR_SIZE = 20;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    static final int FLAG_ENCRYPTED = 1;
+    static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    static final int FLAG_UTF8 = 1 << 11;
+    static final int VERSION_STORED = 10;
+    static final int VERSION_DEFLATED = 20;
+    static final int VERSION_ZIP64 = 45;
+
+    private ZipConstants() {
+        throw new UnsupportedOperationException("Static utility class.");
+    }
+}
@@ -0,0 +1,84 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import static space.kepler_17c.selfupdater.TestUtils.DIFF_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.RESOURCES;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+public class AsyncUpdateTest {
+    private static final Path TEST_DIR = RESOURCES.resolve("diff-v1-single-edit");
+
+    @Test
+    public void appliesInBackground() throws IOException, ExecutionException, InterruptedException {
+        CompletableFuture<Path> future =
+                SelfUpdater.applyDiffAsync(TEST_DIR.resolve(DIFF_FILE), TEST_DIR.resolve(ORIGINAL_FILE));
+        Path generatedUpdate = future.get();
+        try {
+            Assertions.assertTrue(TestUtils.equalZipFiles(TEST_DIR.resolve(UPDATED_FILE), generatedUpdate));
+        } finally {
+            FileUtils.clearWorkingDirectory(generatedUpdate.getParent());
+        }
+        ExecutionException failure = Assertions.assertThrows(
+                ExecutionException.class,
+                () -> SelfUpdater.applyDiffAsync(TEST_DIR.resolve(ORIGINAL_FILE), TEST_DIR.resolve(ORIGINAL_FILE))
+                        .get());
+        Assertions.assertInstanceOf(SelfUpdaterException.class, failure.getCause());
+    }
+
+    @Test
+    public void cancelsBetweenEntries() throws IOException {
+        List<Runnable> tasks = new ArrayList<>();
+        AtomicReference<CompletableFuture<Path>> future = new AtomicReference<>();
+        Consumer<Boolean> cancel = success -> future.get().cancel(false);
+        Set<Path> workingDirsBefore = workingDirs();
+        UpdaterEvent.subscribeEvent(UpdaterEvent.VERIFIED_HASHES, cancel);
+        try {
+            future.set(SelfUpdater.applyDiffAsync(
+                    TEST_DIR.resolve(DIFF_FILE), TEST_DIR.resolve(ORIGINAL_FILE), tasks::add));
+            Assertions.assertEquals(1, tasks.size());
+            tasks.get(0).run();
+        } finally {
+            UpdaterEvent.unsubscribeFrom(UpdaterEvent.VERIFIED_HASHES, cancel);
+        }
+        Assertions.assertTrue(future.get().isCancelled());
+        Assertions.assertEquals(workingDirsBefore, workingDirs());
+    }
+
+    @Test
+    public void skipsCancelledBeforeStart() {
+        List<Runnable> tasks = new ArrayList<>();
+        List<Boolean> received = new ArrayList<>();
+        Consumer<Boolean> callback = received::add;
+        UpdaterEvent.subscribeEvent(UpdaterEvent.RECEIVED_DIFF, callback);
+        try {
+            CompletableFuture<Path> future = SelfUpdater.applyDiffAsync(
+                    TEST_DIR.resolve(DIFF_FILE), TEST_DIR.resolve(ORIGINAL_FILE), tasks::add);
+            future.cancel(false);
+            tasks.get(0).run();
+        } finally {
+            UpdaterEvent.unsubscribeFrom(UpdaterEvent.RECEIVED_DIFF, callback);
+        }
+        Assertions.assertTrue(received.isEmpty());
+    }
+
+    private static Set<Path> workingDirs() throws IOException {
+        try (Stream<Path> files = Files.list(FileUtils.getSystemTmpDir())) {
+            return files.filter(file -> file.getFileName().toString().startsWith("SelfUpdater-"))
+                    .collect(Collectors.toSet());
+        }
+    }
+}
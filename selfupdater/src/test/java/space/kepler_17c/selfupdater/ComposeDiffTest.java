@@ -0,0 +1,190 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ComposeDiffTest {
+    private static final int FILE_SIZE = 1 << 14;
+
+    private Path tmpDir;
+    private List<Path> versions;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        Random random = new Random(21);
+        byte[] edited = randomBytes(random);
+        byte[] moved = randomBytes(random);
+        byte[] readded = randomBytes(random);
+        Map<String, byte[]> v0 = new TreeMap<>();
+        v0.put("edited.bin", edited.clone());
+        v0.put("moved.bin", moved);
+        v0.put("readded.bin", readded);
+        v0.put("dir/kept.bin", randomBytes(random));
+        Map<String, byte[]> v1 = new TreeMap<>(v0);
+        edited[100] ^= 1;
+        v1.put("edited.bin", edited.clone());
+        v1.put("moved-once.bin", v1.remove("moved.bin"));
+        v1.remove("readded.bin");
+        v1.put("transient.bin", randomBytes(random));
+        v1.put("overwritten.bin", randomBytes(random));
+        Map<String, byte[]> v2 = new TreeMap<>(v1);
+        edited[FILE_SIZE / 2] ^= 1;
+        v2.put("edited.bin", edited.clone());
+        v2.put("moved/twice.bin", v2.remove("moved-once.bin"));
+        v2.remove("transient.bin");
+        v2.put("readded.bin", readded);
+        v2.put("overwritten.bin", randomBytes(random));
+        versions = new ArrayList<>();
+        for (Map<String, byte[]> files : List.of(v0, v1, v2)) {
+            versions.add(zipVersion("v" + versions.size(), files));
+        }
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void composesWholeFiles() throws IOException {
+        List<Path> diffs = createDiffs(DiffFormat.V1);
+        Path composed = SelfUpdater.composeDiffs(diffs, tmpDir);
+        assertUpdates(composed);
+    }
+
+    @Test
+    public void composesDeltas() throws IOException {
+        List<Path> diffs = createDiffs(DiffFormat.LATEST);
+        Assertions.assertThrows(SelfUpdaterException.class, () -> SelfUpdater.composeDiffs(diffs, tmpDir));
+        Path composed = SelfUpdater.composeDiffs(diffs, versions.get(0), tmpDir);
+        assertUpdates(composed);
+        Assertions.assertThrows(
+                SelfUpdaterException.class, () -> SelfUpdater.composeDiffs(diffs, versions.get(1), tmpDir));
+    }
+
+    @Test
+    public void composesSingleDelta() throws IOException {
+        List<Path> diffs = createDiffs(DiffFormat.LATEST).subList(0, 1);
+        Path composed = SelfUpdater.composeDiffs(diffs, tmpDir);
+        Path generatedUpdate = SelfUpdater.applyDiff(composed, versions.get(0));
+        try (JarIndex expected = JarIndex.open(versions.get(1));
+                JarIndex actual = JarIndex.open(generatedUpdate)) {
+            Assertions.assertEquals(expected.hashTree(""), actual.hashTree(""));
+        } finally {
+            FileUtils.clearWorkingDirectory(generatedUpdate.getParent());
+        }
+    }
+
+    @Test
+    public void rejectsBrokenChain() throws IOException {
+        List<Path> diffs = createDiffs(DiffFormat.LATEST);
+        Assertions.assertThrows(
+                SelfUpdaterException.class,
+                () -> SelfUpdater.composeDiffs(List.of(diffs.get(1), diffs.get(0)), tmpDir));
+    }
+
+    @Test
+    public void composesMixedFormats() throws IOException {
+        List<Path> mixed = List.of(createDiffs(DiffFormat.V1).get(0), createDiffs(DiffFormat.V5).get(1));
+        Path composed = SelfUpdater.composeDiffs(mixed, versions.get(0), tmpDir);
+        assertUpdates(composed);
+    }
+
+    @Test
+    public void dropsDeletionsOfAddedFiles() throws IOException {
+        for (DiffFormat diffFormat : List.of(DiffFormat.V1, DiffFormat.LATEST)) {
+            Path composed = SelfUpdater.composeDiffs(createDiffs(diffFormat), versions.get(0), tmpDir);
+            try (JarIndex composedIndex = JarIndex.open(composed);
+                    InputStream deletedFiles =
+                            composedIndex.open(FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.META_DELETED)) {
+                Assertions.assertEquals(
+                        List.of("moved.bin"),
+                        new String(deletedFiles.readAllBytes(), StandardCharsets.UTF_8)
+                                .lines()
+                                .toList());
+            }
+            assertUpdates(composed);
+        }
+    }
+
+    @Test
+    public void rejectsEmptyComposition() throws IOException {
+        Map<String, byte[]> added = new TreeMap<>();
+        added.put("edited.bin", new byte[] {1});
+        added.put("transient.bin", new byte[] {2});
+        Path withAdded = zipVersion("added", added);
+        Path withoutAdded = zipVersion("reverted", Map.of("edited.bin", new byte[] {1}));
+        Path original = zipVersion("original", Map.of("edited.bin", new byte[] {1}));
+        Path addedDiffDir = Files.createDirectories(tmpDir.resolve("added-diff"));
+        Path revertedDiffDir = Files.createDirectories(tmpDir.resolve("reverted-diff"));
+        List<Path> diffs = List.of(
+                SelfUpdater.createDiff(original, withAdded, addedDiffDir),
+                SelfUpdater.createDiff(withAdded, withoutAdded, revertedDiffDir));
+        Assertions.assertThrows(SelfUpdaterException.class, () -> SelfUpdater.composeDiffs(diffs, tmpDir));
+        Assertions.assertThrows(SelfUpdaterException.class, () -> SelfUpdater.composeDiffs(diffs, original, tmpDir));
+    }
+
+    @Test
+    public void appliesChain() throws IOException {
+        for (DiffFormat diffFormat : List.of(DiffFormat.V1, DiffFormat.LATEST)) {
+            Path generatedUpdate = SelfUpdater.applyDiffs(createDiffs(diffFormat), versions.get(0));
+            assertUpdated(generatedUpdate);
+        }
+        List<Path> diffs = createDiffs(DiffFormat.LATEST);
+        Assertions.assertThrows(SelfUpdaterException.class, () -> SelfUpdater.applyDiffs(diffs, versions.get(1)));
+        Assertions.assertThrows(SelfUpdaterException.class, () -> SelfUpdater.applyDiffs(List.of(), versions.get(0)));
+    }
+
+    private List<Path> createDiffs(DiffFormat diffFormat) throws IOException {
+        List<Path> diffs = new ArrayList<>();
+        for (int i = 1; i < versions.size(); i++) {
+            Path outputDir = Files.createDirectories(tmpDir.resolve(diffFormat + "-" + i));
+            diffs.add(SelfUpdater.createDiff(versions.get(i - 1), versions.get(i), outputDir, diffFormat));
+        }
+        return diffs;
+    }
+
+    private void assertUpdates(Path composed) throws IOException {
+        assertUpdated(SelfUpdater.applyDiff(composed, versions.get(0)));
+    }
+
+    private void assertUpdated(Path generatedUpdate) throws IOException {
+        try (JarIndex expected = JarIndex.open(versions.get(2));
+                JarIndex actual = JarIndex.open(generatedUpdate)) {
+            Assertions.assertEquals(expected.hashTree(""), actual.hashTree(""));
+        } finally {
+            FileUtils.clearWorkingDirectory(generatedUpdate.getParent());
+        }
+    }
+
+    private Path zipVersion(String name, Map<String, byte[]> files) throws IOException {
+        Path dir = tmpDir.resolve(name);
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            Path target = dir.resolve(file.getKey());
+            Files.createDirectories(target.getParent());
+            Files.write(target, file.getValue());
+        }
+        Path jar = tmpDir.resolve(name + ".jar");
+        FileUtils.zipDir(dir, jar);
+        return jar;
+    }
+
+    private static byte[] randomBytes(Random random) {
+        byte[] bytes = new byte[FILE_SIZE];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
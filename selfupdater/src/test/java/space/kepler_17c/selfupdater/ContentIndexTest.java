@@ -0,0 +1,74 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+public class ContentIndexTest {
+    private static final int SAME_SIZE_FILE_COUNT = 5000;
+
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        Files.createDirectories(tmpDir.resolve(ORIGINAL_DIR));
+        Files.createDirectories(tmpDir.resolve(UPDATED_DIR));
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void findsAllDuplicates() throws IOException {
+        Path originalDir = tmpDir.resolve(ORIGINAL_DIR);
+        for (int i = 0; i < SAME_SIZE_FILE_COUNT; i++) {
+            Files.writeString(originalDir.resolve(String.format("file%05d", i)), String.format("%08d", i));
+        }
+        Files.writeString(originalDir.resolve("copy-a"), String.format("%08d", 42));
+        Files.writeString(originalDir.resolve("copy-b"), String.format("%08d", 42));
+        Files.writeString(tmpDir.resolve(UPDATED_DIR).resolve("query"), String.format("%08d", 42));
+        FileUtils.zipDir(originalDir, tmpDir.resolve(ORIGINAL_FILE));
+        FileUtils.zipDir(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(UPDATED_FILE));
+        try (JarIndex originalIndex = JarIndex.open(tmpDir.resolve(ORIGINAL_FILE));
+                JarIndex updatedIndex = JarIndex.open(tmpDir.resolve(UPDATED_FILE))) {
+            ContentIndex contentIndex = new ContentIndex(originalIndex);
+            Assertions.assertEquals(
+                    List.of("copy-a", "copy-b", "file00042"), contentIndex.findAll(updatedIndex, "query"));
+            Assertions.assertEquals(
+                    List.of("copy-a", "copy-b", "file00042"), contentIndex.findAll(originalIndex, "file00042"));
+            Assertions.assertEquals(List.of("file00007"), contentIndex.findAll(originalIndex, "file00007"));
+        }
+    }
+
+    @Test
+    public void movePrefersRemovedSource() throws IOException {
+        Files.writeString(tmpDir.resolve(ORIGINAL_DIR).resolve("a.txt"), "same content");
+        Files.writeString(tmpDir.resolve(ORIGINAL_DIR).resolve("b.txt"), "same content");
+        Files.writeString(tmpDir.resolve(UPDATED_DIR).resolve("a.txt"), "same content");
+        Files.writeString(tmpDir.resolve(UPDATED_DIR).resolve("c.txt"), "same content");
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+        FileUtils.zipDir(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(UPDATED_FILE));
+        Path diff =
+                SelfUpdater.createDiff(tmpDir.resolve(ORIGINAL_FILE), tmpDir.resolve(UPDATED_FILE), tmpDir, DiffFormat.V1);
+        Assertions.assertNotNull(diff);
+        try (JarIndex diffIndex = JarIndex.open(diff);
+                InputStream movedFiles =
+                        diffIndex.open(FileUtils.DIFF_DATA_DIR + DiffFormatConstantsV1.META_MOVED)) {
+            Assertions.assertEquals("b.txt\nc.txt\n", new String(movedFiles.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+}
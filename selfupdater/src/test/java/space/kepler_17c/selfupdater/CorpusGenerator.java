@@ -0,0 +1,308 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+/**
+ * Deterministic generator of original/updated jar pairs, for tests and benchmarks at scale.
+ * <p>
+ *     All content is derived from the seed, so the same configuration always yields identical jars.
+ *     Entries are streamed into the jars, which allows corpora of several GiB without holding them in memory.
+ *     Text entries take random slices of a shared pool of random text, so generating them is cheap.
+ * </p>
+ * <p>
+ *     The updated jar differs from the original one by:
+ *     <ul>
+ *         <li>small in-place edits of text entries, chosen with {@link #changeRatio(double)},</li>
+ *         <li>text entries moved below {@link #RENAMED_DIR}, chosen with {@link #renameRatio(double)},</li>
+ *         <li>one edited entry in each nested jar,</li>
+ *         <li>an additional constant at the start of the constant pool of changed class files,
+ *             which shifts all their references.</li>
+ *     </ul>
+ * </p>
+ */
+public class CorpusGenerator {
+    static final String RENAMED_DIR = "renamed/";
+    private static final String NESTED_JAR_DIR = "BOOT-INF/lib/";
+    private static final String CLASS_DIR = "classes/";
+    private static final int TEXT_POOL_SIZE = 1 << 20; // 2^20 = 1 MiB
+    private static final int CHUNK_SIZE = 1 << 16; // 2^16 = 64 KiB
+    private static final int EDIT_LENGTH = 16;
+    private static final int CLASS_STRING_COUNT = 64;
+    private static final long ENTRY_TIME = 1_000_000_000_000L;
+
+    private final long seed;
+    private int entryCount = 1000;
+    private long totalSize = 1 << 24;
+    private int directoryDepth = 3;
+    private int directoryFanOut = 16;
+    private double changeRatio = 0.01;
+    private double renameRatio = 0;
+    private int nestedJarCount = 0;
+    private int nestedEntryCount = 100;
+    private int classCount = 0;
+
+    public CorpusGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param entryCount Number of text entries, excluding nested jars and class files.
+     */
+    public CorpusGenerator entryCount(int entryCount) {
+        this.entryCount = entryCount;
+        return this;
+    }
+
+    /**
+     * @param totalSize Approximate total size of all text entries.
+     *                  Individual sizes vary between half and one and a half of the average.
+     */
+    public CorpusGenerator totalSize(long totalSize) {
+        this.totalSize = totalSize;
+        return this;
+    }
+
+    /**
+     * @param directoryDepth Maximum number of directories above an entry.
+     * @param fanOut         Number of subdirectories per directory.
+     */
+    public CorpusGenerator directories(int directoryDepth, int fanOut) {
+        this.directoryDepth = directoryDepth;
+        this.directoryFanOut = fanOut;
+        return this;
+    }
+
+    /**
+     * @param changeRatio Probability of a text entry or class file to be changed in the updated jar.
+     */
+    public CorpusGenerator changeRatio(double changeRatio) {
+        this.changeRatio = changeRatio;
+        return this;
+    }
+
+    /**
+     * @param renameRatio Probability of an unchanged text entry to be moved in the updated jar.
+     */
+    public CorpusGenerator renameRatio(double renameRatio) {
+        this.renameRatio = renameRatio;
+        return this;
+    }
+
+    /**
+     * @param nestedJarCount   Number of nested jars.
+     * @param nestedEntryCount Number of text entries in each nested jar.
+     */
+    public CorpusGenerator nestedJars(int nestedJarCount, int nestedEntryCount) {
+        this.nestedJarCount = nestedJarCount;
+        this.nestedEntryCount = nestedEntryCount;
+        return this;
+    }
+
+    /**
+     * @param classCount Number of generated class files.
+     */
+    public CorpusGenerator classes(int classCount) {
+        this.classCount = classCount;
+        return this;
+    }
+
+    /**
+     * Writes the jar pair.
+     *
+     * @param targetDir Directory to write {@link TestUtils#ORIGINAL_FILE} and {@link TestUtils#UPDATED_FILE} to.
+     */
+    public Corpus generate(Path targetDir) throws IOException {
+        byte[] textPool = new byte[TEXT_POOL_SIZE];
+        Random poolRandom = new Random(seed);
+        for (int i = 0; i < textPool.length; i++) {
+            textPool[i] = poolRandom.nextInt(8) == 0 ? (byte) '\n' : (byte) ('a' + poolRandom.nextInt(26));
+        }
+        Files.createDirectories(targetDir);
+        Path originalJar = targetDir.resolve(ORIGINAL_FILE);
+        Path updatedJar = targetDir.resolve(UPDATED_FILE);
+        int changedEntries = 0;
+        int renamedEntries = 0;
+        try (ZipOutputStream original = new ZipOutputStream(Files.newOutputStream(originalJar));
+                ZipOutputStream updated = new ZipOutputStream(Files.newOutputStream(updatedJar))) {
+            long averageSize = totalSize / Math.max(1, entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                Random random = entryRandom(0, i);
+                String path = directoryPath(random) + String.format("f%07d.txt", i);
+                long size = averageSize / 2 + (averageSize > 0 ? random.nextLong(averageSize + 1) : 0);
+                int poolOffset = random.nextInt(TEXT_POOL_SIZE);
+                boolean changed = random.nextDouble() < changeRatio;
+                boolean renamed = !changed && random.nextDouble() < renameRatio;
+                long editPosition = changed ? random.nextLong(Math.max(1, size)) : -1;
+                putText(original, path, textPool, poolOffset, size, -1);
+                putText(updated, renamed ? RENAMED_DIR + path : path, textPool, poolOffset, size, editPosition);
+                changedEntries += changed ? 1 : 0;
+                renamedEntries += renamed ? 1 : 0;
+            }
+            for (int i = 0; i < nestedJarCount; i++) {
+                String path = NESTED_JAR_DIR + String.format("lib%04d.jar", i);
+                int editedEntry = entryRandom(1, i).nextInt(Math.max(1, nestedEntryCount));
+                putBytes(original, path, nestedJar(textPool, i, -1));
+                putBytes(updated, path, nestedJar(textPool, i, editedEntry));
+                changedEntries++;
+            }
+            for (int i = 0; i < classCount; i++) {
+                String className = CLASS_DIR + String.format("p%02d/Generated%05d", i % directoryFanOut, i);
+                boolean changed = entryRandom(2, i).nextDouble() < changeRatio;
+                putBytes(original, className + ".class", classFile(className, i, false));
+                putBytes(updated, className + ".class", classFile(className, i, changed));
+                changedEntries += changed ? 1 : 0;
+            }
+        }
+        return new Corpus(originalJar, updatedJar, changedEntries, renamedEntries);
+    }
+
+    private Random entryRandom(int kind, int index) {
+        return new Random(seed * 0x9E3779B97F4A7C15L + ((long) kind << 32) + index);
+    }
+
+    private String directoryPath(Random random) {
+        StringBuilder path = new StringBuilder();
+        int depth = directoryDepth > 0 ? 1 + random.nextInt(directoryDepth) : 0;
+        for (int level = 0; level < depth; level++) {
+            path.append(String.format("d%02d/", random.nextInt(Math.max(1, directoryFanOut))));
+        }
+        return path.toString();
+    }
+
+    /**
+     * Writes an entry taken from the text pool, replacing {@link #EDIT_LENGTH} bytes if an edit position is given.
+     */
+    private static void putText(
+            ZipOutputStream zos, String path, byte[] textPool, int poolOffset, long size, long editPosition)
+            throws IOException {
+        ZipEntry ze = new ZipEntry(path);
+        ze.setTime(ENTRY_TIME);
+        zos.putNextEntry(ze);
+        writeText(zos, textPool, poolOffset, size, editPosition);
+        zos.closeEntry();
+    }
+
+    private static void writeText(OutputStream out, byte[] textPool, int poolOffset, long size, long editPosition)
+            throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (long written = 0; written < size; ) {
+            int length = (int) Math.min(CHUNK_SIZE, size - written);
+            for (int i = 0; i < length; i++) {
+                long position = written + i;
+                byte value = textPool[(int) ((poolOffset + position) % TEXT_POOL_SIZE)];
+                if (editPosition >= 0 && position >= editPosition && position < editPosition + EDIT_LENGTH) {
+                    value = (byte) Character.toUpperCase(value == '\n' ? 'x' : value);
+                }
+                chunk[i] = value;
+            }
+            out.write(chunk, 0, length);
+            written += length;
+        }
+    }
+
+    private static void putBytes(ZipOutputStream zos, String path, byte[] data) throws IOException {
+        ZipEntry ze = new ZipEntry(path);
+        ze.setTime(ENTRY_TIME);
+        zos.putNextEntry(ze);
+        zos.write(data);
+        zos.closeEntry();
+    }
+
+    private byte[] nestedJar(byte[] textPool, int jarIndex, int editedEntry) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(result)) {
+            for (int i = 0; i < nestedEntryCount; i++) {
+                Random random = entryRandom(3, jarIndex * nestedEntryCount + i);
+                long size = 1024 + random.nextInt(4096);
+                int poolOffset = random.nextInt(TEXT_POOL_SIZE);
+                long editPosition = i == editedEntry ? random.nextLong(size) : -1;
+                putText(zos, String.format("lib/n%05d.txt", i), textPool, poolOffset, size, editPosition);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Builds a class with a single method, which loads each of its string constants once.
+     *
+     * @param shifted Whether to insert an unused constant at the start of the pool, which shifts all references.
+     */
+    private byte[] classFile(String className, int classIndex, boolean shifted) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(result);
+        int base = shifted ? 2 : 1;
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0); // minor version
+        out.writeShort(49); // major version, which doesn't require stack map frames
+        out.writeShort(base + 7 + 2 * CLASS_STRING_COUNT); // constant pool count
+        if (shifted) {
+            out.writeByte(1); // UTF-8
+            out.writeUTF("inserted constant");
+        }
+        out.writeByte(1);
+        out.writeUTF(className);
+        out.writeByte(7); // class
+        out.writeShort(base);
+        out.writeByte(1);
+        out.writeUTF("java/lang/Object");
+        out.writeByte(7);
+        out.writeShort(base + 2);
+        out.writeByte(1);
+        out.writeUTF("run");
+        out.writeByte(1);
+        out.writeUTF("()V");
+        out.writeByte(1);
+        out.writeUTF("Code");
+        Random random = entryRandom(4, classIndex);
+        for (int i = 0; i < CLASS_STRING_COUNT; i++) {
+            out.writeByte(1);
+            out.writeUTF("constant " + i + " of class " + classIndex + ": " + random.nextInt());
+            out.writeByte(8); // string
+            out.writeShort(base + 7 + 2 * i);
+        }
+        out.writeShort(0x0021); // public super
+        out.writeShort(base + 1); // this class
+        out.writeShort(base + 3); // super class
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(1); // methods
+        out.writeShort(0x0001); // public
+        out.writeShort(base + 4); // name
+        out.writeShort(base + 5); // descriptor
+        out.writeShort(1); // attributes
+        int codeLength = 4 * CLASS_STRING_COUNT + 1;
+        out.writeShort(base + 6); // Code
+        out.writeInt(2 + 2 + 4 + codeLength + 2 + 2);
+        out.writeShort(1); // max stack
+        out.writeShort(1); // max locals
+        out.writeInt(codeLength);
+        for (int i = 0; i < CLASS_STRING_COUNT; i++) {
+            out.writeByte(0x13); // ldc_w
+            out.writeShort(base + 8 + 2 * i);
+            out.writeByte(0x57); // pop
+        }
+        out.writeByte(0xb1); // return
+        out.writeShort(0); // exception table
+        out.writeShort(0); // code attributes
+        out.writeShort(0); // class attributes
+        return result.toByteArray();
+    }
+
+    /**
+     * @param originalJar    The generated original jar.
+     * @param updatedJar     The generated updated jar.
+     * @param changedEntries Number of entries, whose content differs between both jars.
+     * @param renamedEntries Number of entries moved without changes.
+     */
+    public record Corpus(Path originalJar, Path updatedJar, int changedEntries, int renamedEntries) {}
+}
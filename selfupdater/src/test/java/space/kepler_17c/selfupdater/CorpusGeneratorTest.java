@@ -0,0 +1,94 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+public class CorpusGeneratorTest {
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void deterministicOutput() throws IOException {
+        CorpusGenerator.Corpus first = smallCorpus(17).generate(tmpDir.resolve("first"));
+        CorpusGenerator.Corpus second = smallCorpus(17).generate(tmpDir.resolve("second"));
+        CorpusGenerator.Corpus other = smallCorpus(18).generate(tmpDir.resolve("other"));
+        Assertions.assertEquals(-1, Files.mismatch(first.originalJar(), second.originalJar()));
+        Assertions.assertEquals(-1, Files.mismatch(first.updatedJar(), second.updatedJar()));
+        Assertions.assertEquals(first, new CorpusGenerator.Corpus(
+                first.originalJar(), first.updatedJar(), second.changedEntries(), second.renamedEntries()));
+        Assertions.assertNotEquals(-1, Files.mismatch(first.originalJar(), other.originalJar()));
+        Assertions.assertNotEquals(-1, Files.mismatch(first.originalJar(), first.updatedJar()));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        CorpusGenerator.Corpus corpus = smallCorpus(17).generate(tmpDir);
+        Assertions.assertTrue(corpus.changedEntries() > 0);
+        Assertions.assertTrue(corpus.renamedEntries() > 0);
+        assertRoundTrip(corpus);
+    }
+
+    @Test
+    @Tag("large")
+    public void manyEntries() throws IOException {
+        assertRoundTrip(new CorpusGenerator(17)
+                .entryCount(100_000)
+                .totalSize(400L << 20)
+                .directories(8, 8)
+                .changeRatio(0.01)
+                .renameRatio(0.01)
+                .nestedJars(20, 1000)
+                .classes(2000)
+                .generate(tmpDir));
+    }
+
+    @Test
+    @Tag("large")
+    public void largeTotalSize() throws IOException {
+        assertRoundTrip(new CorpusGenerator(17)
+                .entryCount(2000)
+                .totalSize(3L << 30)
+                .changeRatio(0.05)
+                .renameRatio(0.05)
+                .generate(tmpDir));
+    }
+
+    private static CorpusGenerator smallCorpus(long seed) {
+        return new CorpusGenerator(seed)
+                .entryCount(300)
+                .totalSize(1 << 20)
+                .directories(4, 3)
+                .changeRatio(0.1)
+                .renameRatio(0.1)
+                .nestedJars(2, 20)
+                .classes(10);
+    }
+
+    private void assertRoundTrip(CorpusGenerator.Corpus corpus) throws IOException {
+        Path diff = SelfUpdater.createDiff(corpus.originalJar(), corpus.updatedJar(), tmpDir, DiffFormat.LATEST);
+        Assertions.assertNotNull(diff);
+        Path generatedUpdate = SelfUpdater.applyDiff(diff, corpus.originalJar());
+        Assertions.assertEquals(treeHash(corpus.updatedJar()), treeHash(generatedUpdate));
+    }
+
+    private static String treeHash(Path jar) throws IOException {
+        try (JarIndex jarIndex = JarIndex.open(jar)) {
+            return jarIndex.hashTree("");
+        }
+    }
+}
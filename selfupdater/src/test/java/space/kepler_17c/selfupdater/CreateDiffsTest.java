@@ -0,0 +1,89 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CreateDiffsTest {
+    private Path tmpDir;
+    private Path newJar;
+    private List<Path> oldJars;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        oldJars = new ArrayList<>();
+        for (int seed = 0; seed < 3; seed++) {
+            CorpusGenerator.Corpus corpus = new CorpusGenerator(seed)
+                    .entryCount(40)
+                    .totalSize(1 << 16)
+                    .changeRatio(0.3)
+                    .renameRatio(0.1)
+                    .classes(4)
+                    .generate(Files.createDirectories(tmpDir.resolve("corpus" + seed)));
+            Path oldJar = tmpDir.resolve("old" + seed + ".jar");
+            Files.move(corpus.originalJar(), oldJar);
+            oldJars.add(oldJar);
+            if (seed == 0) {
+                newJar = corpus.updatedJar();
+            }
+        }
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void createsAllDiffs() throws IOException {
+        for (DiffFormat diffFormat : List.of(DiffFormat.V1, DiffFormat.LATEST)) {
+            Path outputDir = Files.createDirectories(tmpDir.resolve(diffFormat.name()));
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            List<Path> diffs;
+            try {
+                diffs = SelfUpdater.createDiffs(
+                        oldJars, newJar, outputDir, diffFormat, HashAlgorithm.DEFAULT, executor);
+            } finally {
+                executor.shutdown();
+            }
+            Assertions.assertEquals(oldJars.size(), diffs.size());
+            for (int i = 0; i < oldJars.size(); i++) {
+                assertUpdates(diffs.get(i), oldJars.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void reportsFailedDiffs() throws IOException {
+        List<Path> jars = List.of(oldJars.get(0), tmpDir.resolve("missing.jar"), newJar);
+        List<Path> diffs = SelfUpdater.createDiffs(jars, newJar, tmpDir);
+        Assertions.assertEquals(3, diffs.size());
+        assertUpdates(diffs.get(0), oldJars.get(0));
+        Assertions.assertNull(diffs.get(1));
+        // equal jars yield an empty diff
+        Assertions.assertNull(diffs.get(2));
+        Path sameName = Files.createDirectories(tmpDir.resolve("other")).resolve(oldJars.get(0).getFileName());
+        Files.copy(oldJars.get(1), sameName);
+        Assertions.assertNull(SelfUpdater.createDiffs(List.of(oldJars.get(0), sameName), newJar, tmpDir));
+    }
+
+    private void assertUpdates(Path diff, Path oldJar) throws IOException {
+        Assertions.assertNotNull(diff);
+        Path generatedUpdate = SelfUpdater.applyDiff(diff, oldJar);
+        try (JarIndex expected = JarIndex.open(newJar);
+                JarIndex actual = JarIndex.open(generatedUpdate)) {
+            Assertions.assertEquals(expected.hashTree(""), actual.hashTree(""));
+        } finally {
+            FileUtils.clearWorkingDirectory(generatedUpdate.getParent());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DiffCacheTest {
+    private static final int THREAD_COUNT = 8;
+
+    private Path tmpDir;
+    private Path newJar;
+    private List<Path> oldJars;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        oldJars = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Path dir = Files.createDirectories(tmpDir.resolve("dir" + i));
+            Files.writeString(dir.resolve("shared.txt"), "shared");
+            Files.writeString(dir.resolve("version.txt"), "version " + i);
+            Path jar = tmpDir.resolve("v" + i + ".jar");
+            FileUtils.zipDir(dir, jar);
+            oldJars.add(jar);
+        }
+        newJar = oldJars.remove(3);
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void reusesDiffs() throws IOException {
+        DiffCache diffCache = new DiffCache(tmpDir.resolve("cache"), Long.MAX_VALUE);
+        Path diff = cached(diffCache, oldJars.get(0));
+        Assertions.assertEquals(diff, cached(diffCache, oldJars.get(0)));
+        Path diffV1;
+        try (DiffCache.Entry entry = diffCache.getOrCreate(oldJars.get(0), newJar, DiffFormat.V1,
+                HashAlgorithm.DEFAULT)) {
+            diffV1 = entry.path();
+        }
+        Assertions.assertNotEquals(diff, diffV1);
+        Assertions.assertEquals(
+                new DiffCache.Statistics(1, 2, 0, 2, Files.size(diff) + Files.size(diffV1)),
+                diffCache.getStatistics());
+        DiffCache reopened = new DiffCache(tmpDir.resolve("cache"), Long.MAX_VALUE);
+        Assertions.assertEquals(diff, cached(reopened, oldJars.get(0)));
+        Assertions.assertEquals(1, reopened.getStatistics().hits());
+        Path generatedUpdate = SelfUpdater.applyDiff(diff, oldJars.get(0));
+        try {
+            Assertions.assertTrue(TestUtils.equalZipFiles(newJar, generatedUpdate));
+        } finally {
+            FileUtils.clearWorkingDirectory(generatedUpdate.getParent());
+        }
+    }
+
+    @Test
+    public void createsOnceForConcurrentRequests() throws IOException, ExecutionException, InterruptedException {
+        DiffCache diffCache = new DiffCache(tmpDir.resolve("cache"), Long.MAX_VALUE);
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Path>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return cached(diffCache, oldJars.get(0));
+                }));
+            }
+            start.countDown();
+            for (Future<Path> future : futures) {
+                Assertions.assertEquals(futures.get(0).get(), future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        DiffCache.Statistics statistics = diffCache.getStatistics();
+        Assertions.assertEquals(1, statistics.misses());
+        Assertions.assertEquals(THREAD_COUNT - 1, statistics.hits());
+        Assertions.assertEquals(1, statistics.entryCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        DiffCache unbounded = new DiffCache(tmpDir.resolve("unbounded"), Long.MAX_VALUE);
+        long totalSize = 0;
+        for (Path oldJar : oldJars) {
+            totalSize += Files.size(cached(unbounded, oldJar));
+        }
+        // any two diffs fit, but not all three
+        Path cacheDir = tmpDir.resolve("cache");
+        DiffCache diffCache = new DiffCache(cacheDir, totalSize - 1);
+        Path diffA = cached(diffCache, oldJars.get(0));
+        Path diffB = cached(diffCache, oldJars.get(1));
+        Assertions.assertEquals(diffA, cached(diffCache, oldJars.get(0)));
+        Path diffC = cached(diffCache, oldJars.get(2));
+        Assertions.assertTrue(Files.exists(diffA));
+        Assertions.assertFalse(Files.exists(diffB));
+        Assertions.assertTrue(Files.exists(diffC));
+        DiffCache.Statistics statistics = diffCache.getStatistics();
+        Assertions.assertEquals(1, statistics.hits());
+        Assertions.assertEquals(3, statistics.misses());
+        Assertions.assertEquals(1, statistics.evictions());
+        Assertions.assertEquals(2, statistics.entryCount());
+        Assertions.assertEquals(Files.size(diffA) + Files.size(diffC), statistics.size());
+        // a smaller limit on reopening evicts the older diff
+        Files.setLastModifiedTime(diffA, Files.getLastModifiedTime(diffC));
+        Files.setLastModifiedTime(diffC, FileTime.fromMillis(0));
+        DiffCache reopened = new DiffCache(cacheDir, Files.size(diffA));
+        Assertions.assertEquals(1, reopened.getStatistics().evictions());
+        Assertions.assertTrue(Files.exists(diffA));
+        Assertions.assertFalse(Files.exists(diffC));
+    }
+
+    @Test
+    public void keepsOpenEntries() throws IOException {
+        // every diff exceeds the limit on its own
+        DiffCache diffCache = new DiffCache(tmpDir.resolve("cache"), 1);
+        DiffCache.Entry entryA = diffCache.getOrCreate(oldJars.get(0), newJar);
+        DiffCache.Entry entryB = diffCache.getOrCreate(oldJars.get(1), newJar);
+        Assertions.assertTrue(Files.exists(entryA.path()));
+        Assertions.assertTrue(Files.exists(entryB.path()));
+        Assertions.assertEquals(0, diffCache.getStatistics().evictions());
+        entryA.close();
+        Assertions.assertFalse(Files.exists(entryA.path()));
+        Assertions.assertTrue(Files.exists(entryB.path()));
+        entryA.close();
+        Assertions.assertEquals(1, diffCache.getStatistics().evictions());
+        entryB.close();
+        Assertions.assertFalse(Files.exists(entryB.path()));
+        Assertions.assertEquals(new DiffCache.Statistics(0, 2, 2, 0, 0), diffCache.getStatistics());
+    }
+
+    private Path cached(DiffCache diffCache, Path oldJar) throws SelfUpdaterException {
+        try (DiffCache.Entry entry = diffCache.getOrCreate(oldJar, newJar)) {
+            return entry.path();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static space.kepler_17c.selfupdater.TestUtils.EXTRACTED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+public class DiffManifestTest {
+    private static final String CHANGED_FILE = "changed.txt";
+    private static final String UNCHANGED_FILE = "unchanged.txt";
+
+    private Path tmpDir;
+    private Path diff;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        Random random = new Random(10);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("line ").append(random.nextInt()).append('\n');
+        }
+        Files.createDirectories(tmpDir.resolve(ORIGINAL_DIR));
+        Files.createDirectories(tmpDir.resolve(UPDATED_DIR));
+        Files.writeString(tmpDir.resolve(ORIGINAL_DIR).resolve(CHANGED_FILE), text);
+        Files.writeString(tmpDir.resolve(ORIGINAL_DIR).resolve(UNCHANGED_FILE), "unchanged");
+        text.replace(100, 110, "0123456789");
+        Files.writeString(tmpDir.resolve(UPDATED_DIR).resolve(CHANGED_FILE), text);
+        Files.writeString(tmpDir.resolve(UPDATED_DIR).resolve(UNCHANGED_FILE), "unchanged");
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+        FileUtils.zipDir(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(UPDATED_FILE));
+        diff = SelfUpdater.createDiff(tmpDir.resolve(ORIGINAL_FILE), tmpDir.resolve(UPDATED_FILE), tmpDir, DiffFormat.V6);
+        Assertions.assertNotNull(diff);
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void verifiesWithManifest() throws IOException {
+        String manifest = readDiffFile(FileUtils.DIFF_META_DIR + FileUtils.META_MANIFEST);
+        Assertions.assertTrue(manifest.contains("old 9 "));
+        Assertions.assertTrue(manifest.contains("new " + FileUtils.hashFile(tmpDir.resolve(UPDATED_DIR).resolve(CHANGED_FILE))
+                + " " + CHANGED_FILE + "\n"));
+        Path generatedUpdate = SelfUpdater.applyDiff(diff, tmpDir.resolve(ORIGINAL_FILE));
+        TestUtils.extractJar(generatedUpdate, tmpDir.resolve(EXTRACTED_DIR));
+        Assertions.assertTrue(TestUtils.equalDirectories(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(EXTRACTED_DIR)));
+    }
+
+    @Test
+    public void rejectsModifiedSource() throws IOException {
+        Files.writeString(tmpDir.resolve(ORIGINAL_DIR).resolve(UNCHANGED_FILE), "modified!");
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+        Assertions.assertThrows(
+                SelfUpdaterException.class, () -> SelfUpdater.applyDiff(diff, tmpDir.resolve(ORIGINAL_FILE)));
+    }
+
+    @Test
+    public void rejectsCorruptedCopy() throws IOException {
+        // same paths, sizes and CRCs in the central directory, but different data
+        CompressionPolicy oldPolicy = SelfUpdater.setCompressionPolicy(CompressionPolicy.DEFAULT.withStored("txt"));
+        try {
+            FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+        } finally {
+            SelfUpdater.setCompressionPolicy(oldPolicy);
+        }
+        byte[] jar = Files.readAllBytes(tmpDir.resolve(ORIGINAL_FILE));
+        byte[] storedEntry = (UNCHANGED_FILE + "unchanged").getBytes(StandardCharsets.UTF_8);
+        int offset = indexOf(jar, storedEntry);
+        Assertions.assertTrue(offset >= 0);
+        jar[offset + storedEntry.length - 1] = 'D';
+        Files.write(tmpDir.resolve(ORIGINAL_FILE), jar);
+        SelfUpdaterException e = Assertions.assertThrows(
+                SelfUpdaterException.class, () -> SelfUpdater.applyDiff(diff, tmpDir.resolve(ORIGINAL_FILE)));
+        Assertions.assertTrue(e.getCause().getMessage().contains(UNCHANGED_FILE));
+    }
+
+    @Test
+    public void rejectsBadReconstruction() throws IOException {
+        Path diffDir = tmpDir.resolve("diffDir");
+        TestUtils.extractJar(diff, diffDir);
+        Path manifestFile = diffDir.resolve(FileUtils.DIFF_META_DIR).resolve(FileUtils.META_MANIFEST);
+        String manifest = Files.readString(manifestFile);
+        Files.writeString(manifestFile, manifest.replaceAll("new [0-9a-f]{64} ", "new " + "0".repeat(64) + " "));
+        Path tamperedDiff = tmpDir.resolve("tampered.jardiff");
+        FileUtils.zipDir(diffDir, tamperedDiff);
+        SelfUpdaterException e = Assertions.assertThrows(
+                SelfUpdaterException.class, () -> SelfUpdater.applyDiff(tamperedDiff, tmpDir.resolve(ORIGINAL_FILE)));
+        Assertions.assertTrue(e.getCause().getMessage().contains(CHANGED_FILE));
+    }
+
+    @Test
+    public void rejectsWrongUpdatedTree() throws IOException {
+        // a consistent diff to another update, which only claims the new hash of the expected update
+        Path otherDir = tmpDir.resolve("other");
+        Files.createDirectories(otherDir);
+        String text = Files.readString(tmpDir.resolve(UPDATED_DIR).resolve(CHANGED_FILE));
+        Files.writeString(otherDir.resolve(CHANGED_FILE), text.replace("0123456789", "9876543210"));
+        Files.writeString(otherDir.resolve(UNCHANGED_FILE), "unchanged");
+        FileUtils.zipDir(otherDir, tmpDir.resolve("other.jar"));
+        Path otherDiff = SelfUpdater.createDiff(
+                tmpDir.resolve(ORIGINAL_FILE),
+                tmpDir.resolve("other.jar"),
+                Files.createDirectories(tmpDir.resolve("otherDiff")),
+                DiffFormat.V6);
+        Path diffDir = tmpDir.resolve("diffDir");
+        TestUtils.extractJar(otherDiff, diffDir);
+        Files.writeString(
+                diffDir.resolve(FileUtils.DIFF_META_DIR).resolve(FileUtils.META_NEW_HASH),
+                readDiffFile(FileUtils.DIFF_META_DIR + FileUtils.META_NEW_HASH));
+        Path tamperedDiff = tmpDir.resolve("tampered.jardiff");
+        FileUtils.zipDir(diffDir, tamperedDiff);
+        SelfUpdaterException e = Assertions.assertThrows(
+                SelfUpdaterException.class, () -> SelfUpdater.applyDiff(tamperedDiff, tmpDir.resolve(ORIGINAL_FILE)));
+        Assertions.assertEquals("Updated files' hashes don't match.", e.getMessage());
+    }
+
+    private String readDiffFile(String path) throws IOException {
+        try (JarIndex diffIndex = JarIndex.open(diff)) {
+            return new String(diffIndex.open(path).readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] sequence) {
+        for (int i = 0; i + sequence.length <= data.length; i++) {
+            if (Arrays.equals(data, i, i + sequence.length, sequence, 0, sequence.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
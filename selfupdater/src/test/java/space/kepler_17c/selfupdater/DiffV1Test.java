@@ -16,6 +16,8 @@ public class DiffV1Test {
     private static final String SINGLE_EDIT_TEST_DIR = "diff-v1-single-edit";
     private static final String SINGLE_MOVE_TEST_DIR = "diff-v1-single-move";
     private static final String DIRS_ONLY_TEST_DIR = "diff-v1-directories-only";
+    // generated corpus with edits, moves, class files and a nested jar; diff created by the original implementation
+    private static final String BASELINE_TEST_DIR = "diff-v1-baseline";
 
     private Path tmpDir;
 
@@ -59,6 +61,22 @@ public class DiffV1Test {
         regularApplyTest(DIRS_ONLY_TEST_DIR);
     }
 
+    @Test
+    public void createMatchesBaseline() throws IOException {
+        Path testDir = RESOURCES.resolve(BASELINE_TEST_DIR);
+        Path generatedDiff = SelfUpdater.createDiff(
+                testDir.resolve(ORIGINAL_FILE), testDir.resolve(UPDATED_FILE), tmpDir, DiffFormat.V1);
+        // the original implementation wrote entries in file walk order, so only the content has to match
+        TestUtils.extractJar(testDir.resolve(DIFF_FILE), tmpDir.resolve("expected"));
+        TestUtils.extractJar(generatedDiff, tmpDir.resolve("actual"));
+        Assertions.assertTrue(TestUtils.equalDirectories(tmpDir.resolve("expected"), tmpDir.resolve("actual")));
+    }
+
+    @Test
+    public void applyBaselineDiff() throws IOException {
+        regularApplyTest(BASELINE_TEST_DIR);
+    }
+
     private void regularCreateTest(String testDir) throws IOException {
         System.out.println("Running create test " + testDir + " in " + tmpDir.getFileName());
         Path generatedDiff = SelfUpdater.createDiff(
@@ -0,0 +1,108 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static space.kepler_17c.selfupdater.TestUtils.EXTRACTED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+public class DiffV2Test {
+    private static final String CHANGED_FILE = "lib/resource.bin";
+    private static final int CHANGED_FILE_SIZE = 1 << 18;
+
+    private final Random random = new Random(2);
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        Files.createDirectories(tmpDir.resolve(ORIGINAL_DIR).resolve("lib"));
+        Files.createDirectories(tmpDir.resolve(UPDATED_DIR).resolve("lib"));
+        Files.write(tmpDir.resolve(ORIGINAL_DIR).resolve("unchanged"), randomBytes(1 << 10));
+        Files.copy(tmpDir.resolve(ORIGINAL_DIR).resolve("unchanged"), tmpDir.resolve(UPDATED_DIR).resolve("unchanged"));
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void smallEditUsesDelta() throws IOException {
+        byte[] original = randomBytes(CHANGED_FILE_SIZE);
+        ByteArrayOutputStream updated = new ByteArrayOutputStream();
+        updated.write(original, 0, 1000);
+        updated.write(randomBytes(100));
+        updated.write(original, 1000, 50000);
+        updated.write(original, 60000, original.length - 60000);
+        Files.write(tmpDir.resolve(ORIGINAL_DIR).resolve(CHANGED_FILE), original);
+        Files.write(tmpDir.resolve(UPDATED_DIR).resolve(CHANGED_FILE), updated.toByteArray());
+        Path diff = roundTrip();
+        try (JarIndex diffIndex = JarIndex.open(diff)) {
+            Assertions.assertTrue(diffIndex.isFile(FileUtils.DIFF_DATA_DIR + "delta/" + CHANGED_FILE));
+            Assertions.assertFalse(diffIndex.contains(FileUtils.DIFF_DATA_DIR + "tree/" + CHANGED_FILE));
+        }
+        Assertions.assertTrue(Files.size(diff) < CHANGED_FILE_SIZE / 100);
+    }
+
+    @Test
+    public void unrelatedContentIsStoredWhole() throws IOException {
+        Files.write(tmpDir.resolve(ORIGINAL_DIR).resolve(CHANGED_FILE), randomBytes(CHANGED_FILE_SIZE));
+        Files.write(tmpDir.resolve(UPDATED_DIR).resolve(CHANGED_FILE), randomBytes(CHANGED_FILE_SIZE));
+        Path diff = roundTrip();
+        try (JarIndex diffIndex = JarIndex.open(diff)) {
+            Assertions.assertTrue(diffIndex.isFile(FileUtils.DIFF_DATA_DIR + "tree/" + CHANGED_FILE));
+            Assertions.assertFalse(diffIndex.contains(FileUtils.DIFF_DATA_DIR + "delta/" + CHANGED_FILE));
+        }
+    }
+
+    @Test
+    public void deltaRoundTrip() throws IOException {
+        byte[] text = "the quick brown fox jumps over the lazy dog".getBytes();
+        byte[][][] pairs = {
+            {new byte[0], new byte[0]},
+            {new byte[0], text},
+            {text, new byte[0]},
+            {text, text},
+            {randomBytes(5000), randomBytes(7000)},
+            {new byte[20000], new byte[30000]}
+        };
+        for (byte[][] pair : pairs) {
+            ByteArrayOutputStream patched = new ByteArrayOutputStream();
+            BsDiffCodec.patch(pair[0], BsDiffCodec.diff(pair[0], pair[1]), patched);
+            Assertions.assertArrayEquals(pair[1], patched.toByteArray());
+        }
+    }
+
+    /**
+     * Creates and applies a diff between the original and updated directory.
+     *
+     * @return The diff.
+     */
+    private Path roundTrip() throws IOException {
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+        FileUtils.zipDir(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(UPDATED_FILE));
+        Path diff =
+                SelfUpdater.createDiff(tmpDir.resolve(ORIGINAL_FILE), tmpDir.resolve(UPDATED_FILE), tmpDir, DiffFormat.V2);
+        Assertions.assertNotNull(diff);
+        Path generatedUpdate = SelfUpdater.applyDiff(diff, tmpDir.resolve(ORIGINAL_FILE));
+        TestUtils.extractJar(generatedUpdate, tmpDir.resolve(EXTRACTED_DIR));
+        Assertions.assertTrue(TestUtils.equalDirectories(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(EXTRACTED_DIR)));
+        return diff;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
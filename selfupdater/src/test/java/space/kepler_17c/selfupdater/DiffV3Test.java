@@ -0,0 +1,119 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static space.kepler_17c.selfupdater.TestUtils.EXTRACTED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+public class DiffV3Test {
+    private static final String CHANGED_FILE = "model.bin";
+    private static final int BLOCK_SIZE = 1 << 11;
+
+    private final Random random = new Random(3);
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        Files.createDirectories(tmpDir.resolve(ORIGINAL_DIR));
+        Files.createDirectories(tmpDir.resolve(UPDATED_DIR));
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void largeFileUsesBlocks() throws IOException {
+        byte[] original = randomBytes(BsDiffCodec.MAX_FILE_SIZE + (1 << 20));
+        byte[] updated = original.clone();
+        System.arraycopy(randomBytes(100), 0, updated, 12345, 100);
+        Files.write(tmpDir.resolve(ORIGINAL_DIR).resolve(CHANGED_FILE), original);
+        Files.write(tmpDir.resolve(UPDATED_DIR).resolve(CHANGED_FILE), updated);
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+        FileUtils.zipDir(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(UPDATED_FILE));
+        Path diff =
+                SelfUpdater.createDiff(tmpDir.resolve(ORIGINAL_FILE), tmpDir.resolve(UPDATED_FILE), tmpDir, DiffFormat.V3);
+        Assertions.assertNotNull(diff);
+        try (JarIndex diffIndex = JarIndex.open(diff)) {
+            Assertions.assertTrue(diffIndex.isFile(FileUtils.DIFF_DATA_DIR + "blocks/" + CHANGED_FILE));
+        }
+        Assertions.assertTrue(Files.size(diff) < 1 << 16);
+        Path generatedUpdate = SelfUpdater.applyDiff(diff, tmpDir.resolve(ORIGINAL_FILE));
+        TestUtils.extractJar(generatedUpdate, tmpDir.resolve(EXTRACTED_DIR));
+        Assertions.assertTrue(TestUtils.equalDirectories(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(EXTRACTED_DIR)));
+    }
+
+    @Test
+    public void reorderedBlocks() throws IOException {
+        byte[] a = randomBytes(10 * BLOCK_SIZE);
+        byte[] b = randomBytes(10 * BLOCK_SIZE + 7);
+        byte[] literal = randomBytes(333);
+        byte[] original = concat(a, b);
+        byte[] updated = concat(b, literal, a, a);
+        ByteArrayOutputStream delta = roundTrip(original, updated);
+        // both halves are referenced, so only the literal run is stored
+        Assertions.assertTrue(delta.size() < literal.length + 2 * BLOCK_SIZE);
+    }
+
+    @Test
+    public void edgeCases() throws IOException {
+        roundTrip(new byte[0], randomBytes(BLOCK_SIZE + 1));
+        roundTrip(randomBytes(BLOCK_SIZE + 1), new byte[0]);
+        roundTrip(randomBytes(BLOCK_SIZE - 1), randomBytes(BLOCK_SIZE - 1));
+        roundTrip(new byte[20 * BLOCK_SIZE], new byte[30 * BLOCK_SIZE + 5]);
+        byte[] shifted = randomBytes(40 * BLOCK_SIZE);
+        roundTrip(shifted, concat(new byte[] {1, 2, 3}, shifted));
+    }
+
+    /**
+     * Encodes and decodes the changes from one file to another through jars.
+     *
+     * @return The delta.
+     */
+    private ByteArrayOutputStream roundTrip(byte[] original, byte[] updated) throws IOException {
+        Path originalJar = tmpDir.resolve(ORIGINAL_FILE);
+        Path updatedJar = tmpDir.resolve(UPDATED_FILE);
+        Files.write(tmpDir.resolve(ORIGINAL_DIR).resolve(CHANGED_FILE), original);
+        Files.write(tmpDir.resolve(UPDATED_DIR).resolve(CHANGED_FILE), updated);
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), originalJar);
+        FileUtils.zipDir(tmpDir.resolve(UPDATED_DIR), updatedJar);
+        BlockMatchCodec codec = new BlockMatchCodec(0);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        ByteArrayOutputStream patched = new ByteArrayOutputStream();
+        try (JarIndex originalIndex = JarIndex.open(originalJar);
+                JarIndex updatedIndex = JarIndex.open(updatedJar)) {
+            Assertions.assertTrue(codec.createDelta(originalIndex, updatedIndex, CHANGED_FILE, delta));
+            codec.applyDelta(
+                    originalIndex, CHANGED_FILE, new ByteArrayInputStream(delta.toByteArray()), patched);
+        }
+        Assertions.assertArrayEquals(updated, patched.toByteArray());
+        return delta;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            result.writeBytes(part);
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,125 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static space.kepler_17c.selfupdater.TestUtils.EXTRACTED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+public class DiffV4Test {
+    private static final String CLASS_FILE = "demo/Greeter.class";
+    private static final int METHOD_COUNT = 40;
+
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assumptions.assumeTrue(compiler != null, "Tests require a JDK.");
+        compile(compiler, ORIGINAL_DIR, false);
+        compile(compiler, UPDATED_DIR, true);
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+        FileUtils.zipDir(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(UPDATED_FILE));
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void shiftedConstantPool() throws IOException {
+        ClassFileCodec classFileCodec = new ClassFileCodec();
+        try (JarIndex originalIndex = JarIndex.open(tmpDir.resolve(ORIGINAL_FILE));
+                JarIndex updatedIndex = JarIndex.open(tmpDir.resolve(UPDATED_FILE));
+                SpillBuffer classFileDelta = new SpillBuffer();
+                SpillBuffer binaryDelta = new SpillBuffer()) {
+            Assertions.assertTrue(classFileCodec.createDelta(originalIndex, updatedIndex, CLASS_FILE, classFileDelta));
+            Assertions.assertTrue(new BsDiffCodec().createDelta(originalIndex, updatedIndex, CLASS_FILE, binaryDelta));
+            Assertions.assertTrue(classFileDelta.deflatedSize() < binaryDelta.deflatedSize());
+            ByteArrayOutputStream deltaData = new ByteArrayOutputStream();
+            classFileDelta.writeTo(deltaData);
+            ByteArrayOutputStream patched = new ByteArrayOutputStream();
+            classFileCodec.applyDelta(
+                    originalIndex, CLASS_FILE, new ByteArrayInputStream(deltaData.toByteArray()), patched);
+            Assertions.assertArrayEquals(
+                    Files.readAllBytes(tmpDir.resolve(UPDATED_DIR).resolve(CLASS_FILE)), patched.toByteArray());
+        }
+    }
+
+    @Test
+    public void nonClassFileIsDeclined() throws IOException {
+        Path textJar = tmpDir.resolve("text.jar");
+        Path textDir = tmpDir.resolve("text");
+        Files.createDirectories(textDir.resolve("demo"));
+        Files.write(textDir.resolve(CLASS_FILE), "not a class file".getBytes());
+        FileUtils.zipDir(textDir, textJar);
+        try (JarIndex textIndex = JarIndex.open(textJar);
+                JarIndex updatedIndex = JarIndex.open(tmpDir.resolve(UPDATED_FILE))) {
+            Assertions.assertFalse(
+                    new ClassFileCodec().createDelta(textIndex, updatedIndex, CLASS_FILE, new ByteArrayOutputStream()));
+        }
+    }
+
+    @Test
+    public void applyThroughSelfUpdater() throws IOException {
+        Path diff =
+                SelfUpdater.createDiff(tmpDir.resolve(ORIGINAL_FILE), tmpDir.resolve(UPDATED_FILE), tmpDir, DiffFormat.V4);
+        Assertions.assertNotNull(diff);
+        try (JarIndex diffIndex = JarIndex.open(diff)) {
+            Assertions.assertTrue(diffIndex.isFile(FileUtils.DIFF_DATA_DIR + "classes/" + CLASS_FILE));
+        }
+        Path generatedUpdate = SelfUpdater.applyDiff(diff, tmpDir.resolve(ORIGINAL_FILE));
+        TestUtils.extractJar(generatedUpdate, tmpDir.resolve(EXTRACTED_DIR));
+        Assertions.assertTrue(TestUtils.equalDirectories(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(EXTRACTED_DIR)));
+    }
+
+    /**
+     * Compiles a class with many methods. The updated version adds a method in front, shifting the constant pool.
+     */
+    private void compile(JavaCompiler compiler, String outputDir, boolean updated) throws IOException {
+        StringBuilder source = new StringBuilder();
+        source.append("package demo;\n");
+        source.append("public class Greeter {\n");
+        source.append("    private final String name;\n");
+        source.append("    public Greeter(String name) { this.name = name; }\n");
+        if (updated) {
+            source.append("    public String farewell(java.util.Locale locale) {\n");
+            source.append("        return \"Goodbye, \" + name.toUpperCase(locale) + java.util.Objects.hash(name);\n");
+            source.append("    }\n");
+        }
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            source.append("    public int method").append(i).append("(java.util.List<String> items) {\n");
+            source.append("        int count = 0;\n");
+            source.append("        for (String item : items) {\n");
+            source.append("            if (item.startsWith(\"prefix").append(i).append("\")) {\n");
+            source.append("                count += item.length() * ").append(i + 1000).append(";\n");
+            source.append("            }\n");
+            source.append("        }\n");
+            source.append("        System.out.println(\"method").append(i).append(" \" + name + count);\n");
+            source.append("        return count;\n");
+            source.append("    }\n");
+        }
+        source.append("}\n");
+        Path sourceFile = tmpDir.resolve("src-" + outputDir).resolve("demo").resolve("Greeter.java");
+        Files.createDirectories(sourceFile.getParent());
+        Files.writeString(sourceFile, source);
+        Files.createDirectories(tmpDir.resolve(outputDir));
+        int result = compiler.run(
+                null, null, null, "-d", tmpDir.resolve(outputDir).toString(), sourceFile.toString());
+        Assertions.assertEquals(0, result);
+    }
+}
@@ -0,0 +1,185 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import space.kepler_17c.selfupdater.MiscUtils.Tuple2;
+import static space.kepler_17c.selfupdater.TestUtils.EXTRACTED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+public class DiffV5Test {
+    private static final String LIBRARY_DIR = "BOOT-INF/lib/";
+    private static final String LIBRARY_FILE = LIBRARY_DIR + "dependency.jar";
+    private static final int LIBRARY_FILE_COUNT = 200;
+
+    private final Random random = new Random(5);
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        Files.createDirectories(tmpDir.resolve(ORIGINAL_DIR).resolve(LIBRARY_DIR));
+        Files.createDirectories(tmpDir.resolve(UPDATED_DIR).resolve(LIBRARY_DIR));
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void singleChangeInLibrary() throws IOException {
+        Path originalLibraryDir = tmpDir.resolve("originalLibrary");
+        Path updatedLibraryDir = tmpDir.resolve("updatedLibrary");
+        for (int i = 0; i < LIBRARY_FILE_COUNT; i++) {
+            byte[] content = randomText(8192);
+            Files.createDirectories(originalLibraryDir.resolve("lib"));
+            Files.createDirectories(updatedLibraryDir.resolve("lib"));
+            Files.write(originalLibraryDir.resolve("lib").resolve("file" + i + ".txt"), content);
+            if (i == LIBRARY_FILE_COUNT / 2) {
+                content[100] ^= 1;
+            }
+            Files.write(updatedLibraryDir.resolve("lib").resolve("file" + i + ".txt"), content);
+        }
+        FileUtils.zipDir(originalLibraryDir, tmpDir.resolve(ORIGINAL_DIR).resolve(LIBRARY_FILE));
+        FileUtils.zipDir(updatedLibraryDir, tmpDir.resolve(UPDATED_DIR).resolve(LIBRARY_FILE));
+        Path diff = roundTrip();
+        Assertions.assertTrue(Files.size(diff) < Files.size(tmpDir.resolve(UPDATED_DIR).resolve(LIBRARY_FILE)) / 20);
+    }
+
+    @Test
+    public void mixedEntries() throws IOException {
+        writeMixedLibraries();
+        roundTrip();
+    }
+
+    @Test
+    public void nestedUpdateTriggersEachEventOnce() throws IOException {
+        writeMixedLibraries();
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+        FileUtils.zipDir(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(UPDATED_FILE));
+        Path diff =
+                SelfUpdater.createDiff(tmpDir.resolve(ORIGINAL_FILE), tmpDir.resolve(UPDATED_FILE), tmpDir, DiffFormat.V5);
+        List<Tuple2<UpdaterEvent, Boolean>> receivedEvents = Collections.synchronizedList(new ArrayList<>());
+        Map<UpdaterEvent, Consumer<Boolean>> callbacks = new EnumMap<>(UpdaterEvent.class);
+        for (UpdaterEvent event : UpdaterEvent.values()) {
+            callbacks.put(event, success -> receivedEvents.add(new Tuple2<>(event, success)));
+            UpdaterEvent.subscribeEvent(event, callbacks.get(event));
+        }
+        try {
+            Path generatedUpdate = SelfUpdater.applyDiff(diff, tmpDir.resolve(ORIGINAL_FILE));
+            FileUtils.clearWorkingDirectory(generatedUpdate.getParent());
+        } finally {
+            callbacks.forEach(UpdaterEvent::unsubscribeFrom);
+        }
+        List<Tuple2<UpdaterEvent, Boolean>> expectedEvents = new ArrayList<>();
+        for (UpdaterEvent event : UpdaterEvent.values()) {
+            expectedEvents.add(new Tuple2<>(event, true));
+        }
+        Assertions.assertEquals(expectedEvents, receivedEvents);
+    }
+
+    @Test
+    public void sameTreeDifferentArchive() throws IOException {
+        String[] names = {"a.txt", "b.txt"};
+        byte[][] contents = {randomText(5000), randomText(5000)};
+        Files.write(tmpDir.resolve(ORIGINAL_DIR).resolve(LIBRARY_FILE), zip(names, contents, 1, 0));
+        Files.write(tmpDir.resolve(UPDATED_DIR).resolve(LIBRARY_FILE), zip(names, contents, 9, 0));
+        roundTrip();
+    }
+
+    private void writeMixedLibraries() throws IOException {
+        byte[] innerContent = randomText(5000);
+        byte[] innerOriginal = zip(new String[] {"a.txt"}, new byte[][] {innerContent}, 6, 0);
+        innerContent[10] ^= 1;
+        byte[] innerUpdated = zip(new String[] {"a.txt"}, new byte[][] {innerContent}, 6, 0);
+        byte[] stored = randomText(3000);
+        byte[] deflated = randomText(3000);
+        String[] names = {"stored.txt", "deflated.txt", "inner.jar", "unchanged.txt"};
+        byte[] unchanged = randomText(4000);
+        Files.write(
+                tmpDir.resolve(ORIGINAL_DIR).resolve(LIBRARY_FILE),
+                zip(names, new byte[][] {stored, deflated, innerOriginal, unchanged}, 9, 1));
+        stored[10] ^= 1;
+        deflated[10] ^= 1;
+        Files.write(
+                tmpDir.resolve(UPDATED_DIR).resolve(LIBRARY_FILE),
+                zip(names, new byte[][] {stored, deflated, innerUpdated, unchanged}, 9, 1));
+    }
+
+    /**
+     * Zips both directories, creates a diff and checks the updated library is reproduced exactly.
+     *
+     * @return The diff.
+     */
+    private Path roundTrip() throws IOException {
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+        FileUtils.zipDir(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(UPDATED_FILE));
+        Path diff =
+                SelfUpdater.createDiff(tmpDir.resolve(ORIGINAL_FILE), tmpDir.resolve(UPDATED_FILE), tmpDir, DiffFormat.V5);
+        Assertions.assertNotNull(diff);
+        try (JarIndex diffIndex = JarIndex.open(diff)) {
+            Assertions.assertTrue(diffIndex.isFile(FileUtils.DIFF_DATA_DIR + "nested/" + LIBRARY_FILE));
+        }
+        Path generatedUpdate = SelfUpdater.applyDiff(diff, tmpDir.resolve(ORIGINAL_FILE));
+        TestUtils.extractJar(generatedUpdate, tmpDir.resolve(EXTRACTED_DIR));
+        Assertions.assertArrayEquals(
+                Files.readAllBytes(tmpDir.resolve(UPDATED_DIR).resolve(LIBRARY_FILE)),
+                Files.readAllBytes(tmpDir.resolve(EXTRACTED_DIR).resolve(LIBRARY_FILE)));
+        return diff;
+    }
+
+    /**
+     * Writes an archive with the given compression level.
+     *
+     * @param storedCount Number of leading entries to store without compression.
+     */
+    private static byte[] zip(String[] names, byte[][] contents, int level, int storedCount) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(result)) {
+            zos.setLevel(level);
+            for (int i = 0; i < names.length; i++) {
+                ZipEntry ze = new ZipEntry(names[i]);
+                if (i < storedCount) {
+                    CRC32 crc = new CRC32();
+                    crc.update(contents[i]);
+                    ze.setMethod(ZipEntry.STORED);
+                    ze.setSize(contents[i].length);
+                    ze.setCompressedSize(contents[i].length);
+                    ze.setCrc(crc.getValue());
+                }
+                zos.putNextEntry(ze);
+                zos.write(contents[i]);
+                zos.closeEntry();
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private byte[] randomText(int length) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append("line ").append(random.nextInt(1000)).append('\n');
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,75 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class FileUtilsTest {
+    private static final int SIZE = 3 << 20; // 3 MiB, several buffers
+
+    private final Random random = new Random(13);
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void comparesFiles() throws IOException {
+        compareWithLastByteChanged(SIZE);
+    }
+
+    @Test
+    public void comparesStreams() throws IOException {
+        byte[] content = randomBytes(SIZE);
+        byte[] prefix = Arrays.copyOf(content, content.length - 1);
+        Assertions.assertTrue(
+                FileUtils.equalStreams(new ByteArrayInputStream(content), new ByteArrayInputStream(content.clone())));
+        Assertions.assertFalse(FileUtils.equalStreams(new ByteArrayInputStream(content), new ByteArrayInputStream(prefix)));
+    }
+
+    @Test
+    public void hashesFiles() throws IOException {
+        for (int size : new int[] {0, SIZE}) {
+            byte[] content = randomBytes(size);
+            Path file = tmpDir.resolve("file" + size);
+            Files.write(file, content);
+            MessageDigest digest = FileUtils.sha256Digest();
+            Assertions.assertEquals(FileUtils.hexString(digest.digest(content)), FileUtils.hashFile(file));
+        }
+    }
+
+    private void compareWithLastByteChanged(int size) throws IOException {
+        byte[] content = randomBytes(size);
+        Path a = tmpDir.resolve("a");
+        Path b = tmpDir.resolve("b");
+        Files.write(a, content);
+        Files.write(b, content);
+        Assertions.assertTrue(FileUtils.equalFiles(a, b));
+        content[size - 1] ^= 1;
+        Files.write(b, content);
+        Assertions.assertFalse(FileUtils.equalFiles(a, b));
+        Files.write(b, new byte[size - 1]);
+        Assertions.assertFalse(FileUtils.equalFiles(a, b));
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
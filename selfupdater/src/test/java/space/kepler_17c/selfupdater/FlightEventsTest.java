@@ -0,0 +1,72 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class FlightEventsTest {
+    private static final String PREFIX = "space.kepler_17c.selfupdater.";
+
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void recordsCreationAndApplication() throws IOException {
+        CorpusGenerator.Corpus corpus = new CorpusGenerator(17)
+                .entryCount(50)
+                .totalSize(1 << 16)
+                .changeRatio(0.2)
+                .renameRatio(0.2)
+                .generate(tmpDir);
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            for (String name : List.of(
+                    "Phase", "TreeHash", "EntryHash", "DiffComparison", "MoveDetection", "Pack")) {
+                recording.enable(PREFIX + name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            Path diff = SelfUpdater.createDiff(corpus.originalJar(), corpus.updatedJar(), tmpDir);
+            Path generatedUpdate = SelfUpdater.applyDiff(diff, corpus.originalJar());
+            recording.stop();
+            Path recordingFile = tmpDir.resolve("recording.jfr");
+            recording.dump(recordingFile);
+            events = RecordingFile.readAllEvents(recordingFile);
+        }
+        Set<String> names = events.stream()
+                .map(event -> event.getEventType().getName().substring(PREFIX.length()))
+                .collect(Collectors.toSet());
+        Assertions.assertEquals(
+                Set.of("Phase", "TreeHash", "EntryHash", "DiffComparison", "MoveDetection", "Pack"),
+                names);
+        List<String> phases = events.stream()
+                .filter(event -> event.getEventType().getName().equals(PREFIX + "Phase"))
+                .map(event -> event.getString("event"))
+                .toList();
+        Assertions.assertEquals(
+                List.of(UpdaterEvent.values()).stream().map(Enum::name).toList(), phases);
+        RecordedEvent comparison = events.stream()
+                .filter(event -> event.getEventType().getName().equals(PREFIX + "DiffComparison"))
+                .findFirst()
+                .orElseThrow();
+        Assertions.assertEquals(corpus.renamedEntries(), comparison.getInt("movedFileCount"));
+    }
+}
@@ -89,9 +89,7 @@ public class FullAutoBroadTest {
                     generatedDiff, tmpDir.resolve(ORIGINAL_FILE)
                 });
         // extract update and compare with original
-        invokePrivateMethod(FileUtils.class, "extractJar", new Class<?>[] {Path.class, Path.class}, new Object[] {
-            generatedUpdate, tmpDir.resolve(EXTRACTED_DIR)
-        });
+        TestUtils.extractJar(generatedUpdate, tmpDir.resolve(EXTRACTED_DIR));
         equalDirectories(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(EXTRACTED_DIR));
     }
 }
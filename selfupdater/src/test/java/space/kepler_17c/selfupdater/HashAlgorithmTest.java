@@ -0,0 +1,118 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static space.kepler_17c.selfupdater.TestUtils.EXTRACTED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+public class HashAlgorithmTest {
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        Random random = new Random(14);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("line ").append(random.nextInt()).append('\n');
+        }
+        Files.createDirectories(tmpDir.resolve(ORIGINAL_DIR).resolve("dir"));
+        Files.createDirectories(tmpDir.resolve(UPDATED_DIR).resolve("dir"));
+        Files.writeString(tmpDir.resolve(ORIGINAL_DIR).resolve("dir").resolve("changed.txt"), text);
+        Files.writeString(tmpDir.resolve(ORIGINAL_DIR).resolve("removed.txt"), "removed");
+        text.replace(50, 60, "0123456789");
+        Files.writeString(tmpDir.resolve(UPDATED_DIR).resolve("dir").resolve("changed.txt"), text);
+        Files.writeString(tmpDir.resolve(UPDATED_DIR).resolve("added.txt"), "added");
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+        FileUtils.zipDir(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(UPDATED_FILE));
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void appliesWithRecordedAlgorithm() throws IOException {
+        Path diff = SelfUpdater.createDiff(
+                tmpDir.resolve(ORIGINAL_FILE),
+                tmpDir.resolve(UPDATED_FILE),
+                tmpDir,
+                DiffFormat.V6,
+                HashAlgorithm.SHA_512_256);
+        Assertions.assertNotNull(diff);
+        try (JarIndex diffIndex = JarIndex.open(diff);
+                InputStream inputStream =
+                        diffIndex.open(FileUtils.DIFF_META_DIR + FileUtils.META_HASH_ALGORITHM)) {
+            Assertions.assertEquals(
+                    HashAlgorithm.SHA_512_256.value, new String(inputStream.readAllBytes(), StandardCharsets.UTF_8));
+            Assertions.assertEquals(
+                    MetaVersion.V2.hashTree(diffIndex, FileUtils.DIFF_DATA_DIR, HashAlgorithm.SHA_512_256),
+                    FileUtils.getDiffMetaData(diffIndex).diffHash());
+        }
+        Path generatedUpdate = SelfUpdater.applyDiff(diff, tmpDir.resolve(ORIGINAL_FILE));
+        TestUtils.extractJar(generatedUpdate, tmpDir.resolve(EXTRACTED_DIR));
+        Assertions.assertTrue(TestUtils.equalDirectories(tmpDir.resolve(UPDATED_DIR), tmpDir.resolve(EXTRACTED_DIR)));
+    }
+
+    @Test
+    public void rejectsAlgorithmForOldFormats() {
+        Assertions.assertNull(SelfUpdater.createDiff(
+                tmpDir.resolve(ORIGINAL_FILE),
+                tmpDir.resolve(UPDATED_FILE),
+                tmpDir,
+                DiffFormat.V5,
+                HashAlgorithm.SHA_512_256));
+    }
+
+    @Test
+    public void hexRoundTrip() throws IOException {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        String hex = FileUtils.hexString(bytes);
+        Assertions.assertEquals("00010203", hex.substring(0, 8));
+        Assertions.assertEquals("feff", hex.substring(hex.length() - 4));
+        Assertions.assertArrayEquals(bytes, FileUtils.hexBytes(hex));
+        Assertions.assertArrayEquals(bytes, FileUtils.hexBytes(hex.toUpperCase()));
+        Assertions.assertThrows(SelfUpdaterException.class, () -> FileUtils.hexBytes("abc"));
+        Assertions.assertThrows(SelfUpdaterException.class, () -> FileUtils.hexBytes("0g"));
+    }
+
+    @Test
+    public void xxHashVectors() {
+        Assertions.assertEquals(0xef46db3751d8e999L, xxHash(new byte[0], 1));
+        Assertions.assertEquals(0x44bc2cf5ad770999L, xxHash("abc".getBytes(StandardCharsets.UTF_8), 1));
+        byte[] text = "Nobody inspects the spammish repetition".getBytes(StandardCharsets.UTF_8);
+        for (int chunkSize : new int[] {1, 7, 32, text.length}) {
+            Assertions.assertEquals(0xfbcea83c8a378bf1L, xxHash(text, chunkSize));
+        }
+        byte[] longData = new byte[1027];
+        for (int i = 0; i < longData.length; i++) {
+            longData[i] = (byte) i;
+        }
+        for (int chunkSize : new int[] {3, 31, 33, 1000}) {
+            Assertions.assertEquals(0xc2e84799bd1839c4L, xxHash(longData, chunkSize));
+        }
+    }
+
+    private static long xxHash(byte[] data, int chunkSize) {
+        XxHash64 xxHash = new XxHash64();
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            xxHash.update(data, offset, Math.min(chunkSize, data.length - offset));
+        }
+        return xxHash.digest();
+    }
+}
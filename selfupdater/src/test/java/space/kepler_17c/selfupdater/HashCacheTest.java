@@ -0,0 +1,133 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+
+public class HashCacheTest {
+    private static final String CACHE_FILE = "hashes.properties";
+
+    private Path tmpDir;
+    private Path jar;
+    private HashCache hashCache;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        Files.createDirectories(tmpDir.resolve(ORIGINAL_DIR));
+        Files.writeString(tmpDir.resolve(ORIGINAL_DIR).resolve("a.txt"), "content");
+        jar = tmpDir.resolve(ORIGINAL_FILE);
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), jar);
+        hashCache = new HashCache(tmpDir.resolve(CACHE_FILE));
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void reusesStoredHash() throws IOException {
+        for (MetaVersion metaVersion : MetaVersion.values()) {
+            Assertions.assertEquals(directHash(metaVersion), cachedHash(metaVersion));
+        }
+        Path cacheFile = tmpDir.resolve(CACHE_FILE);
+        String hash = directHash(MetaVersion.V2);
+        Files.writeString(cacheFile, Files.readString(cacheFile).replace(hash, "cached"));
+        Assertions.assertEquals("cached", cachedHash(MetaVersion.V2));
+        Assertions.assertEquals(directHash(MetaVersion.V1), cachedHash(MetaVersion.V1));
+    }
+
+    @Test
+    public void invalidatesChangedJar() throws IOException {
+        String hash = cachedHash(MetaVersion.V2);
+        Files.writeString(tmpDir.resolve(ORIGINAL_DIR).resolve("a.txt"), "changed");
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), jar);
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(0));
+        String changedHash = cachedHash(MetaVersion.V2);
+        Assertions.assertNotEquals(hash, changedHash);
+        Assertions.assertEquals(directHash(MetaVersion.V2), changedHash);
+    }
+
+    @Test
+    public void ignoresBrokenCache() throws IOException {
+        Files.writeString(tmpDir.resolve(CACHE_FILE), "\\u00");
+        Assertions.assertEquals(directHash(MetaVersion.V1), cachedHash(MetaVersion.V1));
+        Assertions.assertEquals(directHash(MetaVersion.V1), cachedHash(MetaVersion.V1));
+    }
+
+    @Test
+    public void keepsConcurrentEntries() throws IOException, InterruptedException {
+        int jarCount = 8;
+        List<Path> jars = new ArrayList<>();
+        for (int i = 0; i < jarCount; i++) {
+            jars.add(Files.copy(jar, tmpDir.resolve(i + ".jar")));
+        }
+        List<Thread> threads = new ArrayList<>();
+        List<IOException> failures = new CopyOnWriteArrayList<>();
+        for (Path copy : jars) {
+            // separate instances, like separate programs
+            HashCache cache = new HashCache(tmpDir.resolve(CACHE_FILE));
+            threads.add(new Thread(() -> {
+                try {
+                    cache.hashTree(copy, MetaVersion.V2, HashAlgorithm.DEFAULT);
+                } catch (IOException e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertTrue(failures.isEmpty());
+        Properties entries = new Properties();
+        try (InputStream inputStream = Files.newInputStream(tmpDir.resolve(CACHE_FILE))) {
+            entries.load(inputStream);
+        }
+        Assertions.assertEquals(jarCount, entries.size());
+    }
+
+    @Test
+    public void ownerOnlyCacheIsPrivate() throws IOException {
+        Assumptions.assumeTrue(Files.getFileAttributeView(tmpDir, PosixFileAttributeView.class) != null);
+        Path privateCache = tmpDir.resolve("private").resolve(CACHE_FILE);
+        new HashCache(privateCache, true).hashTree(jar, MetaVersion.V2, HashAlgorithm.DEFAULT);
+        Assertions.assertTrue(Files.exists(privateCache));
+        Assertions.assertEquals(
+                PosixFilePermissions.fromString("rwx------"),
+                Files.getPosixFilePermissions(privateCache.getParent()));
+        // a directory others may write to isn't used
+        Path sharedDir = Files.createDirectories(tmpDir.resolve("shared"));
+        Files.setPosixFilePermissions(sharedDir, PosixFilePermissions.fromString("rwxrwxrwx"));
+        HashCache sharedCache = new HashCache(sharedDir.resolve(CACHE_FILE), true);
+        Assertions.assertEquals(
+                directHash(MetaVersion.V2), sharedCache.hashTree(jar, MetaVersion.V2, HashAlgorithm.DEFAULT));
+        Assertions.assertFalse(Files.exists(sharedDir.resolve(CACHE_FILE)));
+    }
+
+    private String cachedHash(MetaVersion metaVersion) throws IOException {
+        return hashCache.hashTree(jar, metaVersion, HashAlgorithm.DEFAULT);
+    }
+
+    private String directHash(MetaVersion metaVersion) throws IOException {
+        try (JarIndex jarIndex = JarIndex.open(jar)) {
+            return metaVersion.hashTree(jarIndex, "");
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+
+public class JarReplacementTest {
+    private Path tmpDir;
+    private Path targetJar;
+    private Path updatedJar;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        targetJar = tmpDir.resolve(ORIGINAL_FILE);
+        Files.writeString(targetJar, "old");
+        updatedJar = FileUtils.createTmpDir().resolve(FileUtils.UPDATED_FILE_NAME);
+        Files.writeString(updatedJar, "new");
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+        if (Files.exists(updatedJar.getParent())) {
+            FileUtils.clearWorkingDirectory(updatedJar.getParent());
+        }
+    }
+
+    @Test
+    public void stagesNextToTarget() throws IOException {
+        JarReplacement replacement = JarReplacement.stage(updatedJar, targetJar);
+        Path stagedJar = tmpDir.resolve(ORIGINAL_FILE + JarReplacement.STAGED_SUFFIX);
+        Path backupJar = tmpDir.resolve(ORIGINAL_FILE + JarReplacement.BACKUP_SUFFIX);
+        Assertions.assertEquals(stagedJar, replacement.stagedJar());
+        Assertions.assertEquals("new", Files.readString(stagedJar));
+        Assertions.assertEquals("old", Files.readString(backupJar));
+        Assertions.assertEquals("old", Files.readString(targetJar));
+        Assertions.assertFalse(Files.exists(updatedJar.getParent()));
+        try (Stream<Path> files = Files.list(tmpDir)) {
+            Assertions.assertEquals(3, files.count());
+        }
+        replacement.replace();
+        Assertions.assertEquals("new", Files.readString(targetJar));
+        Assertions.assertEquals("old", Files.readString(backupJar));
+        Assertions.assertFalse(Files.exists(stagedJar));
+    }
+
+    @Test
+    public void failedBackupRemovesStagedJar() throws IOException {
+        Path backupJar = tmpDir.resolve(ORIGINAL_FILE + JarReplacement.BACKUP_SUFFIX);
+        // a non-empty directory can't be replaced by the backup
+        Files.createDirectories(backupJar);
+        Files.writeString(backupJar.resolve("blocking"), "");
+        Assertions.assertThrows(IOException.class, () -> JarReplacement.stage(updatedJar, targetJar));
+        Assertions.assertFalse(Files.exists(tmpDir.resolve(ORIGINAL_FILE + JarReplacement.STAGED_SUFFIX)));
+        Assertions.assertEquals("old", Files.readString(targetJar));
+    }
+
+    @Test
+    public void replacesUnstaged() throws IOException {
+        JarReplacement replacement = JarReplacement.unstaged(updatedJar, targetJar);
+        Assertions.assertEquals(updatedJar, replacement.stagedJar());
+        replacement.replace();
+        Assertions.assertEquals("new", Files.readString(targetJar));
+    }
+}
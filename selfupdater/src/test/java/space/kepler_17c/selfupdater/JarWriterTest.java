@@ -0,0 +1,235 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import space.kepler_17c.selfupdater.JarWriter.Source;
+import static space.kepler_17c.selfupdater.TestUtils.EXTRACTED_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.RESOURCES;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+public class JarWriterTest {
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void copiedFilesKeepCompressedData() throws IOException {
+        Path sourceDir = tmpDir.resolve("source");
+        Files.createDirectories(sourceDir.resolve("lib"));
+        Random random = new Random(0);
+        byte[] text = new byte[1 << 14];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + random.nextInt(4));
+        }
+        Files.write(sourceDir.resolve("text"), text);
+        Files.write(sourceDir.resolve("empty"), new byte[0]);
+        Files.copy(RESOURCES.resolve("diff-v1-single-edit").resolve(ORIGINAL_FILE), sourceDir.resolve("lib/a.jar"));
+        FileUtils.zipDir(sourceDir, tmpDir.resolve(ORIGINAL_FILE));
+        String expectedHash;
+        String actualHash;
+        try (JarIndex source = JarIndex.open(tmpDir.resolve(ORIGINAL_FILE))) {
+            expectedHash = source.hashTree("");
+            try (JarWriter writer = new JarWriter(tmpDir.resolve(UPDATED_FILE), "")) {
+                for (String path : source.paths()) {
+                    if (source.isDirectory(path)) {
+                        writer.putDirectory(path);
+                    } else {
+                        writer.copyFile(path, source, path);
+                    }
+                }
+                actualHash = writer.finishHash();
+            }
+            try (JarIndex copy = JarIndex.open(tmpDir.resolve(UPDATED_FILE))) {
+                Assertions.assertEquals(source.paths(), copy.paths());
+                for (String path : source.paths()) {
+                    if (source.isFile(path)) {
+                        Assertions.assertEquals(
+                                source.getRawEntry(path).method(),
+                                copy.getRawEntry(path).method());
+                        try (InputStream expected = source.openRaw(path);
+                                InputStream actual = copy.openRaw(path)) {
+                            Assertions.assertArrayEquals(expected.readAllBytes(), actual.readAllBytes());
+                        }
+                    }
+                }
+                Assertions.assertEquals(expectedHash, copy.hashTree(""));
+            }
+        }
+        Assertions.assertEquals(expectedHash, actualHash);
+        TestUtils.extractJar(tmpDir.resolve(UPDATED_FILE), tmpDir.resolve(EXTRACTED_DIR));
+        Assertions.assertTrue(TestUtils.equalDirectories(sourceDir, tmpDir.resolve(EXTRACTED_DIR)));
+    }
+
+    @Test
+    public void manyEntriesUseZip64() throws IOException {
+        int entryCount = 1 << 17;
+        Path jar = tmpDir.resolve(UPDATED_FILE);
+        try (JarWriter writer = new JarWriter(jar, null)) {
+            for (int i = 0; i < entryCount; i++) {
+                writer.putFile(String.format("%06d", i), new byte[] {(byte) i});
+            }
+        }
+        try (JarIndex index = JarIndex.open(jar);
+                InputStream inputStream = index.open(String.format("%06d", 12345))) {
+            Assertions.assertEquals(entryCount, index.paths().size());
+            Assertions.assertEquals((byte) 12345, inputStream.readAllBytes()[0]);
+        }
+        int streamedCount = 0;
+        try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(jar))) {
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null) {
+                Assertions.assertEquals((byte) Integer.parseInt(ze.getName()), zis.readAllBytes()[0]);
+                streamedCount++;
+            }
+        }
+        Assertions.assertEquals(entryCount, streamedCount);
+    }
+
+    @Test
+    public void packedTreeKeepsOrder() throws IOException {
+        Random random = new Random(0);
+        NavigableMap<String, Source> tree = new TreeMap<>();
+        tree.put("dir/", null);
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[random.nextInt(1 << 12)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) ('a' + random.nextInt(4));
+            }
+            tree.put(String.format("dir/%03d", i), new Source(out -> out.write(data)));
+        }
+        byte[] archive = Files.readAllBytes(RESOURCES.resolve("diff-v1-single-edit").resolve(ORIGINAL_FILE));
+        tree.put("dir/lib.jar", new Source(out -> out.write(archive)));
+        Path jar = tmpDir.resolve(UPDATED_FILE);
+        String hash;
+        try (JarWriter writer = new JarWriter(jar, "")) {
+            writer.putTree(tree);
+            hash = writer.finishHash();
+        }
+        List<String> writtenPaths = new ArrayList<>();
+        try (ZipInputStream zis = new ZipInputStream(Files.newInputStream(jar))) {
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null) {
+                writtenPaths.add(ze.getName());
+            }
+        }
+        Assertions.assertEquals(new ArrayList<>(tree.keySet()), writtenPaths);
+        try (JarIndex index = JarIndex.open(jar)) {
+            Assertions.assertEquals(index.hashTree(""), hash);
+            Assertions.assertEquals(ZipEntry.STORED, index.getRawEntry("dir/lib.jar").method());
+            Assertions.assertEquals(ZipEntry.DEFLATED, index.getRawEntry("dir/000").method());
+            try (InputStream inputStream = index.open("dir/lib.jar")) {
+                Assertions.assertArrayEquals(archive, inputStream.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    public void packedTreeHashesEntriesAlong() throws IOException {
+        Random random = new Random(0);
+        NavigableMap<String, Source> tree = new TreeMap<>();
+        tree.put("dir/", null);
+        tree.put("dir/sub/", null);
+        for (int i = 0; i < 100; i++) {
+            byte[] data = new byte[random.nextInt(1 << 12)];
+            random.nextBytes(data);
+            tree.put(String.format("dir/%s%03d", i % 2 == 0 ? "" : "sub/", i), new Source(out -> out.write(data)));
+        }
+        byte[] archive = Files.readAllBytes(RESOURCES.resolve("diff-v1-single-edit").resolve(ORIGINAL_FILE));
+        tree.put("dir/lib.jar", new Source(out -> out.write(archive)));
+        tree.put("other", new Source(out -> out.write(1)));
+        Path jar = tmpDir.resolve(UPDATED_FILE);
+        String hash;
+        try (JarWriter writer = new JarWriter(jar, "dir/", MetaVersion.V2, HashAlgorithm.DEFAULT)) {
+            writer.putTree(tree);
+            hash = writer.finishHash();
+        }
+        try (JarIndex index = JarIndex.open(jar)) {
+            Assertions.assertEquals(MetaVersion.V2.hashTree(index, "dir/"), hash);
+        }
+    }
+
+    @Test
+    public void packedContentSeesCurrentUpdate() throws IOException {
+        PhaseMetrics metrics = PhaseMetrics.begin();
+        Cancellation cancellation = Cancellation.begin(() -> false);
+        try {
+            Set<PhaseMetrics> seenMetrics = ConcurrentHashMap.newKeySet();
+            Set<Cancellation> seenCancellations = ConcurrentHashMap.newKeySet();
+            Set<Thread> seenThreads = ConcurrentHashMap.newKeySet();
+            NavigableMap<String, Source> tree = new TreeMap<>();
+            for (int i = 0; i < 64; i++) {
+                int value = i;
+                tree.put(String.format("%02d", i), new Source(out -> {
+                    seenMetrics.add(PhaseMetrics.current());
+                    seenCancellations.add(Cancellation.current());
+                    seenThreads.add(Thread.currentThread());
+                    out.write(value);
+                }));
+            }
+            try (JarWriter writer = new JarWriter(tmpDir.resolve(UPDATED_FILE), null)) {
+                writer.putTree(tree);
+            }
+            Assertions.assertEquals(Set.of(metrics), seenMetrics);
+            Assertions.assertEquals(Set.of(cancellation), seenCancellations);
+            // blocking content must not occupy a shared pool
+            Assertions.assertTrue(seenThreads.stream().noneMatch(ForkJoinWorkerThread.class::isInstance));
+        } finally {
+            cancellation.end();
+            metrics.end();
+        }
+    }
+
+    @Test
+    public void compressionPolicyPerExtension() throws IOException {
+        Path sourceDir = tmpDir.resolve("source");
+        Files.createDirectories(sourceDir);
+        byte[] text = "text ".repeat(1 << 10).getBytes(StandardCharsets.UTF_8);
+        for (String name : List.of("a.txt", "b.TXT", "c.log", "d.class", "e")) {
+            Files.write(sourceDir.resolve(name), text);
+        }
+        CompressionPolicy oldPolicy = SelfUpdater.setCompressionPolicy(
+                CompressionPolicy.DEFAULT.withStored("txt").withLevel("log", 0).withDefaultLevel(9));
+        try {
+            FileUtils.zipDir(sourceDir, tmpDir.resolve(UPDATED_FILE));
+        } finally {
+            SelfUpdater.setCompressionPolicy(oldPolicy);
+        }
+        try (JarIndex index = JarIndex.open(tmpDir.resolve(UPDATED_FILE))) {
+            Assertions.assertEquals(ZipEntry.STORED, index.getRawEntry("a.txt").method());
+            Assertions.assertEquals(ZipEntry.STORED, index.getRawEntry("b.TXT").method());
+            Assertions.assertEquals(ZipEntry.DEFLATED, index.getRawEntry("c.log").method());
+            Assertions.assertTrue(index.getRawEntry("c.log").compressedSize() > text.length);
+            Assertions.assertTrue(index.getRawEntry("d.class").compressedSize() < text.length / 10);
+            Assertions.assertTrue(index.getRawEntry("e").compressedSize() < text.length / 10);
+        }
+        TestUtils.extractJar(tmpDir.resolve(UPDATED_FILE), tmpDir.resolve(EXTRACTED_DIR));
+        Assertions.assertTrue(TestUtils.equalDirectories(sourceDir, tmpDir.resolve(EXTRACTED_DIR)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> CompressionPolicy.DEFAULT.withLevel("txt", 10));
+    }
+}
@@ -0,0 +1,77 @@
+package space.kepler_17c.selfupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_DIR;
+import static space.kepler_17c.selfupdater.TestUtils.ORIGINAL_FILE;
+import static space.kepler_17c.selfupdater.TestUtils.UPDATED_FILE;
+
+public class MerkleTreeHasherTest {
+    private static final int FILE_COUNT = 1000;
+
+    private Path tmpDir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        tmpDir = FileUtils.createTmpDir();
+        Random random = new Random(9);
+        for (int i = 0; i < FILE_COUNT; i++) {
+            Path file = tmpDir.resolve(ORIGINAL_DIR).resolve("dir" + i % 7).resolve("file" + i);
+            Files.createDirectories(file.getParent());
+            byte[] content = new byte[random.nextInt(5000)];
+            random.nextBytes(content);
+            Files.write(file, content);
+        }
+        FileUtils.zipDir(tmpDir.resolve(ORIGINAL_DIR), tmpDir.resolve(ORIGINAL_FILE));
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        FileUtils.clearWorkingDirectory(tmpDir);
+    }
+
+    @Test
+    public void parallelMatchesIncremental() throws IOException {
+        try (JarIndex source = JarIndex.open(tmpDir.resolve(ORIGINAL_FILE))) {
+            String parallelHash = MetaVersion.V2.hashTree(source, "");
+            Assertions.assertNotEquals(MetaVersion.V1.hashTree(source, ""), parallelHash);
+            String writtenHash;
+            try (JarWriter writer =
+                    new JarWriter(tmpDir.resolve(UPDATED_FILE), "", MetaVersion.V2, HashAlgorithm.DEFAULT)) {
+                for (String path : source.paths()) {
+                    if (source.isDirectory(path)) {
+                        writer.putDirectory(path);
+                    } else {
+                        writer.copyFile(path, source, path);
+                    }
+                }
+                writtenHash = writer.finishHash();
+            }
+            Assertions.assertEquals(parallelHash, writtenHash);
+            String subtreeHash = MetaVersion.V2.hashTree(source, "dir3/");
+            TreeDigest digest = MetaVersion.V2.newTreeDigest();
+            for (String path : source.subPaths("dir3/")) {
+                digest.putPath(path.substring("dir3/".length()));
+                try (InputStream inputStream = source.open(path)) {
+                    digest.putContent(inputStream);
+                }
+            }
+            Assertions.assertEquals(subtreeHash, digest.finish());
+        }
+    }
+
+    @Test
+    public void emptyTree() throws IOException {
+        try (JarIndex source = JarIndex.open(tmpDir.resolve(ORIGINAL_FILE))) {
+            Assertions.assertEquals(
+                    MetaVersion.V2.newTreeDigest().finish(), MetaVersion.V2.hashTree(source, "missing/"));
+        }
+    }
+}
@@ -12,12 +12,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import static space.kepler_17c.selfupdater.FileUtils.equalFiles;
 
@@ -46,6 +49,23 @@ public class TestUtils {
         }
     }
 
+    static void extractJar(Path jar, Path targetDirectory) throws IOException {
+        Files.createDirectories(targetDirectory);
+        try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                Path target = targetDirectory.resolve(entry.getName());
+                if (entry.isDirectory()) {
+                    Files.createDirectories(target);
+                    continue;
+                }
+                Files.createDirectories(target.getParent());
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    Files.copy(inputStream, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
     static boolean equalDirectories(Path a, Path b) throws IOException {
         if (Files.isDirectory(a) && Files.isDirectory(b)) {
             List<Path> listA;
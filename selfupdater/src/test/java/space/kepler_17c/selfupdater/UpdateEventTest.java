@@ -1,9 +1,12 @@
 package space.kepler_17c.selfupdater;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import space.kepler_17c.selfupdater.MiscUtils.Tuple2;
@@ -41,4 +44,47 @@ public class UpdateEventTest {
                 TestUtils.equalZipFiles(RESOURCES.resolve(testDir).resolve(UPDATED_FILE), generatedUpdate));
         assert true;
     }
+
+    @Test
+    public void eventInfoTest() throws IOException {
+        String testDir = "diff-v1-single-move";
+        List<UpdaterEventInfo> receivedInfos = new ArrayList<>();
+        Consumer<UpdaterEventInfo> callback = receivedInfos::add;
+        for (UpdaterEvent event : UpdaterEvent.values()) {
+            UpdaterEvent.subscribeEventInfo(event, callback);
+        }
+        try {
+            Path generatedUpdate = SelfUpdater.applyDiff(
+                    RESOURCES.resolve(testDir).resolve(DIFF_FILE), RESOURCES.resolve(testDir).resolve(ORIGINAL_FILE));
+            Assertions.assertEquals(UpdaterEvent.values().length, receivedInfos.size());
+            long bytesRead = 0;
+            for (int i = 0; i < UpdaterEvent.values().length; i++) {
+                UpdaterEventInfo info = receivedInfos.get(i);
+                Assertions.assertEquals(UpdaterEvent.values()[i], info.event());
+                Assertions.assertTrue(info.success());
+                Assertions.assertFalse(info.duration().isNegative());
+                bytesRead += info.bytesRead();
+            }
+            Assertions.assertTrue(bytesRead > 0);
+            UpdaterEventInfo packed = receivedInfos.get(UpdaterEvent.PACKED_EXECUTABLE.ordinal());
+            Assertions.assertEquals(Files.size(generatedUpdate), packed.bytesWritten());
+            Assertions.assertTrue(packed.entriesWritten() > 0);
+            Assertions.assertTrue(packed.entriesRead() > 0);
+
+            receivedInfos.clear();
+            Assertions.assertThrows(SelfUpdaterException.class, () -> SelfUpdater.applyDiff(null, generatedUpdate));
+            Assertions.assertEquals(UpdaterEvent.values().length, receivedInfos.size());
+            for (UpdaterEventInfo info : receivedInfos) {
+                Assertions.assertFalse(info.success());
+            }
+            for (UpdaterEventInfo info : receivedInfos.subList(1, receivedInfos.size())) {
+                Assertions.assertEquals(Duration.ZERO, info.duration());
+                Assertions.assertEquals(0, info.bytesRead());
+            }
+        } finally {
+            for (UpdaterEvent event : UpdaterEvent.values()) {
+                UpdaterEvent.unsubscribeInfoFrom(event, callback);
+            }
+        }
+    }
 }
@@ -5,7 +5,6 @@ import java.nio.file.Path;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import static space.kepler_17c.selfupdater.TestUtils.RESOURCES;
-import static space.kepler_17c.selfupdater.TestUtils.invokePrivateMethod;
 
 public class ZipTest {
     private static final String TEST_DIR = "zip-extract";
@@ -15,9 +14,7 @@ public class ZipTest {
         Path dir = RESOURCES.resolve(TEST_DIR);
         Path tmpDir = FileUtils.createTmpDir();
         FileUtils.zipDir(dir, tmpDir.resolve("test.jar"));
-        invokePrivateMethod(FileUtils.class, "extractJar", new Class<?>[] {Path.class, Path.class}, new Object[] {
-            tmpDir.resolve("test.jar"), tmpDir.resolve("extracted")
-        });
+        TestUtils.extractJar(tmpDir.resolve("test.jar"), tmpDir.resolve("extracted"));
         Assertions.assertTrue(TestUtils.equalDirectories(dir, tmpDir.resolve("extracted")));
         FileUtils.clearWorkingDirectory(tmpDir);
     }